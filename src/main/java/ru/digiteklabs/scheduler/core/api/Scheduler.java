@@ -55,6 +55,45 @@ public interface Scheduler {
      */
     boolean removeJob(Job job) throws SchedulingException;
 
+    /**
+     * Replan a scheduled job according to its current planned time.
+     *
+     * Should be called when a job changes its planned time outside of its run,
+     * particularly when a finished job which is still on scheduling list should be run again.
+     * Jobs that require the replanned job should wait until its next run is completed.
+     *
+     * @param job a job already accepted for scheduling.
+     * @return true if job is replanned, false if job is not on scheduling list
+     * @throws SchedulingException if the job cannot be replanned, particularly if its planned time is null
+     */
+    boolean replanJob(Job job) throws SchedulingException;
+
+    /**
+     * Adds a dependency between two scheduled jobs.
+     * <p/>
+     * After this call the job cannot be run until the required job is completed,
+     * a run which is already started is not affected.
+     * Dependencies given by getRequiredJobs() of a job are used only when it's added,
+     * then a scheduler keeps its own dependency graph.
+     *
+     * @param job a job already accepted for scheduling
+     * @param required a job already accepted for scheduling which should be completed before the job
+     * @return true if a dependency is added, false if it already exists
+     * @throws SchedulingException if either job is not on scheduling list, or the dependency creates a cycle
+     */
+    boolean addDependency(Job job, Job required) throws SchedulingException;
+
+    /**
+     * Removes a dependency between two scheduled jobs.
+     * <p/>
+     * The job can be run at once if it was waiting only for the required job.
+     *
+     * @param job a job already accepted for scheduling
+     * @param required a job which is required by the job
+     * @return true if a dependency is removed, false if it does not exist
+     */
+    boolean removeDependency(Job job, Job required);
+
     /**
      * Gets information about all scheduled jobs.
      *
@@ -0,0 +1,476 @@
+package ru.digiteklabs.scheduler.core.impl;
+
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.core.api.SchedulingException;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A memory-lean scheduler for millions of lightweight one-shot jobs.
+ *
+ * Unlike TimerScheduler, jobs are not objects. A job is a dense int ID given by addJob(),
+ * with a planned time and required jobs, and all jobs are run by one body which gets an ID
+ * and finds its own data by it. A job state is kept in a struct-of-arrays table:
+ * planned times, statuses and counts of pending prerequisites are primitive arrays indexed by ID,
+ * and successors of all jobs are kept in compressed sparse row form, one offset array and one array
+ * of successor IDs. So a job costs about 22 bytes and a dependency 4 bytes, and 10M jobs fit
+ * into a few hundred megabytes.
+ *
+ * Jobs are added first, then start() builds successor lists and runs them. A job can require only
+ * jobs added before it, so IDs are a topological order and cycles are not possible.
+ * A pending count of a job includes its planned time, so a job is run by whoever brings it to zero,
+ * the timer thread or a worker finishing its last prerequisite, without locking.
+ * If the body of a job throws an exception or an error, the job is failed and all jobs depending on it are skipped.
+ *
+ * This class is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class CompactScheduler {
+
+    /**
+     * A body of all jobs of a scheduler
+     */
+    public interface Body {
+        /**
+         * Runs a job
+         *
+         * @param id an ID of the job given by addJob()
+         */
+        void run(int id);
+    }
+
+    /**
+     * Job status
+     */
+    public enum Status {
+        /**
+         * Waiting for its planned time or prerequisites
+         */
+        PLANNED,
+        /**
+         * Waiting for a free worker
+         */
+        READY,
+        RUN,
+        FINISHED,
+        /**
+         * Its body has thrown an exception or an error
+         */
+        FAILED,
+        /**
+         * Not run because some of its prerequisites are failed or skipped
+         */
+        SKIPPED
+    }
+
+    static private final Status[] STATUSES = Status.values();
+
+    static private final int INITIAL_CAPACITY = 1024;
+
+    private final int threadNumber;
+
+    private final Body body;
+
+    /**
+     * A number of added jobs, guarded by this before start(), then not changed
+     */
+    private int size = 0;
+
+    /**
+     * Planned times in ms by ID, guarded by this before start(), then not changed
+     */
+    private long[] plannedTimes;
+
+    /**
+     * Dependencies in order of addition, pairs of required and requiring job IDs, guarded by this.
+     * Released by start()
+     */
+    private int[] edgeFrom;
+
+    private int[] edgeTo;
+
+    private int edgeCount = 0;
+
+    /**
+     * Successors of job i are successors[successorOffsets[i]] .. successors[successorOffsets[i + 1] - 1].
+     * Built by start(), then not changed
+     */
+    private int[] successorOffsets;
+
+    private int[] successors;
+
+    /**
+     * Statuses by ID as ordinals of Status, each is written by a thread owning a job at this moment
+     */
+    private byte[] statuses;
+
+    /**
+     * Counts of unfinished prerequisites by ID, plus one until a planned time is reached
+     */
+    private AtomicIntegerArray pending;
+
+    /**
+     * Non-zero for jobs with a failed or skipped prerequisite. Written before pending is decremented,
+     * so a thread bringing pending to zero sees it
+     */
+    private byte[] blocked;
+
+    /**
+     * A binary min-heap of job IDs by planned time, accessed by the timer thread only
+     */
+    private int[] timerHeap;
+
+    private int timerHeapSize;
+
+    private final Object readyMonitor = new Object();
+
+    /**
+     * A ring buffer of ready job IDs, guarded by readyMonitor
+     */
+    private int[] readyQueue = new int[INITIAL_CAPACITY];
+
+    // Guarded by readyMonitor
+    private int readyHead = 0;
+
+    // Guarded by readyMonitor
+    private int readyCount = 0;
+
+    private final Object timerMonitor = new Object();
+
+    private final Object doneMonitor = new Object();
+
+    private final AtomicInteger done = new AtomicInteger(0);
+
+    private final AtomicInteger failed = new AtomicInteger(0);
+
+    private final AtomicInteger skipped = new AtomicInteger(0);
+
+    // Guarded by this
+    private boolean started = false;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructs a compact scheduler
+     *
+     * @param threadNumber a number of worker threads
+     * @param body a body of all jobs
+     * @param expectedJobs an expected number of jobs, so arrays are not grown while they are added
+     */
+    public CompactScheduler(final int threadNumber, @NotNull final Body body, final int expectedJobs) {
+        if (threadNumber < 1)
+            throw new IllegalArgumentException("Compact scheduler requires at least one thread");
+        this.threadNumber = threadNumber;
+        this.body = body;
+        plannedTimes = new long[Math.max(expectedJobs, INITIAL_CAPACITY)];
+        edgeFrom = new int[INITIAL_CAPACITY];
+        edgeTo = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a new job
+     *
+     * @param plannedTime a planned time in ms
+     * @param requiredJobs IDs of jobs which must be finished before this one
+     * @return an ID of the new job, IDs are given in order starting from zero
+     * @throws SchedulingException if the scheduler is started or some required job is not added yet
+     */
+    public synchronized int addJob(final long plannedTime, @NotNull final int... requiredJobs)
+            throws SchedulingException {
+        if (started)
+            throw new SchedulingException("Adding not permitted because the scheduler is started");
+        for (int required: requiredJobs) {
+            if (required < 0 || required >= size)
+                throw new SchedulingException("Dependency not permitted because job " + required
+                        + " is not added yet");
+        }
+        if (size == plannedTimes.length)
+            plannedTimes = Arrays.copyOf(plannedTimes, size * 2);
+        if (edgeCount + requiredJobs.length > edgeFrom.length) {
+            final int capacity = Math.max(edgeFrom.length * 2, edgeCount + requiredJobs.length);
+            edgeFrom = Arrays.copyOf(edgeFrom, capacity);
+            edgeTo = Arrays.copyOf(edgeTo, capacity);
+        }
+        final int id = size++;
+        plannedTimes[id] = plannedTime;
+        for (int required: requiredJobs) {
+            edgeFrom[edgeCount] = required;
+            edgeTo[edgeCount] = id;
+            edgeCount++;
+        }
+        return id;
+    }
+
+    /**
+     * Builds successor lists and starts the timer and worker threads.
+     * Threads stop themselves when all jobs are done
+     *
+     * @throws SchedulingException if the scheduler is already started
+     */
+    public synchronized void start() throws SchedulingException {
+        if (started)
+            throw new SchedulingException("Start not permitted because the scheduler is already started");
+        started = true;
+        plannedTimes = Arrays.copyOf(plannedTimes, size);
+        buildSuccessors();
+        statuses = new byte[size];
+        blocked = new byte[size];
+        timerHeap = new int[size];
+        for (int i = 0; i < size; i++)
+            timerHeap[i] = i;
+        timerHeapSize = size;
+        for (int i = size / 2 - 1; i >= 0; i--)
+            siftDown(i);
+        final Thread timer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        }, "Compact scheduler timer");
+        timer.start();
+        for (int i = 0; i < threadNumber; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "Compact scheduler worker #" + (i + 1)).start();
+        }
+    }
+
+    /**
+     * Converts dependency pairs to compressed sparse rows and initializes pending counts,
+     * always called with this lock held
+     */
+    private void buildSuccessors() {
+        successorOffsets = new int[size + 1];
+        for (int e = 0; e < edgeCount; e++)
+            successorOffsets[edgeFrom[e] + 1]++;
+        for (int i = 0; i < size; i++)
+            successorOffsets[i + 1] += successorOffsets[i];
+        // Each offset is moved to the end of its row while the row is filled, then they are shifted back
+        successors = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++)
+            successors[successorOffsets[edgeFrom[e]]++] = edgeTo[e];
+        System.arraycopy(successorOffsets, 0, successorOffsets, 1, size);
+        successorOffsets[0] = 0;
+        // Dependencies of a job are added together, so they go in a row
+        pending = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++)
+            pending.lazySet(i, 1);
+        for (int e = 0; e < edgeCount; e++)
+            pending.lazySet(edgeTo[e], pending.get(edgeTo[e]) + 1);
+        edgeFrom = null;
+        edgeTo = null;
+    }
+
+    private boolean earlier(final int first, final int second) {
+        final long firstTime = plannedTimes[first];
+        final long secondTime = plannedTimes[second];
+        return firstTime < secondTime || (firstTime == secondTime && first < second);
+    }
+
+    private void siftDown(int index) {
+        final int id = timerHeap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= timerHeapSize)
+                break;
+            if (child + 1 < timerHeapSize && earlier(timerHeap[child + 1], timerHeap[child]))
+                child++;
+            if (!earlier(timerHeap[child], id))
+                break;
+            timerHeap[index] = timerHeap[child];
+            index = child;
+        }
+        timerHeap[index] = id;
+    }
+
+    /**
+     * Releases jobs in order of planned time
+     */
+    private void runTimer() {
+        while (timerHeapSize > 0 && !stopped) {
+            final int id = timerHeap[0];
+            final long delay = plannedTimes[id] - System.currentTimeMillis();
+            if (delay > 0) {
+                synchronized (timerMonitor) {
+                    try {
+                        if (!stopped)
+                            timerMonitor.wait(delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            timerHeap[0] = timerHeap[--timerHeapSize];
+            siftDown(0);
+            release(id);
+        }
+    }
+
+    /**
+     * Decrements a pending count of a job and queues it if nothing else is pending
+     */
+    private void release(final int id) {
+        if (pending.decrementAndGet(id) > 0)
+            return;
+        statuses[id] = (byte) Status.READY.ordinal();
+        synchronized (readyMonitor) {
+            if (readyCount == readyQueue.length) {
+                final int[] extended = new int[readyQueue.length * 2];
+                for (int i = 0; i < readyCount; i++)
+                    extended[i] = readyQueue[(readyHead + i) % readyQueue.length];
+                readyQueue = extended;
+                readyHead = 0;
+            }
+            readyQueue[(readyHead + readyCount) % readyQueue.length] = id;
+            readyCount++;
+            readyMonitor.notify();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            final int id;
+            synchronized (readyMonitor) {
+                try {
+                    while (readyCount == 0 && !stopped && done.get() < size)
+                        readyMonitor.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (readyCount == 0 || stopped)
+                    return;
+                id = readyQueue[readyHead];
+                readyHead = (readyHead + 1) % readyQueue.length;
+                readyCount--;
+            }
+            execute(id);
+        }
+    }
+
+    /**
+     * Runs a ready job, or skips it if it's blocked, then releases its successors
+     */
+    private void execute(final int id) {
+        boolean success = false;
+        if (blocked[id] == 0) {
+            statuses[id] = (byte) Status.RUN.ordinal();
+            try {
+                body.run(id);
+                success = true;
+            } catch (Throwable ex) {
+                // Errors too, otherwise a worker dies before its successors are released and the job is counted
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+            }
+            if (!success)
+                failed.incrementAndGet();
+            statuses[id] = (byte) (success ? Status.FINISHED : Status.FAILED).ordinal();
+        } else {
+            skipped.incrementAndGet();
+            statuses[id] = (byte) Status.SKIPPED.ordinal();
+        }
+        for (int k = successorOffsets[id]; k < successorOffsets[id + 1]; k++) {
+            final int successor = successors[k];
+            if (!success)
+                blocked[successor] = 1;
+            release(successor);
+        }
+        if (done.incrementAndGet() == size) {
+            synchronized (readyMonitor) {
+                readyMonitor.notifyAll();
+            }
+            synchronized (doneMonitor) {
+                doneMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until all jobs are finished, failed or skipped
+     *
+     * @param timeout a maximum time to wait
+     * @param unit a unit of timeout
+     * @return true if all jobs are done, false if the timeout has elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCompletion(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (doneMonitor) {
+            while (done.get() < getSize()) {
+                final long rest = deadline - System.currentTimeMillis();
+                if (rest <= 0)
+                    return false;
+                doneMonitor.wait(rest);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the timer and worker threads, runs in progress are completed
+     *
+     * @return a number of jobs which are not done
+     */
+    public int shutdown() {
+        stopped = true;
+        synchronized (timerMonitor) {
+            timerMonitor.notifyAll();
+        }
+        synchronized (readyMonitor) {
+            readyMonitor.notifyAll();
+        }
+        return getSize() - done.get();
+    }
+
+    /**
+     * @return a number of added jobs
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets a status of a job, it can be a bit late for jobs which are running now
+     *
+     * @param id a job ID
+     * @return a job status
+     */
+    public Status getStatus(final int id) {
+        synchronized (this) {
+            if (id < 0 || id >= size)
+                throw new IllegalArgumentException("Job " + id + " is not added");
+            if (!started)
+                return Status.PLANNED;
+        }
+        return STATUSES[statuses[id]];
+    }
+
+    /**
+     * @return a number of finished, failed and skipped jobs
+     */
+    public int getDone() {
+        return done.get();
+    }
+
+    /**
+     * @return a number of jobs whose body has thrown an exception
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return a number of jobs skipped because of failed prerequisites
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+}
@@ -0,0 +1,230 @@
+package ru.digiteklabs.scheduler.core.impl;
+
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.job.api.CheckpointStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A checkpoint store keeping each state in a file of a local directory.
+ *
+ * save() and remove() only put a state into a map of pending ones, a writer thread writes it later.
+ * A state saved again before it's written replaces the pending one, so a job saving checkpoints often
+ * costs one write per key at a time. A file is written under a temporary name and renamed,
+ * so a crash leaves either an old or a new state. A file name is a URL-encoded key with SUFFIX.
+ *
+ * A writer thread is a daemon, flush() or close() should be called to make sure pending states are written.
+ *
+ * This class is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class FileCheckpointStore implements CheckpointStore {
+
+    static public final String SUFFIX = ".checkpoint";
+
+    static private final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * A pending state which means a removal, compared by identity
+     */
+    static private final byte[] REMOVED = new byte[0];
+
+    private final File directory;
+
+    /**
+     * States to write by keys, thread-safe
+     */
+    private final ConcurrentMap<String, byte[]> pending = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Keys of pending states in order of saving, guarded by this
+     */
+    private final Queue<String> queue = new ArrayDeque<String>();
+
+    /**
+     * True while the writer writes a state taken from the queue, guarded by this
+     */
+    private boolean writing = false;
+
+    /**
+     * A write failure since the last flush(), guarded by this
+     */
+    private IOException failure = null;
+
+    // Guarded by this
+    private boolean closed = false;
+
+    private final Thread writer;
+
+    /**
+     * Creates a store in a given directory, the directory is created if it does not exist
+     *
+     * @param directory a directory for checkpoint files
+     * @throws IOException if the directory cannot be created
+     */
+    public FileCheckpointStore(@NotNull final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create a checkpoint directory " + directory);
+        this.directory = directory;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "Checkpoint writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private File file(final String key) {
+        try {
+            return new File(directory, URLEncoder.encode(key, "UTF-8") + SUFFIX);
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError("UTF-8 is not supported in FileCheckpointStore.file!");
+        }
+    }
+
+    private void put(final String key, final byte[] state) {
+        if (pending.put(key, state) == null) {
+            synchronized (this) {
+                queue.add(key);
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void save(@NotNull final String key, @NotNull final byte[] state) {
+        put(key, state);
+    }
+
+    @Override
+    public byte[] load(@NotNull final String key) {
+        final byte[] state = pending.get(key);
+        if (state != null)
+            return state == REMOVED ? null : state;
+        final File file = file(key);
+        if (!file.isFile())
+            return null;
+        try {
+            final RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                final byte[] result = new byte[(int) input.length()];
+                input.readFully(result);
+                return result;
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            // Removed concurrently or unreadable, a job starts from the beginning
+            return null;
+        }
+    }
+
+    @Override
+    public void remove(@NotNull final String key) {
+        put(key, REMOVED);
+    }
+
+    /**
+     * Writes pending states in the writer thread until the store is closed
+     */
+    private void write() {
+        while (true) {
+            final String key;
+            synchronized (this) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // Nobody interrupts the writer
+                    }
+                }
+                key = queue.poll();
+                if (key == null)
+                    return;
+                writing = true;
+            }
+            final byte[] state = pending.get(key);
+            IOException exception = null;
+            try {
+                writeFile(key, state);
+            } catch (IOException ex) {
+                exception = ex;
+            }
+            // A state saved while it was written stays pending and is written again
+            final boolean again = !pending.remove(key, state);
+            synchronized (this) {
+                if (again)
+                    queue.add(key);
+                if (exception != null)
+                    failure = exception;
+                writing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeFile(final String key, final byte[] state) throws IOException {
+        final File file = file(key);
+        if (state == REMOVED) {
+            if (file.exists() && !file.delete())
+                throw new IOException("Cannot remove a checkpoint " + file);
+            return;
+        }
+        final File temporary = new File(directory, file.getName() + TEMPORARY_SUFFIX);
+        final FileOutputStream output = new FileOutputStream(temporary);
+        try {
+            output.write(state);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        // Renaming does not replace an existing file on some platforms
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file)))
+            throw new IOException("Cannot write a checkpoint " + file);
+    }
+
+    /**
+     * Waits until all states saved before the call are written
+     *
+     * @throws IOException if a state could not be written since the previous call
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public synchronized void flush() throws IOException, InterruptedException {
+        while (!queue.isEmpty() || writing) {
+            if (closed && !writer.isAlive())
+                break;
+            wait();
+        }
+        final IOException result = failure;
+        failure = null;
+        if (result != null)
+            throw result;
+    }
+
+    /**
+     * Writes pending states and stops the writer, later states are not written
+     *
+     * @throws IOException if a state could not be written since the previous flush
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public void close() throws IOException, InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        writer.join();
+        flush();
+    }
+}
@@ -0,0 +1,163 @@
+package ru.digiteklabs.scheduler.core.impl;
+
+import ru.digiteklabs.scheduler.job.api.Job;
+import ru.digiteklabs.scheduler.job.api.JobObserver;
+
+import java.util.*;
+
+/**
+ * A lightweight one-shot job running an action, created by TimerScheduler.submit().
+ *
+ * Its state is managed by the scheduler: it is always ready and it has no observers.
+ * A job is a handle of one submission, while its planned time and required jobs are kept in a State
+ * which is released when the job is removed from scheduling and reused for another action.
+ * A released job keeps its progress and reports no planned time and no required jobs,
+ * so a handle kept by a caller never refers to another action.
+ *
+ * This class is thread-safe, release() is called by a scheduler only when the job is not scheduled
+ *
+ * @author Mikhail Glukhikh
+ */
+final class PooledJob implements Job {
+
+    static private final int PROGRESS_NOT_STARTED = -1;
+
+    static private final int PROGRESS_STARTED = 0;
+
+    static private final int PROGRESS_FINISHED = 1;
+
+    /**
+     * A reusable state of a job, it allocates nothing unless a job has required jobs
+     */
+    static final class State {
+
+        private final Date plannedTime = new Date(0);
+
+        private final Set<Job> requiredJobs = new HashSet<Job>(4);
+
+        private final Set<Job> unmodifiableRequiredJobs = Collections.unmodifiableSet(requiredJobs);
+    }
+
+    private volatile Runnable action;
+
+    /**
+     * A state of the job, null after release()
+     */
+    private volatile State state;
+
+    private volatile boolean planned = true;
+
+    private volatile int progress = PROGRESS_NOT_STARTED;
+
+    /**
+     * Creates a job ready for scheduling
+     * @param action an action to run
+     * @param plannedTime a planned time in ms
+     * @param requiredJobs jobs to finish before, finished functional jobs are skipped since they are never run again
+     * @param state an unused state
+     */
+    PooledJob(final Runnable action, final long plannedTime, final Job[] requiredJobs, final State state) {
+        this.action = action;
+        state.plannedTime.setTime(plannedTime);
+        for (Job required: requiredJobs) {
+            if (!(required instanceof PooledJob && required.isFinished()))
+                state.requiredJobs.add(required);
+        }
+        this.state = state;
+    }
+
+    /**
+     * Detaches the job from its state and its action, so the state can be reused
+     * @return a cleared state
+     */
+    State release() {
+        final State released = state;
+        state = null;
+        action = null;
+        planned = false;
+        released.requiredJobs.clear();
+        return released;
+    }
+
+    @Override
+    public Set<Job> getRequiredJobs() {
+        final State current = state;
+        return current == null || current.requiredJobs.isEmpty()
+                ? Collections.<Job>emptySet() : current.unmodifiableRequiredJobs;
+    }
+
+    /**
+     * Gets a planned time of the job, the result must not be changed
+     * @return a planned time before a run, or null after it
+     */
+    @Override
+    public Date getPlannedTime() {
+        final State current = state;
+        return planned && current != null ? current.plannedTime : Job.PLANNED_TIME_NEVER;
+    }
+
+    @Override
+    public boolean getReadyStatus() {
+        return true;
+    }
+
+    @Override
+    public boolean autoDeletedOnCompletion() {
+        return true;
+    }
+
+    @Override
+    public int getProgress() {
+        return progress;
+    }
+
+    @Override
+    public int getMaxProgress() {
+        return PROGRESS_FINISHED;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return progress >= PROGRESS_STARTED;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return progress >= PROGRESS_FINISHED;
+    }
+
+    @Override
+    public void beforeRun() {
+        progress = PROGRESS_STARTED;
+    }
+
+    @Override
+    public void afterRun() {
+        planned = false;
+        progress = PROGRESS_FINISHED;
+    }
+
+    @Override
+    public void run() {
+        action.run();
+    }
+
+    /**
+     * Observers are not supported
+     * @return false
+     */
+    @Override
+    public boolean addObserver(JobObserver observer) {
+        return false;
+    }
+
+    @Override
+    public boolean removeObserver(JobObserver observer) {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "Functional job: " + (isFinished() ? "completed" : "not completed");
+    }
+}
@@ -0,0 +1,96 @@
+package ru.digiteklabs.scheduler.core.impl;
+
+import ru.digiteklabs.scheduler.job.api.Clock;
+
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A clock of a scheduler together with a timer running tasks at given moments of this clock.
+ *
+ * Implementations must be thread-safe unless a scheduler is used from one thread only
+ *
+ * @author Mikhail Glukhikh
+ */
+abstract class SchedulerClock extends Clock {
+
+    /**
+     * Runs a task at a given moment, or as soon as possible if it's in the past.
+     * A cancelled task may still be run, so a task must check whether it's cancelled itself.
+     * A task scheduled after stop() is ignored
+     *
+     * @param task a task
+     * @param time a moment in ms
+     */
+    abstract void schedule(TimerTask task, long time);
+
+    /**
+     * Frees memory taken by cancelled tasks
+     */
+    abstract void purge();
+
+    /**
+     * Stops the timer, scheduled tasks are not run
+     */
+    abstract void stop();
+
+    /**
+     * Waits on a monitor held by a caller until it's notified or a given time of this clock passes.
+     * A caller must check its condition again after return
+     *
+     * @param monitor a monitor held by a caller
+     * @param millis a maximum time to wait in ms
+     * @throws InterruptedException if interrupted while waiting
+     */
+    abstract void await(Object monitor, long millis) throws InterruptedException;
+
+    /**
+     * Creates a clock with system time and a timer thread
+     *
+     * @return a new clock
+     */
+    static SchedulerClock system() {
+        return new SchedulerClock() {
+
+            /**
+             * Timer class is thread-safe
+             */
+            private final Timer timer = new Timer();
+
+            private volatile boolean stopped = false;
+
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            void schedule(TimerTask task, long time) {
+                try {
+                    timer.schedule(task, new Date(time));
+                } catch (IllegalStateException ex) {
+                    // Stopped concurrently
+                    if (!stopped)
+                        throw ex;
+                }
+            }
+
+            @Override
+            void purge() {
+                timer.purge();
+            }
+
+            @Override
+            void stop() {
+                stopped = true;
+                timer.cancel();
+            }
+
+            @Override
+            void await(Object monitor, long millis) throws InterruptedException {
+                monitor.wait(millis);
+            }
+        };
+    }
+}
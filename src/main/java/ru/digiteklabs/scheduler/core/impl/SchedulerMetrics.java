@@ -0,0 +1,296 @@
+package ru.digiteklabs.scheduler.core.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of a timer scheduler.
+ *
+ * All values are maintained on scheduler hot paths by atomic operations,
+ * so reading them never iterates over scheduled jobs and never takes scheduler locks.
+ * Values are read one by one, so they can be slightly inconsistent with each other.
+ *
+ * This class is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class SchedulerMetrics {
+
+    /**
+     * A histogram of durations with fixed bucket bounds.
+     *
+     * Durations are observed in nanoseconds, bounds and sums are given in seconds.
+     *
+     * This class is thread-safe
+     */
+    public static final class Histogram {
+
+        private final double[] bounds;
+
+        private final long[] nanoBounds;
+
+        /**
+         * Non-cumulative counts, the last one is for durations above all bounds
+         */
+        private final AtomicLongArray counts;
+
+        private final AtomicLong nanoSum = new AtomicLong(0);
+
+        Histogram(final double... bounds) {
+            this.bounds = bounds.clone();
+            nanoBounds = new long[bounds.length];
+            for (int i = 0; i < bounds.length; i++)
+                nanoBounds[i] = (long) (bounds[i] * 1e9);
+            counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void observe(final long nanos) {
+            int i = 0;
+            while (i < nanoBounds.length && nanos > nanoBounds[i])
+                i++;
+            counts.incrementAndGet(i);
+            nanoSum.addAndGet(nanos);
+        }
+
+        /**
+         * @return upper bounds of buckets in seconds, without the infinite one
+         */
+        public double[] getBounds() {
+            return bounds.clone();
+        }
+
+        /**
+         * @return cumulative counts for each bound, the last one is a total count
+         */
+        public long[] getCumulativeCounts() {
+            final long[] result = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < result.length; i++) {
+                total += counts.get(i);
+                result[i] = total;
+            }
+            return result;
+        }
+
+        /**
+         * @return a sum of all observed durations in seconds
+         */
+        public double getSum() {
+            return nanoSum.get() / 1e9;
+        }
+    }
+
+    private static final double[] LATENCY_BOUNDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final double[] RUN_TIME_BOUNDS = {
+            0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300
+    };
+
+    /**
+     * Numbers of job tasks in each status, indexed by status ordinal
+     */
+    private final AtomicLongArray jobCounts = new AtomicLongArray(TimerScheduler.JobStatus.values().length);
+
+    private final AtomicLong timerQueueSize = new AtomicLong(0);
+
+    private final AtomicLong executorQueued = new AtomicLong(0);
+
+    private final AtomicLong executorActive = new AtomicLong(0);
+
+    private final AtomicLong completed = new AtomicLong(0);
+
+    private final AtomicLong failed = new AtomicLong(0);
+
+    private final AtomicLong deferred = new AtomicLong(0);
+
+    private final AtomicLong held = new AtomicLong(0);
+
+    private final AtomicLong deadlineMisses = new AtomicLong(0);
+
+    private final AtomicLong backupRuns = new AtomicLong(0);
+
+    private final AtomicLong backupWins = new AtomicLong(0);
+
+    private final Histogram dispatchLatency = new Histogram(LATENCY_BOUNDS);
+
+    private final Histogram runTime = new Histogram(RUN_TIME_BOUNDS);
+
+    SchedulerMetrics() {}
+
+    void statusChanged(final TimerScheduler.JobStatus from, final TimerScheduler.JobStatus to) {
+        if (from != null)
+            jobCounts.decrementAndGet(from.ordinal());
+        if (to != null)
+            jobCounts.incrementAndGet(to.ordinal());
+    }
+
+    void taskScheduled() {
+        timerQueueSize.incrementAndGet();
+    }
+
+    /**
+     * Called when a scheduled task is either fired or cancelled before firing
+     */
+    void taskUnscheduled() {
+        timerQueueSize.decrementAndGet();
+    }
+
+    void executionSubmitted() {
+        executorQueued.incrementAndGet();
+    }
+
+    void executionStarted(final long latencyNanos) {
+        executorQueued.decrementAndGet();
+        executorActive.incrementAndGet();
+        dispatchLatency.observe(Math.max(0, latencyNanos));
+    }
+
+    /**
+     * Called when a ready job waits because its rate limit is exceeded
+     */
+    void executionDeferred() {
+        deferred.incrementAndGet();
+    }
+
+    /**
+     * Called when a ready job waits because free resources are not enough for it
+     */
+    void executionHeld() {
+        held.incrementAndGet();
+    }
+
+    /**
+     * Called when a run of a job with a deadline is finished after it
+     */
+    void deadlineMissed() {
+        deadlineMisses.incrementAndGet();
+    }
+
+    /**
+     * Called when a backup of a slow run of an idempotent job is submitted
+     */
+    void backupLaunched() {
+        backupRuns.incrementAndGet();
+    }
+
+    /**
+     * Called when a backup returns before the first call of a job
+     */
+    void backupWon() {
+        backupWins.incrementAndGet();
+    }
+
+    /**
+     * Called when a submitted run is skipped because its job is removed before the run starts
+     */
+    void executionSkipped() {
+        executorQueued.decrementAndGet();
+    }
+
+    void executionFinished(final long runNanos, final boolean success) {
+        executorActive.decrementAndGet();
+        runTime.observe(runNanos);
+        if (success)
+            completed.incrementAndGet();
+        else
+            failed.incrementAndGet();
+    }
+
+    /**
+     * @return numbers of scheduled jobs by their status names in lower case (future, not_ready, run, finished, paused)
+     */
+    public Map<String, Long> getJobCounts() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (TimerScheduler.JobStatus status: TimerScheduler.JobStatus.values())
+            result.put(status.name().toLowerCase(), jobCounts.get(status.ordinal()));
+        return result;
+    }
+
+    /**
+     * @return a number of tasks waiting for their planned time in the timer
+     */
+    public long getTimerQueueSize() {
+        return timerQueueSize.get();
+    }
+
+    /**
+     * @return a number of job runs submitted to the executor but not started yet
+     */
+    public long getExecutorQueued() {
+        return executorQueued.get();
+    }
+
+    /**
+     * @return a number of job runs in progress
+     */
+    public long getExecutorActive() {
+        return executorActive.get();
+    }
+
+    /**
+     * @return a total number of job runs completed normally
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return a total number of job runs completed with an exception
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return a total number of job runs which waited for a rate limit
+     */
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    /**
+     * @return a total number of job runs which waited for free CPU slots or memory
+     */
+    public long getHeld() {
+        return held.get();
+    }
+
+    /**
+     * @return a total number of job runs finished after their deadlines
+     */
+    public long getDeadlineMisses() {
+        return deadlineMisses.get();
+    }
+
+    /**
+     * @return a total number of backup runs started for slow runs of idempotent jobs
+     */
+    public long getBackupRuns() {
+        return backupRuns.get();
+    }
+
+    /**
+     * @return a total number of backup runs which finished before the runs they backed up
+     */
+    public long getBackupWins() {
+        return backupWins.get();
+    }
+
+    /**
+     * @return a histogram of delays between a moment a job can run and its actual start
+     */
+    public Histogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * @return a histogram of job run times
+     */
+    public Histogram getRunTime() {
+        return runTime;
+    }
+}
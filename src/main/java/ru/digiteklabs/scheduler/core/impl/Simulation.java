@@ -0,0 +1,341 @@
+package ru.digiteklabs.scheduler.core.impl;
+
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.job.api.Clock;
+import ru.digiteklabs.scheduler.job.api.Job;
+
+import java.util.*;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A discrete-event simulation of a TimerScheduler in virtual time.
+ *
+ * A simulated scheduler runs the same scheduling logic as a real one, but its timer and executor
+ * are replaced by events of virtual time, processed one by one in the calling thread.
+ * Jobs are not run: a run starts with beforeRun() when one of simulated threads is free
+ * and finishes with afterRun() when a duration given by a model elapses.
+ * So days of load are simulated in seconds, and results do not depend on a machine.
+ *
+ * While the simulation runs, Clock.current() of its thread is the virtual clock,
+ * so jobs planning their next runs relative to now get virtual time.
+ * A simulated scheduler being drained processes events instead of waiting, so drain() returns
+ * at the moment of virtual time when the scheduler is drained.
+ *
+ * This class is not thread-safe, a simulation and its scheduler must be used from one thread
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class Simulation {
+
+    /**
+     * A model of job run durations
+     */
+    public interface DurationModel {
+        /**
+         * Gets a duration of the next run of a job
+         *
+         * @param job a job which starts now
+         * @return a run duration in ms
+         */
+        long getDuration(Job job);
+    }
+
+    /**
+     * An action at a given moment of virtual time, events with equal times are processed in order of posting
+     */
+    private static final class Event implements Comparable<Event> {
+
+        private final long time;
+
+        private final long sequence;
+
+        private final Runnable action;
+
+        Event(final long time, final long sequence, final Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A virtual clock, its timer posts tasks as events
+     */
+    private final class VirtualClock extends SchedulerClock {
+
+        private boolean stopped = false;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        void schedule(TimerTask task, long time) {
+            if (!stopped)
+                post(Math.max(time, now), task);
+        }
+
+        @Override
+        void purge() {
+            // Cancelled tasks check it themselves when they are run
+        }
+
+        @Override
+        void stop() {
+            stopped = true;
+        }
+
+        /**
+         * Virtual time does not pass while waiting, so the next event before a timeout is processed instead
+         */
+        @Override
+        void await(Object monitor, long millis) {
+            if (events.isEmpty() || events.peek().time > now + millis) {
+                now += millis;
+                return;
+            }
+            final Clock previous = Clock.current();
+            Clock.setCurrent(this);
+            try {
+                step();
+            } finally {
+                Clock.setCurrent(previous);
+            }
+        }
+    }
+
+    /**
+     * An executor with a given number of simulated threads, submitted runs wait for a free thread in a queue
+     */
+    private final class VirtualExecutor extends AbstractExecutorService {
+
+        private final Deque<Runnable> queue = new ArrayDeque<Runnable>();
+
+        private boolean shutdown = false;
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown)
+                throw new RejectedExecutionException("Simulated executor is shut down");
+            queue.add(command);
+            // Dispatched as a separate event, a caller may hold scheduler locks
+            post(now, new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            });
+        }
+
+        /**
+         * Starts queued runs while there are free threads
+         */
+        private void dispatch() {
+            while (busy < threads && !queue.isEmpty()) {
+                final Runnable command = queue.poll();
+                if (!(command instanceof TimerScheduler.JobRun)) {
+                    command.run();
+                    continue;
+                }
+                final TimerScheduler.JobRun run = (TimerScheduler.JobRun) command;
+                if (!run.start())
+                    continue;
+                busy++;
+                final Job job = run.getJob();
+                job.beforeRun();
+                final long duration = Math.max(0, model.getDuration(job));
+                busyTime += duration;
+                post(now + duration, new Runnable() {
+                    @Override
+                    public void run() {
+                        busy--;
+                        job.afterRun();
+                        run.finish(duration * 1000000L);
+                        dispatch();
+                    }
+                });
+            }
+            maxQueued = Math.max(maxQueued, queue.size());
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            final List<Runnable> result = new ArrayList<Runnable>(queue);
+            queue.clear();
+            return result;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && busy == 0 && queue.isEmpty();
+        }
+
+        /**
+         * Virtual time does not pass while waiting, so it returns at once
+         */
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+
+    private long sequence = 0;
+
+    /**
+     * Current virtual time in ms
+     */
+    private long now;
+
+    private final long start;
+
+    private final int threads;
+
+    private final DurationModel model;
+
+    private final VirtualClock clock = new VirtualClock();
+
+    private final TimerScheduler scheduler;
+
+    /**
+     * Simulated threads running jobs now
+     */
+    private int busy = 0;
+
+    /**
+     * Total duration of all started runs in ms
+     */
+    private long busyTime = 0;
+
+    private int maxQueued = 0;
+
+    private long processed = 0;
+
+    /**
+     * Constructs a simulation
+     *
+     * @param start initial virtual time in ms since epoch
+     * @param threads a number of simulated executor threads
+     * @param model a model of job run durations
+     */
+    public Simulation(final long start, final int threads, @NotNull final DurationModel model) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Simulation requires at least one thread");
+        this.now = start;
+        this.start = start;
+        this.threads = threads;
+        this.model = model;
+        this.scheduler = new TimerScheduler(new VirtualExecutor(), clock);
+    }
+
+    private void post(final long time, final Runnable action) {
+        events.add(new Event(time, sequence++, action));
+    }
+
+    /**
+     * Gets a simulated scheduler, it can be used as a real one from the thread running this simulation
+     *
+     * @return a scheduler working in virtual time
+     */
+    public TimerScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the virtual clock, e.g. to create jobs planned relative to virtual now
+     *
+     * @return the virtual clock
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return current virtual time in ms since epoch
+     */
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * Processes all events up to a given moment of virtual time, then moves virtual time to this moment
+     *
+     * @param time a moment in ms since epoch
+     */
+    public void runUntil(final long time) {
+        final Clock previous = Clock.current();
+        Clock.setCurrent(clock);
+        try {
+            while (!events.isEmpty() && events.peek().time <= time)
+                step();
+            now = Math.max(now, time);
+        } finally {
+            Clock.setCurrent(previous);
+        }
+    }
+
+    /**
+     * Processes the next event, moving virtual time to it
+     */
+    private void step() {
+        final Event event = events.poll();
+        now = Math.max(now, event.time);
+        processed++;
+        event.action.run();
+    }
+
+    /**
+     * Processes all events during a given interval of virtual time
+     *
+     * @param interval an interval in ms
+     */
+    public void runFor(final long interval) {
+        runUntil(now + interval);
+    }
+
+    /**
+     * @return a number of processed events
+     */
+    public long getProcessedEvents() {
+        return processed;
+    }
+
+    /**
+     * @return a maximum number of runs waiting for a free simulated thread
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Gets a share of time simulated threads were running jobs since the start.
+     * Runs in progress are counted as a whole, so it can slightly exceed one
+     *
+     * @return busy thread time divided by total thread time
+     */
+    public double getUtilization() {
+        return now == start ? 0.0 : (double) busyTime / ((now - start) * threads);
+    }
+}
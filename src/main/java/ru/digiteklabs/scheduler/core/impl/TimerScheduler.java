@@ -3,14 +3,20 @@ package ru.digiteklabs.scheduler.core.impl;
 import org.jetbrains.annotations.NotNull;
 import ru.digiteklabs.scheduler.core.api.Scheduler;
 import ru.digiteklabs.scheduler.core.api.SchedulingException;
+import ru.digiteklabs.scheduler.job.api.CheckpointStore;
 import ru.digiteklabs.scheduler.job.api.Job;
+import ru.digiteklabs.scheduler.job.api.JobHints;
 import ru.digiteklabs.scheduler.job.api.JobObserver;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * An implementation of a scheduler based on Timer usage
+ * An implementation of a scheduler based on Timer usage.
+ *
+ * A timer and time are taken from a clock, normally the system one,
+ * so the same scheduler can run in virtual time of a Simulation.
  *
  * This class is thread safe.
  *
@@ -21,7 +27,7 @@ public class TimerScheduler implements Scheduler, JobObserver {
     /**
      * Type describing job status, whether it's just planned, or on the run, or finished.
      */
-    private static enum JobStatus {
+    public static enum JobStatus {
         /**
          * Job should be run in the future because of its planned time.
          * Its JobTask is scheduled by the timer
@@ -40,7 +46,161 @@ public class TimerScheduler implements Scheduler, JobObserver {
         /**
          * Job is finished. May be it will be run again in the future.
          */
-        FINISHED
+        FINISHED,
+        /**
+         * Job is paused and should not be run until it's resumed.
+         * Its JobTask is not scheduled by the timer
+         */
+        PAUSED
+    }
+
+    /**
+     * An order in which ready jobs wait for executor threads
+     */
+    public static enum DispatchOrder {
+        /**
+         * Jobs are run in order of readiness
+         */
+        FIFO,
+        /**
+         * Jobs with earlier deadlines are run first, jobs without deadlines go last in order of readiness
+         */
+        EARLIEST_DEADLINE_FIRST
+    }
+
+    /**
+     * A listener of scheduling changes which jobs do not report to their observers
+     */
+    public static interface ScheduleListener {
+
+        /**
+         * Called when a run of a job is finished and the job is planned again or kept as finished,
+         * and when a job is removed from scheduling by any reason. A planned time of the job is already changed.
+         * It can be called with internal locks held, so it must be short and must not change scheduling
+         *
+         * @param job a job
+         */
+        void scheduleChanged(Job job);
+    }
+
+    /**
+     * A key of time index, a planned time plus a unique sequence number to order tasks with equal times.
+     *
+     * This class is immutable
+     */
+    private static final class TimeKey implements Comparable<TimeKey> {
+
+        private final long time;
+
+        private final long sequence;
+
+        TimeKey(final long time, final long sequence) {
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(TimeKey other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Dependencies and other user-given state of a scheduled job, shared by all its tasks.
+     *
+     * Changed with jobTaskMap lock held, dependency sets can be read without locking
+     */
+    private static final class JobNode implements Comparable<JobNode> {
+
+        /**
+         * Jobs that must be completed before this job is run, the shared empty set until one is added.
+         * Changed with jobTaskMap lock held, read without it
+         */
+        private volatile Set<Job> required = Collections.emptySet();
+
+        /**
+         * Jobs that require this job, the shared empty set until one is added.
+         * Changed with jobTaskMap lock held, read without it
+         */
+        private volatile Set<Job> successors = Collections.emptySet();
+
+        /**
+         * A position in a topological order of all scheduled jobs, a required job always has a lower one.
+         * Guarded by jobTaskMap
+         */
+        private long order;
+
+        /**
+         * Tags of the job or null if it has none, guarded by jobTaskMap
+         */
+        private Set<String> tags = null;
+
+        /**
+         * True if runs of the job are paused, guarded by jobTaskMap
+         */
+        private boolean paused = false;
+
+        /**
+         * An offset in ms to add to the planned time when the job is resumed, guarded by jobTaskMap
+         */
+        private long delay = 0;
+
+        /**
+         * A delay in ms within a start tolerance of the job added to each of its planned times, guarded by jobTaskMap
+         */
+        private long startOffset = 0;
+
+        /**
+         * A unique ID of the job in traces
+         */
+        private final long id;
+
+        JobNode(final Collection<Job> required, final long order, final long id) {
+            if (!required.isEmpty()) {
+                this.required = newJobSet();
+                this.required.addAll(required);
+            }
+            this.order = order;
+            this.id = id;
+        }
+
+        static private Set<Job> newJobSet() {
+            return Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
+        }
+
+        /**
+         * Adds a required job, called with jobTaskMap lock held.
+         * A set is allocated on the first addition and kept afterwards,
+         * so a reader never misses an addition to a replaced set
+         */
+        boolean addRequired(final Job job) {
+            if (required == Collections.<Job>emptySet())
+                required = newJobSet();
+            return required.add(job);
+        }
+
+        /**
+         * Adds a successor job, called with jobTaskMap lock held
+         */
+        boolean addSuccessor(final Job job) {
+            if (successors == Collections.<Job>emptySet())
+                successors = newJobSet();
+            return successors.add(job);
+        }
+
+        /**
+         * Gets tags of the job, called with jobTaskMap lock held
+         */
+        Set<String> getTags() {
+            return tags == null ? Collections.<String>emptySet() : tags;
+        }
+
+        @Override
+        public int compareTo(JobNode other) {
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
     }
 
     /**
@@ -60,15 +220,60 @@ public class TimerScheduler implements Scheduler, JobObserver {
         private volatile JobStatus status;
 
         /**
-         * A set of job successors that depend on the considered job,
-         * conditionally thread-safe except iterators
+         * True if this task is no longer in jobTaskMap, so its status is not counted in metrics.
+         * Guarded by this
+         */
+        private boolean retired = false;
+
+        /**
+         * A moment in ms when the planned time of this task is reached, or it was scheduled if it is later
+         */
+        private volatile long dueTime;
+
+        /**
+         * A key of this task in timeIndex, set when it is scheduled
+         */
+        private volatile TimeKey timeKey = null;
+
+        /**
+         * True if the job run is already submitted to the executor, so it's not submitted twice
+         * when the timer and a finished required job try to execute it concurrently.
+         * Guarded by this
+         */
+        private boolean dispatched = false;
+
+        /**
+         * True from a moment a trigger asks a rate limiter for a token until the limiter hands the task
+         * to dispatch(), so concurrent triggers neither take a second token nor wait twice.
+         * Guarded by this
+         */
+        private boolean limited = false;
+
+        /**
+         * Dependencies of the job, shared with the previous and the next tasks of the same job
+         */
+        private final JobNode node;
+
+        /**
+         * True if this task waits in the clock timer, so it can be cancelled.
+         * Guarded by this
          */
-        private final Set<Job> successors = Collections.synchronizedSet(new HashSet<Job>());
+        private boolean scheduled = false;
 
-        JobTask(final Job job) {
+        JobTask(final Job job, final JobNode node) {
             this.job = job;
+            this.node = node;
             ready = false;
             status = JobStatus.FUTURE;
+            statusChanged(this, null, JobStatus.FUTURE);
+        }
+
+        /**
+         * Constructs a task for the next run of a job, keeping dependencies of its previous task
+         * @param previous a task of the previous run
+         */
+        JobTask(final JobTask previous) {
+            this(previous.job, previous.node);
         }
 
         void setReadyStatus(boolean ready) {
@@ -80,16 +285,33 @@ public class TimerScheduler implements Scheduler, JobObserver {
             return status;
         }
 
-        void addSuccessor(Job successor) {
-            successors.add(successor);
+        private synchronized void setExecutionStatus(final JobStatus status) {
+            if (!retired)
+                statusChanged(this, this.status, status);
+            this.status = status;
+        }
+
+        /**
+         * Should be called when this task is removed or replaced in jobTaskMap
+         */
+        synchronized void retire() {
+            if (!retired) {
+                retired = true;
+                statusChanged(this, status, null);
+            }
         }
 
-        void removeSuccessor(Job successor) {
-            successors.remove(successor);
+        /**
+         * Records an event of this task if a trace is recorded
+         */
+        void trace(final TraceRecorder.Kind kind) {
+            final TraceRecorder recorder = tracer;
+            if (recorder != null)
+                recorder.record(kind, node.id);
         }
 
         boolean hasSuccessors() {
-            return !successors.isEmpty();
+            return !node.successors.isEmpty();
         }
 
         /**
@@ -97,13 +319,11 @@ public class TimerScheduler implements Scheduler, JobObserver {
          * A successor is a job which has this job as a prerequisite
          */
         void trySuccessorsExecution() {
-            // Iteration requires external synchronization here
-            synchronized(successors) {
-                for (Job successor : successors) {
-                    final JobTask jt = jobTaskMap.get(successor);
-                    if (jt != null)
-                        jt.tryExecution();
-                }
+            // Concurrent set iterators are weakly consistent, no synchronization is required
+            for (Job successor : node.successors) {
+                final JobTask jt = jobTaskMap.get(successor);
+                if (jt != null)
+                    jt.tryExecution();
             }
         }
 
@@ -111,141 +331,1546 @@ public class TimerScheduler implements Scheduler, JobObserver {
          * Checks whether job is ready to run and run it if it's ready
          */
         void tryExecution() {
+            tryExecution(clock.currentTimeMillis());
+        }
+
+        /**
+         * Checks whether job is ready to run and run it if it's ready
+         * @param since a moment in ms from which a dispatch latency is counted if the job runs now
+         */
+        private void tryExecution(final long since) {
             if (status != JobStatus.NOT_READY)
                 return;
             ready = job.getReadyStatus();
             if (!ready)
                 return;
-            for (Job required: job.getRequiredJobs()) {
+            for (Job required: node.required) {
                 final JobTask jt = jobTaskMap.get(required);
                 if (jt == null || jt.getExecutionStatus() != JobStatus.FINISHED)
                     return;
             }
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    status = JobStatus.RUN;
-                    job.beforeRun();
-                    job.run();
-                    job.afterRun();
-                    status = JobStatus.FINISHED;
-                    reschedule(job);
+            trace(TraceRecorder.Kind.READY);
+            final String key = hints(job).getRateLimitKey();
+            final RateLimiter limiter = key == null ? null : rateLimiters.get(key);
+            if (limiter != null) {
+                synchronized (this) {
+                    // Only one trigger asks the limiter
+                    if (dispatched || limited)
+                        return;
+                    limited = true;
                 }
-            });
+                if (!limiter.acquire(this, since))
+                    return;
+            }
+            dispatch(since);
+        }
+
+        /**
+         * Submits a job run to the executor unless it's already submitted, or the task is paused or removed
+         * @param since a moment in ms from which a dispatch latency is counted
+         */
+        private void dispatch(final long since) {
+            synchronized (this) {
+                // A task which is not dispatched now, e.g. paused, asks a limiter again when it's ready
+                limited = false;
+                // Status is checked again because the task can be paused or removed concurrently
+                if (dispatched || retired || status != JobStatus.NOT_READY)
+                    return;
+                dispatched = true;
+            }
+            trace(TraceRecorder.Kind.DISPATCH);
+            final JobRun run = new JobRun(this, since);
+            final ResourcePool pool = resources;
+            if (pool == null || pool.acquire(run)) {
+                metrics.executionSubmitted();
+                executor.execute(run);
+            }
         }
 
         @Override
         public void run() {
-            status = JobStatus.NOT_READY;
-            tryExecution();
+            synchronized (this) {
+                // The task can be cancelled after the timer has started it, or a virtual timer runs cancelled tasks
+                if (!scheduled)
+                    return;
+                scheduled = false;
+                metrics.taskUnscheduled();
+                setExecutionStatus(JobStatus.NOT_READY);
+            }
+            trace(TraceRecorder.Kind.TIMER);
+            tryExecution(dueTime);
+        }
+
+        /**
+         * Marks this task as waiting in the clock timer, should be called before it's given to the timer
+         */
+        synchronized void scheduled() {
+            scheduled = true;
+        }
+
+        /**
+         * Prevents this task from being run, a run which is already submitted to the executor is not affected
+         * @return true if a timer entry of this task is released
+         */
+        synchronized boolean pause() {
+            if (dispatched || (status != JobStatus.FUTURE && status != JobStatus.NOT_READY))
+                return false;
+            final boolean released = status == JobStatus.FUTURE && cancel();
+            setExecutionStatus(JobStatus.PAUSED);
+            return released;
+        }
+
+        @Override
+        public boolean cancel() {
+            super.cancel();
+            synchronized (this) {
+                if (!scheduled)
+                    return false;
+                scheduled = false;
+            }
+            metrics.taskUnscheduled();
+            return true;
         }
     }
 
     /**
-     * Timer is used for scheduling initial job checking when its planned time is reached.
+     * A token bucket limiting a rate of runs of jobs with one rate limit key.
      *
-     * Timer class is thread-safe
-     */
-    private final Timer timer = new Timer();
-
-    /**
-     * Executor is used for execution of jobs run() methods
+     * Ready jobs which find no token wait in a queue without taking executor threads,
+     * a timer task dispatches them as soon as tokens are refilled.
      *
-     * Thread pool based implementations are thread safe
+     * This class is thread-safe
      */
-    private final ExecutorService executor;
+    private final class RateLimiter {
 
-    /**
-     * Binds Jobs to JobTasks with all auxiliary information about this job
-     *
-     * Concurrent hash map is thread safe. However, it includes some invariants that must be obeyed:<ul>
-     *     <li>if job is inside than its required jobs are also inside</li>
-     * </ul>
-     */
-    private final ConcurrentMap<Job, JobTask> jobTaskMap = new ConcurrentHashMap<Job, JobTask>();
+        /**
+         * Tokens added per ms, guarded by this
+         */
+        private double rate;
 
-    /**
-     * Optional constructor based on a custom executor
-     *
-     * @param executor a base executor for the scheduler
-     */
-    protected TimerScheduler(@NotNull final ExecutorService executor) {
-        this.executor = executor;
+        // Guarded by this
+        private double capacity;
+
+        // Guarded by this
+        private double tokens;
+
+        /**
+         * A moment in ms when tokens were refilled last time, guarded by this
+         */
+        private long updated;
+
+        /**
+         * Waiting tasks in order of arrival with moments they became ready, guarded by this
+         */
+        private final Map<JobTask, Long> waiting = new LinkedHashMap<JobTask, Long>();
+
+        // Guarded by this
+        private boolean wakeupScheduled = false;
+
+        /**
+         * True if the limit is removed, then all tasks pass, guarded by this
+         */
+        private boolean removed = false;
+
+        RateLimiter(final double permitsPerSecond, final int burst) {
+            rate = permitsPerSecond / 1000.0;
+            capacity = burst;
+            tokens = burst;
+            updated = clock.currentTimeMillis();
+        }
+
+        /**
+         * Changes limit parameters keeping waiting tasks
+         */
+        void configure(final double permitsPerSecond, final int burst) {
+            synchronized (this) {
+                refill();
+                rate = permitsPerSecond / 1000.0;
+                capacity = burst;
+                tokens = Math.min(tokens, capacity);
+            }
+            release();
+        }
+
+        private void refill() {
+            final long now = clock.currentTimeMillis();
+            if (now > updated) {
+                tokens = Math.min(capacity, tokens + (now - updated) * rate);
+                updated = now;
+            }
+        }
+
+        /**
+         * Takes a token for a task, or puts the task to the queue if there are no tokens or other tasks wait
+         * @param jt a ready task
+         * @param since a moment in ms from which a dispatch latency is counted
+         * @return true if a task can be dispatched now
+         */
+        synchronized boolean acquire(final JobTask jt, final long since) {
+            if (removed)
+                return true;
+            refill();
+            if (waiting.isEmpty() && tokens >= 1.0) {
+                tokens -= 1.0;
+                return true;
+            }
+            if (!waiting.containsKey(jt)) {
+                waiting.put(jt, since);
+                metrics.executionDeferred();
+            }
+            scheduleWakeup();
+            return false;
+        }
+
+        /**
+         * Schedules release() for a moment when the next token is ready, always called with this lock held
+         */
+        private void scheduleWakeup() {
+            if (wakeupScheduled || waiting.isEmpty())
+                return;
+            wakeupScheduled = true;
+            final long delay = (long) Math.ceil((1.0 - tokens) / rate);
+            clock.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    release();
+                }
+            }, clock.currentTimeMillis() + Math.max(0, delay));
+        }
+
+        /**
+         * Dispatches waiting tasks while there are tokens, a task removed from scheduling while waiting
+         * spends its token anyway
+         */
+        void release() {
+            final List<Map.Entry<JobTask, Long>> released = new ArrayList<Map.Entry<JobTask, Long>>();
+            synchronized (this) {
+                wakeupScheduled = false;
+                refill();
+                final Iterator<Map.Entry<JobTask, Long>> iterator = waiting.entrySet().iterator();
+                while (iterator.hasNext() && (removed || tokens >= 1.0)) {
+                    released.add(iterator.next());
+                    iterator.remove();
+                    tokens -= 1.0;
+                }
+                if (!removed)
+                    scheduleWakeup();
+            }
+            for (Map.Entry<JobTask, Long> entry: released)
+                entry.getKey().dispatch(entry.getValue());
+        }
+
+        /**
+         * Removes the limit, dispatching all waiting tasks
+         */
+        void remove() {
+            synchronized (this) {
+                removed = true;
+            }
+            release();
+        }
     }
 
     /**
-     * Constructs a timer scheduler with a given thread number.
+     * CPU slots and a memory budget shared by running jobs.
      *
-     * The scheduler will be based on fixed thread pool
+     * A ready task takes resources declared by its job before its run is submitted to the executor
+     * and gives them back when the run is finished or skipped. Runs which don't fit wait in order of readiness.
+     * When resources are freed, waiting runs are packed by first fit, so small jobs fill slots
+     * a big one cannot use. A run at the head of the queue which is bypassed MAX_BYPASS times reserves
+     * resources, and nothing else is submitted until it fits.
      *
-     * @param threadNumber a necessary thread number
+     * Requirements above the whole capacity are reduced to it, so such a job runs alone
      */
-    public TimerScheduler(final int threadNumber) {
-        this(Executors.newFixedThreadPool(threadNumber));
-    }
+    private final class ResourcePool {
 
-    /**
-     * Constructs a timer scheduler with one thread
-     *
-     */
-    public TimerScheduler() {
-        this(1);
-    }
+        // Guarded by this
+        private int cpuSlots;
 
-    /**
-     * Called when a given job changes its progress.
-     *
-     * @param job      a given job
-     * @param progress job's progress
-     */
-    @Override
-    public void progressChanged(Job job, int progress) {
-        // DO NOTHING
-    }
+        // Guarded by this
+        private long heapBudget;
 
-    /**
-     * Called when a given job changes its ready status.
-     *
-     * @param job   a given job
-     * @param ready true if job is ready to run, false otherwise
-     */
-    @Override
-    public void readyChanged(Job job, boolean ready) {
-        final JobTask jt = jobTaskMap.get(job);
-        if (jt != null)
-            jt.setReadyStatus(ready);
-    }
+        // Guarded by this
+        private int cpuUsed = 0;
 
-    /**
-     * Register a new job for scheduling.
-     * <p/>
-     * The job should not be accepted for scheduling if a scheduler cannot run it ever.
-     * It may happen if its planned time is null or its required job list includes non-scheduled jobs.
-     *
-     * @param job a new job
-     * @return true if job is accepted for scheduling, false if this scheduler already has accepted the job.
+        // Guarded by this
+        private long heapUsed = 0;
+
+        /**
+         * Runs waiting for resources in order of arrival, guarded by this
+         */
+        private final LinkedList<JobRun> waiting = new LinkedList<JobRun>();
+
+        /**
+         * A number of runs submitted before the head of waiting runs since it became the head, guarded by this
+         */
+        private int bypassed = 0;
+
+        ResourcePool(final int cpuSlots, final long heapBudget) {
+            this.cpuSlots = cpuSlots;
+            this.heapBudget = heapBudget;
+        }
+
+        /**
+         * Changes capacity keeping taken resources and waiting runs
+         */
+        void configure(final int cpuSlots, final long heapBudget) {
+            final List<JobRun> released = new ArrayList<JobRun>();
+            synchronized (this) {
+                this.cpuSlots = cpuSlots;
+                this.heapBudget = heapBudget;
+                pack(released);
+            }
+            submit(released);
+        }
+
+        private boolean fits(final JobRun run) {
+            return cpuUsed + Math.min(run.cpu, cpuSlots) <= cpuSlots
+                    && heapUsed + Math.min(run.heap, heapBudget) <= heapBudget;
+        }
+
+        private void take(final JobRun run) {
+            run.cpu = Math.min(run.cpu, cpuSlots);
+            run.heap = Math.min(run.heap, heapBudget);
+            run.pool = this;
+            cpuUsed += run.cpu;
+            heapUsed += run.heap;
+        }
+
+        /**
+         * Takes resources for a run, or puts the run to the queue if they are not enough
+         * or the head of the queue reserves them
+         * @param run a run of a ready task
+         * @return true if a run can be submitted now
+         */
+        synchronized boolean acquire(final JobRun run) {
+            if (fits(run) && (waiting.isEmpty() || bypassed < MAX_BYPASS)) {
+                if (!waiting.isEmpty())
+                    bypassed++;
+                take(run);
+                return true;
+            }
+            if (waiting.isEmpty())
+                bypassed = 0;
+            waiting.add(run);
+            metrics.executionHeld();
+            return false;
+        }
+
+        /**
+         * Gives back resources of a finished or skipped run and submits waiting runs which fit now
+         * @param run a run which took resources from this pool
+         */
+        void release(final JobRun run) {
+            final List<JobRun> released = new ArrayList<JobRun>();
+            synchronized (this) {
+                cpuUsed -= run.cpu;
+                heapUsed -= run.heap;
+                pack(released);
+            }
+            submit(released);
+        }
+
+        /**
+         * Takes resources for waiting runs by first fit, always called with this lock held.
+         * Runs of tasks removed from scheduling are dropped
+         * @param released a list to add runs to submit
+         */
+        private void pack(final List<JobRun> released) {
+            boolean head = true;
+            final Iterator<JobRun> iterator = waiting.iterator();
+            while (iterator.hasNext() && (head || bypassed < MAX_BYPASS)) {
+                final JobRun run = iterator.next();
+                final boolean retired;
+                synchronized (run.jt) {
+                    retired = run.jt.retired;
+                }
+                if (retired) {
+                    // Not submitted, so not counted in metrics
+                    iterator.remove();
+                } else if (fits(run)) {
+                    iterator.remove();
+                    take(run);
+                    released.add(run);
+                    if (head)
+                        bypassed = 0;
+                    else
+                        bypassed++;
+                } else {
+                    head = false;
+                }
+            }
+        }
+
+        private void submit(final List<JobRun> released) {
+            for (JobRun run: released) {
+                metrics.executionSubmitted();
+                executor.execute(run);
+            }
+        }
+    }
+
+    /**
+     * Admission control of jobs with deadlines for earliest deadline first dispatching.
+     *
+     * Expected durations of admitted jobs are kept by their deadlines. A new job is admitted if it can finish
+     * by its deadline when started at its planned time, and if for its deadline and each later one
+     * all admitted jobs with deadlines up to it, with the new one, fit into the time left before it
+     * on all threads together. This is a necessary condition for a set of jobs to meet their deadlines.
+     * Jobs without deadlines or expected durations are ignored by the check, including running ones,
+     * so a job admitted behind them can still miss its deadline.
+     * A job is released when its run is finished or it's removed, a recurring job is admitted again without checks.
+     *
+     * Admitted jobs are kept in a treap ordered by deadline, each subtree keeps a sum of durations
+     * and a minimum slack of its jobs, so a check costs O(log n) expected for n admitted jobs.
+     *
+     * This class is thread-safe
+     */
+    private static final class DeadlineAdmission {
+
+        /**
+         * A node of a treap of admitted jobs. A slack of a job in a subtree is its deadline times
+         * the thread number minus durations of jobs of the subtree up to it, inclusive
+         */
+        private final class Node {
+
+            private final TimeKey key;
+
+            private final long duration;
+
+            private final long priority;
+
+            private Node left = null, right = null;
+
+            /**
+             * A sum of durations and a minimum slack of jobs in the subtree
+             */
+            private long sum, slack;
+
+            Node(final TimeKey key, final long duration) {
+                this.key = key;
+                this.duration = duration;
+                // A hash of a unique sequence instead of a random number, so a shape is deterministic
+                priority = key.sequence * 0x9E3779B97F4A7C15L;
+                update();
+            }
+
+            void update() {
+                final long upTo = sum(left) + duration;
+                sum = upTo + sum(right);
+                slack = Math.min(Math.min(slack(left), key.time * threads - upTo), slack(right) - upTo);
+            }
+        }
+
+        private final int threads;
+
+        /**
+         * A root of the treap of admitted jobs, guarded by this
+         */
+        private Node root = null;
+
+        /**
+         * Keys of admitted jobs in the treap, guarded by this
+         */
+        private final Map<Job, TimeKey> keys = new HashMap<Job, TimeKey>();
+
+        // Guarded by this
+        private long sequence = 0;
+
+        DeadlineAdmission(final int threads) {
+            this.threads = threads;
+        }
+
+        static private long sum(final Node node) {
+            return node == null ? 0 : node.sum;
+        }
+
+        static private long slack(final Node node) {
+            return node == null ? Long.MAX_VALUE : node.slack;
+        }
+
+        static private Node rotateRight(final Node node) {
+            final Node top = node.left;
+            node.left = top.right;
+            top.right = node;
+            node.update();
+            top.update();
+            return top;
+        }
+
+        static private Node rotateLeft(final Node node) {
+            final Node top = node.right;
+            node.right = top.left;
+            top.left = node;
+            node.update();
+            top.update();
+            return top;
+        }
+
+        static private Node insert(final Node node, final Node inserted) {
+            if (node == null)
+                return inserted;
+            if (inserted.key.compareTo(node.key) < 0) {
+                node.left = insert(node.left, inserted);
+                if (node.left.priority > node.priority)
+                    return rotateRight(node);
+            } else {
+                node.right = insert(node.right, inserted);
+                if (node.right.priority > node.priority)
+                    return rotateLeft(node);
+            }
+            node.update();
+            return node;
+        }
+
+        static private Node merge(final Node first, final Node second) {
+            if (first == null)
+                return second;
+            if (second == null)
+                return first;
+            if (first.priority > second.priority) {
+                first.right = merge(first.right, second);
+                first.update();
+                return first;
+            }
+            second.left = merge(first, second.left);
+            second.update();
+            return second;
+        }
+
+        static private Node remove(final Node node, final TimeKey key) {
+            if (node == null)
+                return null;
+            final int comparison = key.compareTo(node.key);
+            if (comparison == 0)
+                return merge(node.left, node.right);
+            if (comparison < 0)
+                node.left = remove(node.left, key);
+            else
+                node.right = remove(node.right, key);
+            node.update();
+            return node;
+        }
+
+        /**
+         * Checks whether a job can meet its deadline and admits it if so,
+         * a job without a deadline or an expected duration is always admitted without tracking
+         * @param job a job
+         * @param now a current time in ms
+         * @return true if the job is admitted
+         */
+        synchronized boolean admit(final Job job, final long now) {
+            final JobHints hints = hints(job);
+            final Date deadline = hints.getDeadline();
+            final long duration = hints.getExpectedDuration();
+            if (deadline == null || duration <= 0)
+                return true;
+            if (Math.max(now, job.getPlannedTime().getTime()) + duration > deadline.getTime())
+                return false;
+            final TimeKey key = new TimeKey(deadline.getTime(), ++sequence);
+            // Durations of jobs with earlier deadlines and a minimum slack of jobs with later ones
+            long before = 0, later = Long.MAX_VALUE;
+            for (Node node = root; node != null; ) {
+                if (key.compareTo(node.key) < 0) {
+                    final long upTo = before + sum(node.left) + node.duration;
+                    later = Math.min(later, Math.min(node.key.time * threads - upTo, slack(node.right) - upTo));
+                    node = node.left;
+                } else {
+                    before += sum(node.left) + node.duration;
+                    node = node.right;
+                }
+            }
+            if (before + duration > (key.time - now) * threads || later - duration < now * threads)
+                return false;
+            root = insert(root, new Node(key, duration));
+            keys.put(job, key);
+            return true;
+        }
+
+        /**
+         * Admits the next run of a recurring job without checks
+         * @param job a job
+         */
+        synchronized void readmit(final Job job) {
+            final JobHints hints = hints(job);
+            final Date deadline = hints.getDeadline();
+            final long duration = hints.getExpectedDuration();
+            if (deadline == null || duration <= 0 || keys.containsKey(job))
+                return;
+            final TimeKey key = new TimeKey(deadline.getTime(), ++sequence);
+            root = insert(root, new Node(key, duration));
+            keys.put(job, key);
+        }
+
+        /**
+         * Releases a job whose run is finished or which is removed
+         * @param job a job
+         */
+        synchronized void release(final Job job) {
+            final TimeKey key = keys.remove(job);
+            if (key != null)
+                root = remove(root, key);
+        }
+    }
+
+    /**
+     * Orders runs in an executor queue by deadlines, then by dispatch order.
+     * Backup runs hold up successors of slow jobs, so they go first
+     */
+    static private final Comparator<Runnable> DEADLINE_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable first, Runnable second) {
+            final long firstDeadline = first instanceof JobRun ? ((JobRun) first).deadline : Long.MIN_VALUE;
+            final long secondDeadline = second instanceof JobRun ? ((JobRun) second).deadline : Long.MIN_VALUE;
+            if (firstDeadline != secondDeadline)
+                return firstDeadline < secondDeadline ? -1 : 1;
+            final long firstSequence = first instanceof JobRun ? ((JobRun) first).sequence : 0;
+            final long secondSequence = second instanceof JobRun ? ((JobRun) second).sequence : 0;
+            return firstSequence < secondSequence ? -1 : (firstSequence == secondSequence ? 0 : 1);
+        }
+    };
+
+    /**
+     * Durations of recent successful runs of idempotent jobs of one class.
+     *
+     * This class is thread-safe
+     */
+    private static final class RunHistory {
+
+        /**
+         * Durations in ns in a ring, guarded by this
+         */
+        private final long[] durations = new long[HISTORY_SIZE];
+
+        // Guarded by this
+        private int size = 0;
+
+        // Guarded by this
+        private int next = 0;
+
+        synchronized void add(final long nanos) {
+            durations[next] = nanos;
+            next = (next + 1) % HISTORY_SIZE;
+            size = Math.min(size + 1, HISTORY_SIZE);
+        }
+
+        /**
+         * Gets a percentile of recent durations
+         * @param percentile a percentile from 0 to 100
+         * @return a duration in ns, or -1 if there are less than MIN_HISTORY durations
+         */
+        synchronized long percentile(final double percentile) {
+            if (size < MIN_HISTORY)
+                return -1;
+            final long[] sorted = Arrays.copyOf(durations, size);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(percentile / 100.0 * size) - 1)];
+        }
+    }
+
+    /**
+     * A speculative execution of a run of an idempotent job.
+     *
+     * Started by the timer when a run takes longer than a percentile of recent runs of its job class,
+     * it calls run() of the job once more in another executor thread. The first call which returns wins:
+     * the other one is interrupted and its result or exception is ignored. A run which fails wins
+     * like a successful one, a failed backup is ignored. A backup takes no CPU slots or memory from a pool.
+     * A won run is finished by the winning call at once, so successors are released without waiting
+     * for the other call. Only a recurring job is rescheduled by the last call to return,
+     * so its next run never overlaps a call of the previous one.
+     *
+     * This class is thread-safe
+     */
+    private final class Speculation extends TimerTask {
+
+        private final JobRun run;
+
+        /**
+         * A start of the first call in ns
+         */
+        private final long begin = System.nanoTime();
+
+        /**
+         * A thread calling run() of the job first, or null when the call has returned, guarded by this
+         */
+        private Thread primary = Thread.currentThread();
+
+        /**
+         * A thread of the backup call, or null if it's not started or has returned, guarded by this
+         */
+        private Thread backup = null;
+
+        /**
+         * A number of calls of run() which have not returned yet, guarded by this
+         */
+        private int calls = 1;
+
+        /**
+         * True if one of calls has won, guarded by this
+         */
+        private boolean finished = false;
+
+        /**
+         * True if a won run of a recurring job waits for the other call to be rescheduled, guarded by this
+         */
+        private boolean deferred = false;
+
+        /**
+         * A duration in ns of the call which has won, guarded by this
+         */
+        private long nanos = 0;
+
+        Speculation(final JobRun run) {
+            this.run = run;
+        }
+
+        /**
+         * Launches a backup, called by the timer
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (finished)
+                    return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runBackup();
+                    }
+                });
+                metrics.backupLaunched();
+            } catch (RejectedExecutionException ex) {
+                // The scheduler is shut down, the first call goes on
+            }
+        }
+
+        /**
+         * Makes the first call of run() in the thread of the run
+         */
+        void runPrimary() {
+            final Job job = run.jt.job;
+            boolean success = false;
+            try {
+                job.run();
+                success = true;
+            } catch (RuntimeException ex) {
+                if (primaryReturned(false)) {
+                    run.fail(nanos);
+                    throw ex;
+                }
+            } catch (Error ex) {
+                if (primaryReturned(false)) {
+                    run.fail(nanos);
+                    throw ex;
+                }
+            }
+            if (success && primaryReturned(true))
+                complete();
+            else
+                rescheduleIfLast();
+        }
+
+        private void runBackup() {
+            synchronized (this) {
+                if (finished)
+                    return;
+                backup = Thread.currentThread();
+                calls++;
+            }
+            final long backupBegin = System.nanoTime();
+            boolean success = false;
+            boolean won = false;
+            try {
+                run.jt.job.run();
+                success = true;
+            } catch (RuntimeException ex) {
+                // A failed backup is ignored, the first call goes on
+            } finally {
+                won = backupReturned(success, System.nanoTime() - backupBegin);
+                // Clears an interrupt by the first call
+                Thread.interrupted();
+                if (!won)
+                    rescheduleIfLast();
+            }
+            if (won)
+                complete();
+        }
+
+        /**
+         * Called when the first call of run() returns normally or with an exception
+         * @param success true if the call has returned normally
+         * @return true if the first call wins, false if the backup has already won
+         */
+        private synchronized boolean primaryReturned(final boolean success) {
+            primary = null;
+            calls--;
+            if (finished) {
+                // Clears an interrupt by the backup
+                Thread.interrupted();
+                return false;
+            }
+            finished = true;
+            nanos = System.nanoTime() - begin;
+            cancel();
+            if (backup != null)
+                backup.interrupt();
+            return true;
+        }
+
+        /**
+         * Called when the backup call of run() returns, it can win only by returning normally
+         * @return true if the backup wins
+         */
+        private synchronized boolean backupReturned(final boolean success, final long backupNanos) {
+            backup = null;
+            calls--;
+            if (!success || finished)
+                return false;
+            finished = true;
+            nanos = backupNanos;
+            metrics.backupWon();
+            if (primary != null)
+                primary.interrupt();
+            return true;
+        }
+
+        /**
+         * Finishes a run won by a call which has returned normally.
+         * A recurring job is rescheduled later if the other call is still in progress
+         */
+        private void complete() {
+            final Job job = run.jt.job;
+            boolean success = false;
+            try {
+                job.afterRun();
+                success = true;
+            } finally {
+                if (!success)
+                    run.fail(nanos);
+            }
+            run.complete(nanos);
+            if (job.getPlannedTime() != Job.PLANNED_TIME_NEVER) {
+                synchronized (this) {
+                    if (calls > 0) {
+                        deferred = true;
+                        return;
+                    }
+                }
+            }
+            reschedule(run.jt);
+        }
+
+        /**
+         * Reschedules a recurring job of a won run when the last call has returned
+         */
+        private void rescheduleIfLast() {
+            synchronized (this) {
+                if (!deferred || calls > 0)
+                    return;
+                deferred = false;
+            }
+            reschedule(run.jt);
+        }
+    }
+
+    /**
+     * A run of a job submitted to the executor.
+     *
+     * A simulation starts and finishes a run at different moments of virtual time instead of calling run()
+     */
+    final class JobRun implements Runnable {
+
+        private final JobTask jt;
+
+        /**
+         * A moment in ms from which a dispatch latency is counted
+         */
+        private final long since;
+
+        /**
+         * Resources required by the job, guarded by a resource pool
+         */
+        private int cpu;
+
+        private long heap;
+
+        /**
+         * A pool this run has taken resources from, or null
+         */
+        private ResourcePool pool = null;
+
+        /**
+         * A deadline of the run in ms, or Long.MAX_VALUE if there is none
+         */
+        private final long deadline;
+
+        /**
+         * A dispatch order of the run among runs with the same deadline, 0 if runs are not ordered by deadlines
+         */
+        private final long sequence;
+
+        private JobRun(final JobTask jt, final long since) {
+            this.jt = jt;
+            this.since = since;
+            final JobHints hints = hints(jt.job);
+            this.cpu = Math.max(0, hints.getCpuWeight());
+            this.heap = Math.max(0, hints.getHeapEstimate());
+            final Date deadline = hints.getDeadline();
+            this.deadline = deadline == null ? Long.MAX_VALUE : deadline.getTime();
+            this.sequence = deadlines == null ? 0 : sequenceCounter.incrementAndGet();
+        }
+
+        Job getJob() {
+            return jt.job;
+        }
+
+        /**
+         * Starts a run, a job itself is not called here
+         * @return true if a run is started, false if it's skipped because the job is removed from scheduling
+         */
+        boolean start() {
+            final boolean retired;
+            synchronized (jt) {
+                // A job removed from scheduling before its run starts is not run
+                retired = jt.retired;
+                if (!retired)
+                    jt.setExecutionStatus(JobStatus.RUN);
+            }
+            if (retired) {
+                metrics.executionSkipped();
+                releaseResources();
+                return false;
+            }
+            jt.trace(TraceRecorder.Kind.START);
+            metrics.executionStarted((clock.currentTimeMillis() - since) * 1000000L);
+            return true;
+        }
+
+        /**
+         * Finishes a successful run started by start(), a job itself is not called here
+         * @param runNanos a run duration in ns
+         */
+        void finish(final long runNanos) {
+            complete(runNanos);
+            reschedule(jt);
+        }
+
+        /**
+         * Finishes a successful run like finish(), but leaves the job to be rescheduled by a caller
+         * @param runNanos a run duration in ns
+         */
+        private void complete(final long runNanos) {
+            metrics.executionFinished(runNanos, true);
+            jt.trace(TraceRecorder.Kind.FINISH);
+            jt.setExecutionStatus(JobStatus.FINISHED);
+            releaseResources();
+            checkDeadline();
+            if (speculationPercentile > 0 && hints(jt.job).isIdempotent())
+                recordRun(jt.job, runNanos);
+        }
+
+        /**
+         * Finishes a failed run started by start(), a job itself is not called here
+         * @param runNanos a run duration in ns
+         */
+        private void fail(final long runNanos) {
+            metrics.executionFinished(runNanos, false);
+            jt.trace(TraceRecorder.Kind.FAIL);
+            releaseResources();
+            checkDeadline();
+        }
+
+        private void releaseResources() {
+            if (pool != null)
+                pool.release(this);
+        }
+
+        /**
+         * Counts a deadline miss and releases admitted time of a finished run
+         */
+        private void checkDeadline() {
+            if (deadline != Long.MAX_VALUE && clock.currentTimeMillis() > deadline)
+                metrics.deadlineMissed();
+            if (deadlines != null)
+                deadlines.release(jt.job);
+        }
+
+        /**
+         * Starts the timer for a backup of this run if the job is idempotent and its class has a history
+         * @return a speculation, or null if there is no backup
+         */
+        private Speculation speculate() {
+            final double percentile = speculationPercentile;
+            if (percentile <= 0 || !hints(jt.job).isIdempotent())
+                return null;
+            final RunHistory history = runHistories.get(jt.job.getClass());
+            final long threshold = history == null ? -1 : history.percentile(percentile);
+            if (threshold < 0)
+                return null;
+            final Speculation speculation = new Speculation(this);
+            clock.schedule(speculation, clock.currentTimeMillis() + (threshold + 999999) / 1000000);
+            return speculation;
+        }
+
+        @Override
+        public void run() {
+            if (!start())
+                return;
+            final Job job = jt.job;
+            final long begin = System.nanoTime();
+            Speculation speculation = null;
+            boolean success = false;
+            try {
+                job.beforeRun();
+                speculation = speculate();
+                if (speculation == null) {
+                    job.run();
+                    job.afterRun();
+                }
+                success = true;
+            } finally {
+                if (!success)
+                    fail(System.nanoTime() - begin);
+            }
+            if (speculation == null)
+                finish(System.nanoTime() - begin);
+            else
+                speculation.runPrimary();
+        }
+    }
+
+    /**
+     * A source of time with a timer used for scheduling initial job checking when its planned time is reached.
+     *
+     * A system clock is thread-safe
+     */
+    private final SchedulerClock clock;
+
+    /**
+     * Executor is used for execution of jobs run() methods
+     *
+     * Thread pool based implementations are thread safe
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Binds Jobs to JobTasks with all auxiliary information about this job
+     *
+     * Concurrent hash map is thread safe. However, it includes some invariants that must be obeyed:<ul>
+     *     <li>if job is inside than its required jobs are also inside</li>
+     * </ul>
+     */
+    private final ConcurrentMap<Job, JobTask> jobTaskMap = new ConcurrentHashMap<Job, JobTask>();
+
+    /**
+     * Counters maintained on hot paths, thread-safe
+     */
+    private final SchedulerMetrics metrics = new SchedulerMetrics();
+
+    private final AtomicLong sequenceCounter = new AtomicLong(0);
+
+    /**
+     * The next topological order position for a new job, guarded by jobTaskMap
+     */
+    private long nextOrder = 0;
+
+    /**
+     * Tasks waiting for their planned time in the timer, ordered by planned time, thread-safe
+     */
+    private final ConcurrentSkipListMap<TimeKey, JobTask> timeIndex = new ConcurrentSkipListMap<TimeKey, JobTask>();
+
+    /**
+     * Tasks of jobTaskMap by their status, filled in constructor, then only read, sets are thread-safe
+     */
+    private final Map<JobStatus, Set<JobTask>> statusIndex = new EnumMap<JobStatus, Set<JobTask>>(JobStatus.class);
+
+    /**
+     * Rate limiters by their keys, thread-safe
+     */
+    private final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+
+    /**
+     * States of functional jobs removed from scheduling, to be reused by submit(), guarded by itself
+     */
+    private final PooledJob.State[] jobPool = new PooledJob.State[JOB_POOL_SIZE];
+
+    // Guarded by jobPool
+    private int pooledJobs = 0;
+
+    /**
+     * A maximum number of functional job states kept for reuse
+     */
+    static private final int JOB_POOL_SIZE = 1024;
+
+    static private final Job[] NO_JOBS = new Job[0];
+
+    /**
+     * Hints of a job which does not implement JobHints, stateless
+     */
+    static private final JobHints NO_HINTS = new JobHints() {
+        @Override
+        public String getRateLimitKey() {
+            return null;
+        }
+
+        @Override
+        public int getCpuWeight() {
+            return 1;
+        }
+
+        @Override
+        public long getHeapEstimate() {
+            return 0;
+        }
+
+        @Override
+        public long getStartTolerance() {
+            return 0;
+        }
+
+        @Override
+        public Date getDeadline() {
+            return null;
+        }
+
+        @Override
+        public long getExpectedDuration() {
+            return 0;
+        }
+
+        @Override
+        public boolean isIdempotent() {
+            return false;
+        }
+
+        @Override
+        public String getCheckpointKey() {
+            return null;
+        }
+
+        @Override
+        public void attachCheckpointStore(CheckpointStore store) {
+            // No checkpoints without a key
+        }
+    };
+
+    /**
+     * Gets scheduling hints of a job
+     * @param job a job
+     * @return the job itself if it implements JobHints, defaults otherwise
+     */
+    static JobHints hints(final Job job) {
+        return job instanceof JobHints ? (JobHints) job : NO_HINTS;
+    }
+
+    /**
+     * A recorder of job events, or null if a trace is not recorded
+     */
+    private volatile TraceRecorder tracer = null;
+
+    // Unconditionally thread-safe
+    private final List<ScheduleListener> listeners = new CopyOnWriteArrayList<ScheduleListener>();
+
+    /**
+     * CPU slots and memory for running jobs, or null if they are not limited
+     */
+    private volatile ResourcePool resources = null;
+
+    /**
+     * Admission control of jobs with deadlines, or null if runs are not ordered by deadlines
+     */
+    private final DeadlineAdmission deadlines;
+
+    /**
+     * A percentile of recent run durations after which a backup of an idempotent job is started, 0 if never
+     */
+    private volatile double speculationPercentile = 0.0;
+
+    /**
+     * A store given to added jobs with checkpoint keys, or null
+     */
+    private volatile CheckpointStore checkpoints = null;
+
+    /**
+     * Recent run durations of idempotent jobs by their classes, thread-safe
+     */
+    private final ConcurrentMap<Class<?>, RunHistory> runHistories = new ConcurrentHashMap<Class<?>, RunHistory>();
+
+    /**
+     * A number of recent runs kept for speculation
+     */
+    static private final int HISTORY_SIZE = 64;
+
+    /**
+     * A minimum number of recent runs to start backups
+     */
+    static private final int MIN_HISTORY = 8;
+
+    /**
+     * A number of times a run waiting for resources can be bypassed by smaller runs before it reserves them
+     */
+    static private final int MAX_BYPASS = 16;
+
+    /**
+     * Scheduled jobs by their tags, without empty sets, guarded by jobTaskMap
+     */
+    private final Map<String, Set<Job>> tagIndex = new HashMap<String, Set<Job>>();
+
+    /**
+     * A minimum number of timer tasks cancelled by group operations to purge the timer
+     */
+    static private final int PURGE_THRESHOLD = 1024;
+
+    /**
+     * Timer tasks cancelled by group operations since the last purge, guarded by jobTaskMap
+     */
+    private int cancelledTasks = 0;
+
+    /**
+     * A fraction of a start tolerance to delay the next job with a tolerance, guarded by jobTaskMap
+     */
+    private double phase = 0.0;
+
+    /**
+     * A step of phase, the golden ratio conjugate, so phases of any number of jobs are spread evenly
+     */
+    static private final double PHASE_STEP = (Math.sqrt(5.0) - 1.0) / 2.0;
+
+    /**
+     * True if new jobs are not accepted and recurring jobs are not rescheduled, set by drain() or shutdown().
+     * Guarded by jobTaskMap for writes
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Notified on status changes while the scheduler is closed, to wake up drain()
+     */
+    private final Object drainMonitor = new Object();
+
+    /**
+     * Constructor based on a custom executor and a custom clock
+     *
+     * @param executor a base executor for the scheduler
+     * @param clock a clock with a timer for the scheduler
+     */
+    TimerScheduler(@NotNull final ExecutorService executor, @NotNull final SchedulerClock clock) {
+        this(executor, clock, null);
+    }
+
+    private TimerScheduler(@NotNull final ExecutorService executor, @NotNull final SchedulerClock clock,
+                           final DeadlineAdmission deadlines) {
+        this.executor = executor;
+        this.clock = clock;
+        this.deadlines = deadlines;
+        for (JobStatus status: JobStatus.values())
+            statusIndex.put(status, Collections.newSetFromMap(new ConcurrentHashMap<JobTask, Boolean>()));
+    }
+
+    /**
+     * Optional constructor based on a custom executor
+     *
+     * @param executor a base executor for the scheduler
+     */
+    protected TimerScheduler(@NotNull final ExecutorService executor) {
+        this(executor, SchedulerClock.system());
+    }
+
+    /**
+     * Constructs a timer scheduler with a given thread number.
+     *
+     * The scheduler will be based on fixed thread pool
+     *
+     * @param threadNumber a necessary thread number
+     */
+    public TimerScheduler(final int threadNumber) {
+        this(Executors.newFixedThreadPool(threadNumber));
+    }
+
+    /**
+     * Constructs a timer scheduler with a given thread number and a given order of ready jobs.
+     *
+     * With EARLIEST_DEADLINE_FIRST order ready jobs wait for a thread in a priority queue by their deadlines,
+     * and addJob() refuses a job with a deadline and an expected duration if it cannot meet the deadline
+     * together with already admitted jobs, see JobHints.getDeadline() and JobHints.getExpectedDuration().
+     * Jobs without deadlines or expected durations are not taken into account, even running ones
+     *
+     * @param threadNumber a necessary thread number
+     * @param order an order of ready jobs
+     */
+    public TimerScheduler(final int threadNumber, @NotNull final DispatchOrder order) {
+        this(order == DispatchOrder.FIFO ? Executors.newFixedThreadPool(threadNumber)
+                : new ThreadPoolExecutor(threadNumber, threadNumber, 0L, TimeUnit.MILLISECONDS,
+                        new PriorityBlockingQueue<Runnable>(11, DEADLINE_ORDER)),
+                SchedulerClock.system(), order == DispatchOrder.FIFO ? null : new DeadlineAdmission(threadNumber));
+    }
+
+    /**
+     * Constructs a resource-aware timer scheduler.
+     *
+     * Threads are created as required, and a job is run only when its CPU weight and heap estimate
+     * fit into free CPU slots and a free part of a memory budget, see setResourceLimits().
+     * So jobs which mostly sleep don't take CPU slots from CPU-heavy ones
+     *
+     * @param cpuSlots a number of CPU slots, normally a number of processors
+     * @param heapBudget a memory budget in bytes
+     */
+    public TimerScheduler(final int cpuSlots, final long heapBudget) {
+        this(Executors.newCachedThreadPool());
+        setResourceLimits(cpuSlots, heapBudget);
+    }
+
+    /**
+     * Constructs a timer scheduler with one thread
+     *
+     */
+    public TimerScheduler() {
+        this(1);
+    }
+
+    /**
+     * Gets metrics of this scheduler, they are updated while the scheduler works
+     *
+     * @return scheduler metrics
+     */
+    public SchedulerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Schedules a task for its job planned time delayed by its start offset, always called with jobTaskMap lock held
+     * @param jt a task just put to jobTaskMap
+     */
+    private void schedule(final JobTask jt) {
+        schedule(jt, jt.job.getPlannedTime().getTime() + jt.node.startOffset);
+    }
+
+    /**
+     * Schedules a task for a given time, always called with jobTaskMap lock held
+     * @param jt a task just put to jobTaskMap
+     * @param time a moment in ms to run the task, normally the job planned time plus its start offset
+     */
+    private void schedule(final JobTask jt, final long time) {
+        jt.dueTime = Math.max(time, clock.currentTimeMillis());
+        metrics.taskScheduled();
+        jt.timeKey = new TimeKey(time, sequenceCounter.incrementAndGet());
+        timeIndex.put(jt.timeKey, jt);
+        jt.scheduled();
+        clock.schedule(jt, time);
+    }
+
+    /**
+     * Gets a start offset of a new job within its start tolerance, always called with jobTaskMap lock held.
+     * Delays of successive jobs are fractions of their tolerances following a golden ratio sequence,
+     * so jobs added for the same moment are spread evenly over their windows, in a deterministic way
+     * @param tolerance a start tolerance of a job in ms
+     * @return a delay in ms, less than a positive tolerance, or 0
+     */
+    private long startDelay(final long tolerance) {
+        if (tolerance <= 0)
+            return 0;
+        phase += PHASE_STEP;
+        if (phase >= 1.0)
+            phase -= 1.0;
+        return (long) (phase * tolerance);
+    }
+
+    /**
+     * Counts timer tasks cancelled by a group operation and purges the timer when they are at least
+     * as many as tasks waiting in it, so a purge costs amortized O(1) per cancelled task.
+     * Always called with jobTaskMap lock held
+     * @param cancelled a number of just cancelled tasks
+     */
+    private void purgeCancelled(final int cancelled) {
+        cancelledTasks += cancelled;
+        if (cancelledTasks >= PURGE_THRESHOLD && cancelledTasks >= metrics.getTimerQueueSize()) {
+            clock.purge();
+            cancelledTasks = 0;
+        }
+    }
+
+    /**
+     * Updates metrics and indexes when a task in jobTaskMap changes its status, always called with task lock held
+     * @param jt a task
+     * @param from a previous status, or null for a new task
+     * @param to a new status, or null for a task leaving jobTaskMap
+     */
+    private void statusChanged(final JobTask jt, final JobStatus from, final JobStatus to) {
+        metrics.statusChanged(from, to);
+        if (from != null) {
+            statusIndex.get(from).remove(jt);
+            if (from == JobStatus.FUTURE && jt.timeKey != null)
+                timeIndex.remove(jt.timeKey);
+        }
+        if (to != null)
+            statusIndex.get(to).add(jt);
+        if (closed) {
+            synchronized (drainMonitor) {
+                drainMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gets scheduled jobs with a given status.
+     *
+     * Costs O(k) for k found jobs, jobs changing their status concurrently may be missed or included
+     *
+     * @param status a given status
+     * @return a list of jobs with a given status
+     */
+    public List<Job> getJobsByStatus(@NotNull final JobStatus status) {
+        return getJobsByStatus(status, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets at most a given number of scheduled jobs with a given status, in no particular order.
+     *
+     * Costs O(k) for k returned jobs, jobs changing their status concurrently may be missed or included
+     *
+     * @param status a given status
+     * @param limit a maximum number of jobs
+     * @return a list of jobs with a given status
+     */
+    public List<Job> getJobsByStatus(@NotNull final JobStatus status, final int limit) {
+        final List<Job> result = new ArrayList<Job>();
+        for (JobTask jt: statusIndex.get(status)) {
+            if (result.size() >= limit)
+                break;
+            result.add(jt.job);
+        }
+        return result;
+    }
+
+    /**
+     * Gets jobs waiting for their planned time in a given range, ordered by time.
+     *
+     * A time of a job is a moment its run is scheduled for: its planned time delayed by its start offset
+     * within a start tolerance and moved by shiftTag(), the same time the timer waits for.
+     * Costs O(log n + k) for k found jobs
+     *
+     * @param from a range start, inclusive, or null for no start
+     * @param to a range end, exclusive
+     * @param limit a maximum number of jobs
+     * @return a list of jobs in FUTURE status scheduled for a time in a given range
+     */
+    public List<Job> getJobsPlannedBetween(final Date from, @NotNull final Date to, final int limit) {
+        if (from != null && from.after(to))
+            return new ArrayList<Job>();
+        final TimeKey toKey = new TimeKey(to.getTime(), Long.MIN_VALUE);
+        final Collection<JobTask> range = from == null ? timeIndex.headMap(toKey).values()
+                : timeIndex.subMap(new TimeKey(from.getTime(), Long.MIN_VALUE), toKey).values();
+        final List<Job> result = new ArrayList<Job>();
+        for (JobTask jt: range) {
+            if (result.size() >= limit)
+                break;
+            result.add(jt.job);
+        }
+        return result;
+    }
+
+    /**
+     * Gets jobs which should start within a given interval from now, ordered by time.
+     *
+     * Costs O(log n + k) for k found jobs
+     *
+     * @param interval an interval in ms
+     * @param limit a maximum number of jobs
+     * @return a list of jobs in FUTURE status scheduled for a time before now plus interval,
+     * see getJobsPlannedBetween()
+     */
+    public List<Job> getJobsDueWithin(final long interval, final int limit) {
+        return getJobsPlannedBetween(null, new Date(clock.currentTimeMillis() + interval), limit);
+    }
+
+    /**
+     * Called when a given job changes its progress.
+     *
+     * @param job      a given job
+     * @param progress job's progress
+     */
+    @Override
+    public void progressChanged(Job job, int progress) {
+        // DO NOTHING
+    }
+
+    /**
+     * Called when a given job changes its ready status.
+     *
+     * @param job   a given job
+     * @param ready true if job is ready to run, false otherwise
+     */
+    @Override
+    public void readyChanged(Job job, boolean ready) {
+        final JobTask jt = jobTaskMap.get(job);
+        if (jt != null)
+            jt.setReadyStatus(ready);
+    }
+
+    /**
+     * Register a new job for scheduling.
+     * <p/>
+     * The job should not be accepted for scheduling if a scheduler cannot run it ever.
+     * It may happen if its planned time is null or its required job list includes non-scheduled jobs.
+     *
+     * @param job a new job
+     * @return true if job is accepted for scheduling, false if this scheduler already has accepted the job.
+     * @throws SchedulingException if the job cannot be accepted for execution, particularly
+     * if its planned time is null, its required job list is null or includes jobs that are not on scheduling list.
+     */
+    @Override
+    public boolean addJob(Job job) throws SchedulingException {
+        return addJob(job, Collections.<String>emptySet());
+    }
+
+    /**
+     * Register a new job for scheduling with given tags.
+     * <p/>
+     * Tags are added at once with the job, so group operations never miss it.
+     * If the job has a start tolerance, each of its runs is delayed by the same part of it,
+     * so jobs added for the same moment are spread over the tolerance window.
+     * If a checkpoint store is set and the job has a checkpoint key, the store is attached to the job,
+     * so it resumes from its last checkpoint.
+     *
+     * @param job a new job
+     * @param tags tags of the job
+     * @return true if job is accepted for scheduling, false if this scheduler already has accepted the job.
      * @throws SchedulingException if the job cannot be accepted for execution, particularly
      * if its planned time is null, its required job list is null or includes jobs that are not on scheduling list.
      */
-    @Override
-    public boolean addJob(Job job) throws SchedulingException {
+    public boolean addJob(@NotNull final Job job, @NotNull final Set<String> tags) throws SchedulingException {
         if (job.getPlannedTime()==Job.PLANNED_TIME_NEVER)
             throw new SchedulingException("Scheduling not permitted because planned time is NEVER");
+        // A checkpoint is loaded before locking, a scheduled job is not touched because it can run now
+        final CheckpointStore store = checkpoints;
+        final JobHints hints = hints(job);
+        if (store != null && hints.getCheckpointKey() != null && !jobTaskMap.containsKey(job))
+            hints.attachCheckpointStore(store);
         // Synchronizing to prevent any magic with jobTaskMap invariants
         synchronized(jobTaskMap) {
+            if (closed)
+                throw new SchedulingException("Scheduling not permitted because scheduler is shut down");
             if (jobTaskMap.get(job) != null)
                 return false;
             if (!jobTaskMap.keySet().containsAll(job.getRequiredJobs()))
                 throw new SchedulingException("Scheduling not permitted because required jobs are not scheduled");
+            if (deadlines != null && !deadlines.admit(job, clock.currentTimeMillis()))
+                throw new SchedulingException("Scheduling not permitted because deadline cannot be met");
             for (Job required : job.getRequiredJobs()) {
-                jobTaskMap.get(required).addSuccessor(job);
+                jobTaskMap.get(required).node.addSuccessor(job);
             }
             job.addObserver(this);
-            final JobTask jt = new JobTask(job);
+            // A new job has no successors, so it can be the last in the topological order
+            final JobNode node = new JobNode(job.getRequiredJobs(), nextOrder++, sequenceCounter.incrementAndGet());
+            node.startOffset = startDelay(hints.getStartTolerance());
+            final JobTask jt = new JobTask(job, node);
             jobTaskMap.put(job, jt);
+            for (String tag: tags)
+                tag(jt, tag);
             //if (job.getPlannedTime().after(calendar.getTime()))
             // if planned time is in the past, task is scheduled for immediate execution
-            timer.schedule(jt, job.getPlannedTime());
+            schedule(jt);
         }
         return true;
     }
@@ -282,19 +1907,754 @@ public class TimerScheduler implements Scheduler, JobObserver {
                 throw new SchedulingException("Unscheduling not permitted because job is running now");
             if (jt.hasSuccessors())
                 throw new SchedulingException("Unscheduling not permitted because job is required by another scheduled job");
+            unschedule(jt);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a task of a job without successors from scheduling, always called with jobTaskMap lock held
+     * @param jt a task from jobTaskMap
+     * @return true if a timer entry of the task is released
+     */
+    private boolean unschedule(final JobTask jt) {
+        final Job job = jt.job;
+        final boolean released = jt.cancel();
+        job.removeObserver(this);
+        jobTaskMap.remove(job);
+        jt.retire();
+        scheduleChanged(job);
+        for (Job required : jt.node.required) {
+            final JobTask rt = jobTaskMap.get(required);
+            // required must be inside because job was inside
+            assert(rt != null);
+            rt.node.successors.remove(job);
+            // A finished functional job is kept only while it's required
+            if (required instanceof PooledJob && rt.getExecutionStatus() == JobStatus.FINISHED
+                    && !rt.hasSuccessors() && required.getPlannedTime() == Job.PLANNED_TIME_NEVER)
+                unschedule(rt);
+        }
+        for (String tag: jt.node.getTags()) {
+            final Set<Job> group = tagIndex.get(tag);
+            group.remove(job);
+            if (group.isEmpty())
+                tagIndex.remove(tag);
+        }
+        if (deadlines != null)
+            deadlines.release(job);
+        if (job instanceof PooledJob)
+            recycle((PooledJob) job);
+        return released;
+    }
+
+    /**
+     * Puts a state of a functional job which is not scheduled to the pool
+     */
+    private void recycle(final PooledJob job) {
+        final PooledJob.State state = job.release();
+        synchronized (jobPool) {
+            if (pooledJobs < JOB_POOL_SIZE)
+                jobPool[pooledJobs++] = state;
+        }
+    }
+
+    /**
+     * Schedules a lightweight one-shot job running a given action at a given time, see submit(Runnable, long, Job...)
+     *
+     * @param action an action to run
+     * @param plannedTime a planned time in ms
+     * @return a handle of the job
+     * @throws SchedulingException if the scheduler is shut down
+     */
+    public Job submit(@NotNull final Runnable action, final long plannedTime) throws SchedulingException {
+        return submit(action, plannedTime, NO_JOBS);
+    }
+
+    /**
+     * Schedules a lightweight one-shot job running a given action when a planned time is reached
+     * and required jobs are finished.
+     * <p/>
+     * The job is created by the scheduler, it's always ready and has no observers. When it's finished
+     * and no scheduled job requires it, or when it's removed, its planned time and required jobs are put
+     * to a pool and reused by the next submit(). Only this state is pooled: each submission still allocates
+     * a handle, a task, a graph node and a time index entry, about 350 bytes, against about 500 bytes
+     * to add and remove a one-shot AbstractJob.
+     * A returned handle is never reused: after its job is removed it's just not scheduled,
+     * and if the job is finished, it's skipped as a required job of a later submission or dependency.
+     *
+     * @param action an action to run
+     * @param plannedTime a planned time in ms
+     * @param requiredJobs scheduled jobs to finish before the action, e.g. handles of other functional jobs
+     * @return a handle of the job
+     * @throws SchedulingException if some required job is not scheduled or the scheduler is shut down
+     */
+    public Job submit(@NotNull final Runnable action, final long plannedTime, @NotNull final Job... requiredJobs)
+            throws SchedulingException {
+        PooledJob.State state = null;
+        synchronized (jobPool) {
+            if (pooledJobs > 0) {
+                state = jobPool[--pooledJobs];
+                jobPool[pooledJobs] = null;
+            }
+        }
+        if (state == null)
+            state = new PooledJob.State();
+        final PooledJob job = new PooledJob(action, plannedTime, requiredJobs, state);
+        try {
+            addJob(job);
+        } catch (SchedulingException ex) {
+            recycle(job);
+            throw ex;
+        }
+        return job;
+    }
+
+    /**
+     * Replan a scheduled job according to its current planned time.
+     * <p/>
+     * Should be called when a job changes its planned time outside of its run,
+     * particularly when a finished job which is still on scheduling list should be run again.
+     * Jobs that require the replanned job should wait until its next run is completed.
+     *
+     * This implementation does nothing for a running job or a job which waits for readiness,
+     * because planned time is checked again after the run.
+     *
+     * @param job a job already accepted for scheduling.
+     * @return true if job is replanned, false if job is not on scheduling list
+     * @throws SchedulingException if the job cannot be replanned, particularly if its planned time is null
+     */
+    @Override
+    public boolean replanJob(Job job) throws SchedulingException {
+        if (job.getPlannedTime()==Job.PLANNED_TIME_NEVER)
+            throw new SchedulingException("Replanning not permitted because planned time is NEVER");
+        // Synchronizing to prevent any magic with jobTaskMap invariants
+        synchronized (jobTaskMap) {
+            final JobTask jt = jobTaskMap.get(job);
+            if (jt == null)
+                return false;
+            final JobStatus status = jt.getExecutionStatus();
+            // A paused job reads its planned time when it's resumed
+            if (status == JobStatus.RUN || status == JobStatus.NOT_READY || status == JobStatus.PAUSED)
+                return true;
             jt.cancel();
-            job.removeObserver(this);
-            jobTaskMap.remove(job);
-            for (Job required : job.getRequiredJobs()) {
-                final JobTask rt = jobTaskMap.get(required);
-                // required must be inside because job was inside
-                assert(rt != null);
-                rt.removeSuccessor(job);
+            final JobTask next = new JobTask(jt);
+            jobTaskMap.put(job, next);
+            jt.retire();
+            if (jt.node.paused)
+                next.pause();
+            else
+                schedule(next);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a dependency between two scheduled jobs.
+     * <p/>
+     * After this call the job cannot be run until the required job is completed,
+     * a run which is already started is not affected.
+     * Dependencies given by getRequiredJobs() of a job are used only when it's added,
+     * then a scheduler keeps its own dependency graph.
+     *
+     * This implementation keeps a topological order of all scheduled jobs and updates it incrementally
+     * (Pearce-Kelly algorithm). If a new dependency agrees with the order, it costs O(1). Otherwise only jobs
+     * between the two in the order which are reachable from one of them are visited and reordered.
+     *
+     * @param job a job already accepted for scheduling
+     * @param required a job already accepted for scheduling which should be completed before the job
+     * @return true if a dependency is added, false if it already exists or the required job
+     * is a finished functional job, see submit()
+     * @throws SchedulingException if either job is not on scheduling list, or the dependency creates a cycle
+     */
+    @Override
+    public boolean addDependency(Job job, Job required) throws SchedulingException {
+        // Synchronizing to prevent any magic with jobTaskMap invariants
+        synchronized (jobTaskMap) {
+            final JobTask jt = jobTaskMap.get(job);
+            final JobTask rt = jobTaskMap.get(required);
+            // A finished functional job is never run again, so it can be already removed
+            if (jt != null && rt == null && required instanceof PooledJob && required.isFinished())
+                return false;
+            if (jt == null || rt == null)
+                throw new SchedulingException("Dependency not permitted because jobs are not scheduled");
+            if (jt.node.required.contains(required))
+                return false;
+            if (job == required)
+                throw new SchedulingException("Dependency not permitted because it creates a cycle");
+            if (rt.node.order > jt.node.order)
+                reorder(rt.node, jt.node);
+            jt.node.addRequired(required);
+            rt.node.addSuccessor(job);
+        }
+        return true;
+    }
+
+    /**
+     * Restores a topological order before adding a dependency from a job with a higher order
+     * to a job with a lower order, always called with jobTaskMap lock held
+     * @param from a node of a required job
+     * @param to a node of a dependent job, to.order &lt; from.order
+     * @throws SchedulingException if the dependency creates a cycle
+     */
+    private void reorder(final JobNode from, final JobNode to) throws SchedulingException {
+        final long lower = to.order, upper = from.order;
+        // Jobs reachable from the dependent one with an order up to the required one
+        final List<JobNode> forward = new ArrayList<JobNode>();
+        final Set<JobNode> visited = new HashSet<JobNode>();
+        final Deque<JobNode> stack = new ArrayDeque<JobNode>();
+        stack.push(to);
+        visited.add(to);
+        while (!stack.isEmpty()) {
+            final JobNode node = stack.pop();
+            forward.add(node);
+            for (Job successor: node.successors) {
+                final JobNode next = jobTaskMap.get(successor).node;
+                if (next == from)
+                    throw new SchedulingException("Dependency not permitted because it creates a cycle");
+                if (next.order < upper && visited.add(next))
+                    stack.push(next);
+            }
+        }
+        // Jobs the required one depends on with an order from the dependent one
+        final List<JobNode> backward = new ArrayList<JobNode>();
+        stack.push(from);
+        visited.add(from);
+        while (!stack.isEmpty()) {
+            final JobNode node = stack.pop();
+            backward.add(node);
+            for (Job predecessor: node.required) {
+                final JobNode previous = jobTaskMap.get(predecessor).node;
+                if (previous.order > lower && visited.add(previous))
+                    stack.push(previous);
+            }
+        }
+        // Backward jobs take the lowest of freed positions keeping their relative order, then forward ones
+        Collections.sort(forward);
+        Collections.sort(backward);
+        final long[] positions = new long[forward.size() + backward.size()];
+        int i = 0;
+        for (JobNode node: backward)
+            positions[i++] = node.order;
+        for (JobNode node: forward)
+            positions[i++] = node.order;
+        Arrays.sort(positions);
+        i = 0;
+        for (JobNode node: backward)
+            node.order = positions[i++];
+        for (JobNode node: forward)
+            node.order = positions[i++];
+    }
+
+    /**
+     * Removes a dependency between two scheduled jobs.
+     * <p/>
+     * The job can be run at once if it was waiting only for the required job.
+     * If the required job is completed, should not be run again and has no other successors,
+     * it's deleted from the scheduling list like a job without successors after its run.
+     *
+     * @param job a job already accepted for scheduling
+     * @param required a job which is required by the job
+     * @return true if a dependency is removed, false if it does not exist
+     */
+    @Override
+    public boolean removeDependency(Job job, Job required) {
+        final JobTask jt;
+        final JobTask rt;
+        // Synchronizing to prevent any magic with jobTaskMap invariants
+        synchronized (jobTaskMap) {
+            jt = jobTaskMap.get(job);
+            rt = jobTaskMap.get(required);
+            if (jt == null || rt == null || !jt.node.required.remove(required))
+                return false;
+            rt.node.successors.remove(job);
+            if (rt.getExecutionStatus() == JobStatus.FINISHED && !rt.hasSuccessors()
+                    && required.getPlannedTime() == Job.PLANNED_TIME_NEVER && required.autoDeletedOnCompletion()) {
+                try {
+                    removeJob(required);
+                } catch (SchedulingException ex) {
+                    // Should not occur
+                    throw new AssertionError("Cannot remove job in TimerScheduler.removeDependency!");
+                }
+            }
+        }
+        jt.tryExecution();
+        return true;
+    }
+
+    /**
+     * Sets a token bucket limit for runs of jobs with a given rate limit key.
+     * <p/>
+     * Each run of such a job takes a token. Tokens are refilled with a given rate up to a given burst,
+     * a bucket is full when a limit is set. A ready job which finds no token waits without taking
+     * an executor thread, waiting jobs are run in order of their readiness as soon as tokens are refilled.
+     * If a limit for a key already exists, its parameters are changed and waiting jobs keep waiting.
+     *
+     * @param key a rate limit key returned by getRateLimitKey() of jobs
+     * @param permitsPerSecond a number of runs per second in a long term
+     * @param burst a maximum number of runs at once
+     */
+    public void setRateLimit(@NotNull final String key, final double permitsPerSecond, final int burst) {
+        if (!(permitsPerSecond > 0.0) || burst < 1)
+            throw new IllegalArgumentException("Rate limit requires a positive rate and burst");
+        final RateLimiter created = new RateLimiter(permitsPerSecond, burst);
+        final RateLimiter existing = rateLimiters.putIfAbsent(key, created);
+        if (existing != null)
+            existing.configure(permitsPerSecond, burst);
+    }
+
+    /**
+     * Removes a limit for runs of jobs with a given rate limit key, waiting jobs are run at once
+     *
+     * @param key a rate limit key
+     * @return true if a limit is removed, false if it does not exist
+     */
+    public boolean removeRateLimit(@NotNull final String key) {
+        final RateLimiter limiter = rateLimiters.remove(key);
+        if (limiter == null)
+            return false;
+        limiter.remove();
+        return true;
+    }
+
+    /**
+     * Starts or stops recording a trace of job events: timer, ready, dispatch, run start and finish.
+     * <p/>
+     * Events are recorded with an ID of a job, unique for this scheduler, and a thread, see TraceRecorder.
+     * A recorder is not closed by the scheduler
+     *
+     * @param recorder a trace recorder, or null to stop recording
+     */
+    public void setTraceRecorder(final TraceRecorder recorder) {
+        tracer = recorder;
+    }
+
+    /**
+     * Adds a listener of scheduling changes, that is finished runs and removals of jobs
+     *
+     * @param listener a listener
+     */
+    public void addScheduleListener(@NotNull final ScheduleListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener of scheduling changes
+     *
+     * @param listener a listener
+     * @return true if the listener is removed, false if it was not added
+     */
+    public boolean removeScheduleListener(@NotNull final ScheduleListener listener) {
+        return listeners.remove(listener);
+    }
+
+    private void scheduleChanged(final Job job) {
+        for (ScheduleListener listener: listeners)
+            listener.scheduleChanged(job);
+    }
+
+    /**
+     * Limits resources of running jobs.
+     * <p/>
+     * Each run takes CPU slots by getCpuWeight() and memory by getHeapEstimate() of its job.
+     * A ready job which does not fit into free resources waits without taking an executor thread.
+     * When a run is finished, waiting jobs are packed into freed resources by first fit in order of their readiness,
+     * a job which is bypassed by smaller ones too many times reserves resources until it fits.
+     * A job requiring more than the whole capacity runs alone.
+     * If limits are already set, they are changed and waiting jobs keep waiting.
+     * <p/>
+     * The executor should have more threads than CPU slots, otherwise jobs with zero CPU weight can take them all
+     *
+     * @param cpuSlots a number of CPU slots, normally a number of processors
+     * @param heapBudget a memory budget in bytes
+     */
+    public void setResourceLimits(final int cpuSlots, final long heapBudget) {
+        if (cpuSlots < 1 || heapBudget < 0)
+            throw new IllegalArgumentException("Resource limits require positive CPU slots and a non-negative budget");
+        synchronized (jobTaskMap) {
+            if (resources == null) {
+                resources = new ResourcePool(cpuSlots, heapBudget);
+                return;
             }
         }
+        resources.configure(cpuSlots, heapBudget);
+    }
+
+    /**
+     * Starts or stops speculative execution of idempotent jobs.
+     * <p/>
+     * Durations of recent successful runs of idempotent jobs are kept by job class, see JobHints.isIdempotent().
+     * When a run of such a job takes longer than a given percentile of them, run() of the job is called again
+     * in another executor thread. The first call which returns wins and finishes the run, so successors are
+     * released, and the other call is interrupted. So a run slowed down by a noisy worker does not hold up
+     * a dependency chain. Backups are not started until a class has at least MIN_HISTORY runs.
+     * Runs in virtual time of a Simulation are not speculated
+     *
+     * @param percentile a percentile of recent run durations from 0 to 100, for example 95, or 0 to stop
+     */
+    public void setSpeculation(final double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("A percentile must be from 0 to 100");
+        speculationPercentile = percentile;
+    }
+
+    /**
+     * Sets a store for checkpoints of jobs added after the call.
+     * <p/>
+     * A job with a checkpoint key gets the store when it's added, see JobHints.getCheckpointKey(),
+     * so a job added again after removal or after a process restart resumes from its last checkpoint
+     * instead of redoing completed stages.
+     *
+     * @param store a checkpoint store, for example FileCheckpointStore, or null to stop attaching
+     */
+    public void setCheckpointStore(final CheckpointStore store) {
+        checkpoints = store;
+    }
+
+    /**
+     * Adds a duration of a successful run of an idempotent job to the history of its class
+     */
+    private void recordRun(final Job job, final long runNanos) {
+        RunHistory history = runHistories.get(job.getClass());
+        if (history == null) {
+            final RunHistory created = new RunHistory();
+            history = runHistories.putIfAbsent(job.getClass(), created);
+            if (history == null)
+                history = created;
+        }
+        history.add(runNanos);
+    }
+
+    /**
+     * Adds a tag to a scheduled job, always called with jobTaskMap lock held
+     * @return true if a tag is added, false if the job already has it
+     */
+    private boolean tag(final JobTask jt, final String tag) {
+        if (jt.node.tags == null)
+            jt.node.tags = new HashSet<String>(4);
+        if (!jt.node.tags.add(tag))
+            return false;
+        Set<Job> group = tagIndex.get(tag);
+        if (group == null) {
+            group = new HashSet<Job>();
+            tagIndex.put(tag, group);
+        }
+        group.add(jt.job);
         return true;
     }
 
+    /**
+     * Adds a tag to a scheduled job, so it's included in group operations with this tag.
+     * <p/>
+     * Tags are kept until the job is removed from the scheduling list.
+     *
+     * @param job a job already accepted for scheduling
+     * @param tag a tag
+     * @return true if a tag is added, false if the job already has it
+     * @throws SchedulingException if the job is not on scheduling list
+     */
+    public boolean tagJob(@NotNull final Job job, @NotNull final String tag) throws SchedulingException {
+        synchronized (jobTaskMap) {
+            final JobTask jt = jobTaskMap.get(job);
+            if (jt == null)
+                throw new SchedulingException("Tagging not permitted because job is not scheduled");
+            return tag(jt, tag);
+        }
+    }
+
+    /**
+     * Removes a tag from a scheduled job
+     *
+     * @param job a job already accepted for scheduling
+     * @param tag a tag
+     * @return true if a tag is removed, false if the job is not scheduled or has no such tag
+     */
+    public boolean untagJob(@NotNull final Job job, @NotNull final String tag) {
+        synchronized (jobTaskMap) {
+            final JobTask jt = jobTaskMap.get(job);
+            if (jt == null || !jt.node.getTags().remove(tag))
+                return false;
+            final Set<Job> group = tagIndex.get(tag);
+            group.remove(job);
+            if (group.isEmpty())
+                tagIndex.remove(tag);
+            return true;
+        }
+    }
+
+    /**
+     * Gets scheduled jobs with a given tag.
+     *
+     * Costs O(k) for k found jobs
+     *
+     * @param tag a tag
+     * @return a list of jobs with a given tag, in no particular order
+     */
+    public List<Job> getJobsByTag(@NotNull final String tag) {
+        synchronized (jobTaskMap) {
+            final Set<Job> group = tagIndex.get(tag);
+            return group == null ? new ArrayList<Job>() : new ArrayList<Job>(group);
+        }
+    }
+
+    /**
+     * Pauses all scheduled jobs with a given tag.
+     * <p/>
+     * A paused job is not run until it's resumed, its timer entry is released.
+     * A run which is already started or submitted to an executor is completed,
+     * then the next run is paused. Jobs requiring a paused job wait for it as usual.
+     *
+     * The operation is atomic with respect to other scheduling operations and costs O(k) for k tagged jobs.
+     *
+     * @param tag a tag
+     * @return a number of jobs paused, not including already paused ones
+     */
+    public int pauseTag(@NotNull final String tag) {
+        synchronized (jobTaskMap) {
+            final Set<Job> group = tagIndex.get(tag);
+            if (group == null)
+                return 0;
+            int paused = 0, released = 0;
+            for (Job job: group) {
+                final JobTask jt = jobTaskMap.get(job);
+                if (jt.node.paused)
+                    continue;
+                jt.node.paused = true;
+                paused++;
+                if (jt.pause())
+                    released++;
+            }
+            purgeCancelled(released);
+            return paused;
+        }
+    }
+
+    /**
+     * Resumes all paused jobs with a given tag.
+     * <p/>
+     * A resumed job is scheduled for its current planned time plus an offset given by shiftTag() while it was paused.
+     * If this time is in the past, the job is run as soon as possible.
+     *
+     * The operation is atomic with respect to other scheduling operations and costs O(k log n) for k tagged jobs.
+     *
+     * @param tag a tag
+     * @return a number of jobs resumed
+     */
+    public int resumeTag(@NotNull final String tag) {
+        synchronized (jobTaskMap) {
+            final Set<Job> group = tagIndex.get(tag);
+            if (group == null)
+                return 0;
+            int resumed = 0;
+            for (Job job: group) {
+                final JobTask jt = jobTaskMap.get(job);
+                if (!jt.node.paused)
+                    continue;
+                jt.node.paused = false;
+                resumed++;
+                final long delay = jt.node.delay;
+                jt.node.delay = 0;
+                // A paused task which has not started yet is replaced, a running or finished one is left as is
+                final Date plannedTime = job.getPlannedTime();
+                if (jt.getExecutionStatus() != JobStatus.PAUSED || plannedTime == Job.PLANNED_TIME_NEVER)
+                    continue;
+                final JobTask next = new JobTask(jt);
+                jobTaskMap.put(job, next);
+                jt.retire();
+                schedule(next, plannedTime.getTime() + jt.node.startOffset + delay);
+            }
+            return resumed;
+        }
+    }
+
+    /**
+     * Moves the next run of all jobs with a given tag by a given offset.
+     * <p/>
+     * A job waiting for its planned time is scheduled again, a paused job gets the offset when it's resumed.
+     * Jobs which are running now or waiting for readiness or required jobs are not moved.
+     * Only the next run is moved, later runs of a recurring job are scheduled for its own planned times.
+     *
+     * The operation is atomic with respect to other scheduling operations and costs O(k log n) for k tagged jobs.
+     *
+     * @param tag a tag
+     * @param offset an offset in ms, negative to run jobs earlier
+     * @return a number of jobs moved
+     */
+    public int shiftTag(@NotNull final String tag, final long offset) {
+        synchronized (jobTaskMap) {
+            final Set<Job> group = tagIndex.get(tag);
+            if (group == null)
+                return 0;
+            int shifted = 0, released = 0;
+            for (Job job: group) {
+                final JobTask jt = jobTaskMap.get(job);
+                if (jt.node.paused) {
+                    jt.node.delay += offset;
+                    shifted++;
+                } else if (jt.getExecutionStatus() == JobStatus.FUTURE && jt.cancel()) {
+                    final JobTask next = new JobTask(jt);
+                    jobTaskMap.put(job, next);
+                    jt.retire();
+                    schedule(next, jt.timeKey.time + offset);
+                    shifted++;
+                    released++;
+                }
+            }
+            purgeCancelled(released);
+            return shifted;
+        }
+    }
+
+    /**
+     * Removes all jobs with a given tag from the scheduling list together with all jobs requiring them,
+     * directly or indirectly.
+     * <p/>
+     * The operation is atomic: either all these jobs are removed, or nothing is changed.
+     * It costs O(k log k) for k removed jobs.
+     *
+     * @param tag a tag
+     * @return a number of removed jobs
+     * @throws SchedulingException if one of these jobs runs now
+     */
+    public int cancelTag(@NotNull final String tag) throws SchedulingException {
+        synchronized (jobTaskMap) {
+            final Set<Job> group = tagIndex.get(tag);
+            if (group == null)
+                return 0;
+            final List<JobTask> subgraph = new ArrayList<JobTask>();
+            final Set<Job> visited = new HashSet<Job>(group);
+            final Deque<Job> stack = new ArrayDeque<Job>(group);
+            while (!stack.isEmpty()) {
+                final JobTask jt = jobTaskMap.get(stack.pop());
+                if (jt.getExecutionStatus() == JobStatus.RUN)
+                    throw new SchedulingException("Cancelling not permitted because job is running now");
+                subgraph.add(jt);
+                for (Job successor: jt.node.successors)
+                    if (visited.add(successor))
+                        stack.push(successor);
+            }
+            // Successors go first in reverse topological order, so a removed job never has successors left
+            Collections.sort(subgraph, new Comparator<JobTask>() {
+                @Override
+                public int compare(JobTask first, JobTask second) {
+                    return second.node.compareTo(first.node);
+                }
+            });
+            int released = 0;
+            for (JobTask jt: subgraph)
+                if (unschedule(jt))
+                    released++;
+            purgeCancelled(released);
+            return subgraph.size();
+        }
+    }
+
+    /**
+     * Shuts this scheduler down.
+     * <p/>
+     * New jobs are not accepted anymore, the timer is stopped and no new runs are started.
+     * Runs which are already started are completed, awaitTermination() waits for them,
+     * until then they are reported by getJobsByStatus(JobStatus.RUN).
+     * All other jobs are removed from the scheduling list, and jobs which should be run again are handed back,
+     * so they can be saved or added to another scheduler in the returned order.
+     * Dependencies are handed back as given by getRequiredJobs() of jobs.
+     *
+     * Repeated calls return an empty list.
+     *
+     * @return jobs which are removed without being run, required jobs go before jobs requiring them
+     */
+    public List<Job> shutdown() {
+        final List<JobTask> pending = new ArrayList<JobTask>();
+        synchronized (jobTaskMap) {
+            closed = true;
+            for (JobTask jt: jobTaskMap.values()) {
+                jt.cancel();
+                jt.job.removeObserver(this);
+                synchronized (jt) {
+                    // A running task is retired when its run is completed
+                    if (jt.getExecutionStatus() != JobStatus.RUN) {
+                        jt.retire();
+                        scheduleChanged(jt.job);
+                        if (jt.job.getPlannedTime() != Job.PLANNED_TIME_NEVER)
+                            pending.add(jt);
+                    }
+                }
+            }
+            jobTaskMap.clear();
+            tagIndex.clear();
+            clock.stop();
+            executor.shutdown();
+        }
+        Collections.sort(pending, new Comparator<JobTask>() {
+            @Override
+            public int compare(JobTask first, JobTask second) {
+                return first.node.compareTo(second.node);
+            }
+        });
+        final List<Job> result = new ArrayList<Job>(pending.size());
+        for (JobTask jt: pending)
+            result.add(jt.job);
+        return result;
+    }
+
+    /**
+     * Drains this scheduler and then shuts it down.
+     * <p/>
+     * New jobs are not accepted anymore and recurring jobs are not run again, but other scheduled jobs
+     * are run as usual until no job is running or waiting for a run before a deadline.
+     * Then shutdown() is called.
+     *
+     * @param timeout a maximum time to wait
+     * @param unit a unit of timeout
+     * @return jobs which are removed without being run, as returned by shutdown()
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Job> drain(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+        // A timeout goes in time of the scheduler clock, so a simulated scheduler is drained in virtual time
+        final long deadline = clock.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (jobTaskMap) {
+            closed = true;
+        }
+        synchronized (drainMonitor) {
+            long remaining = deadline - clock.currentTimeMillis();
+            while (remaining > 0 && !isDrained(deadline)) {
+                clock.await(drainMonitor, remaining);
+                remaining = deadline - clock.currentTimeMillis();
+            }
+        }
+        return shutdown();
+    }
+
+    /**
+     * Checks whether no job is running or waiting for a run before a given deadline
+     * @param deadline a deadline in ms of the scheduler clock
+     * @return true if no job can be run before a deadline
+     */
+    private boolean isDrained(final long deadline) {
+        if (!statusIndex.get(JobStatus.NOT_READY).isEmpty() || !statusIndex.get(JobStatus.RUN).isEmpty())
+            return false;
+        final Map.Entry<TimeKey, JobTask> first = timeIndex.firstEntry();
+        return first == null || first.getKey().time >= deadline;
+    }
+
+    /**
+     * Waits until runs which were in progress on shutdown are completed and scheduler threads are stopped
+     *
+     * @param timeout a maximum time to wait
+     * @param unit a unit of timeout
+     * @return true if this scheduler is terminated, false if the timeout elapsed before
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return true if shutdown() or drain() was called
+     */
+    public boolean isShutdown() {
+        return closed;
+    }
+
     /**
      * Gets information about all scheduled jobs.
      * <p/>
@@ -319,28 +2679,51 @@ public class TimerScheduler implements Scheduler, JobObserver {
      * it should not be run again AND has no successors.
      * Otherwise job must be deleted from the scheduling list manually.
      * 
-     * @param job a just finished job
+     * @param jt a task of a just finished job
      */
-    void reschedule(final Job job) {
-        final JobTask jt = jobTaskMap.get(job);
-        if (jt == null) {
-            // Somebody has already removed this job, it's quite possible
+    void reschedule(final JobTask jt) {
+        final Job job = jt.job;
+        if (jobTaskMap.get(job) != jt) {
+            // Somebody has already removed or replanned this job, it's quite possible.
+            // A task running during shutdown is retired only now
+            jt.retire();
+            scheduleChanged(job);
             return;
         }
         jt.trySuccessorsExecution();
         jt.cancel();
         if (job.getPlannedTime() != Job.PLANNED_TIME_NEVER) {
-            final JobTask next = new JobTask(job);
-            if (jobTaskMap.replace(job, jt, next))
-                timer.schedule(next, job.getPlannedTime());
+            // Synchronizing to keep successors added concurrently by addJob()
+            synchronized (jobTaskMap) {
+                // A recurring job is not run again while draining, it's returned by shutdown()
+                if (closed) {
+                    scheduleChanged(job);
+                    return;
+                }
+                final JobTask next = new JobTask(jt);
+                if (jobTaskMap.replace(job, jt, next)) {
+                    jt.retire();
+                    if (deadlines != null)
+                        deadlines.readmit(job);
+                    if (jt.node.paused)
+                        next.pause();
+                    else
+                        schedule(next);
+                } else {
+                    next.retire();
+                }
+            }
         } else if (job.autoDeletedOnCompletion() && !jt.hasSuccessors()) {
             try {
+                // Listeners are called on removal
                 removeJob(job);
+                return;
             } catch (SchedulingException ex) {
                 // Should not occur
                 throw new AssertionError("Cannot remove job in TimerScheduler.reschedule!");
             }
         }
         // NB: job with successors should be deleted manually
+        scheduleChanged(job);
     }
 }
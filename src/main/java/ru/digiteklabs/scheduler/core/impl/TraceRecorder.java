@@ -0,0 +1,340 @@
+package ru.digiteklabs.scheduler.core.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A recorder of scheduler events into a binary trace file.
+ *
+ * Each thread appends events to its own buffer without contention. A full buffer is written to the file
+ * as a block with an ID and a name of its thread, then reused. When a new thread starts recording,
+ * buffers of threads which have terminated are written and dropped, so a pool replacing its threads
+ * does not accumulate buffers. The file is mapped into memory region by region,
+ * so a block write is a memory copy. An event takes 20 bytes: time, job ID and kind.
+ *
+ * A file starts with a header: 8 bytes of MAGIC, an int version, a long wall-clock time in ms of the start
+ * and a long System.nanoTime() of the start. Then blocks follow: a long thread ID, a short length
+ * and UTF-8 bytes of a thread name, an int event number, and events, each as a long time in ns since the start,
+ * a long job ID and an int ordinal of Kind. A file which is not closed ends with zeros.
+ * Use read() to parse it.
+ *
+ * This class is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class TraceRecorder {
+
+    /**
+     * Kinds of recorded events
+     */
+    public enum Kind {
+        /**
+         * The timer has reached a planned time of a job
+         */
+        TIMER,
+        /**
+         * A job is checked and found ready to run, its prerequisites are finished
+         */
+        READY,
+        /**
+         * A job run is submitted for execution, after rate limits
+         */
+        DISPATCH,
+        /**
+         * A run is started by a worker thread
+         */
+        START,
+        FINISH,
+        /**
+         * A run has thrown an exception
+         */
+        FAIL
+    }
+
+    /**
+     * A receiver of parsed trace events
+     */
+    public interface Visitor {
+        /**
+         * Called before events of each block
+         *
+         * @param threadId an ID of a thread which recorded following events
+         * @param name a name of this thread
+         */
+        void thread(long threadId, String name);
+
+        /**
+         * Called for each event, events of a thread go in order of time, but blocks of different threads do not
+         *
+         * @param threadId an ID of a thread which recorded the event
+         * @param kind an event kind
+         * @param jobId an ID of a job
+         * @param nanos a time in ns since the start of recording
+         */
+        void event(long threadId, Kind kind, long jobId, long nanos);
+    }
+
+    static public final long MAGIC = 0x5343485452414345L;
+
+    static private final int VERSION = 1;
+
+    static private final int HEADER_SIZE = 28;
+
+    static private final int EVENT_SIZE = 20;
+
+    /**
+     * Events in a thread buffer
+     */
+    static private final int BUFFER_EVENTS = 4096;
+
+    /**
+     * A minimum size of a mapped region
+     */
+    static private final int REGION_SIZE = 8 << 20;
+
+    static private final Kind[] KINDS = Kind.values();
+
+    static private final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Events of one thread, written by this thread and flushed by it or by close()
+     */
+    private final class ThreadBuffer {
+
+        private final Thread thread;
+
+        private final long threadId;
+
+        private final byte[] name;
+
+        /**
+         * Times, job IDs and kinds of events, guarded by this
+         */
+        private final long[] times = new long[BUFFER_EVENTS];
+
+        private final long[] jobIds = new long[BUFFER_EVENTS];
+
+        private final byte[] kinds = new byte[BUFFER_EVENTS];
+
+        // Guarded by this
+        private int count = 0;
+
+        ThreadBuffer(final Thread thread) {
+            this.thread = thread;
+            threadId = thread.getId();
+            final byte[] bytes = thread.getName().getBytes(UTF8);
+            name = bytes.length > Short.MAX_VALUE ? Arrays.copyOf(bytes, Short.MAX_VALUE) : bytes;
+        }
+
+        synchronized void add(final Kind kind, final long jobId, final long time) {
+            times[count] = time;
+            jobIds[count] = jobId;
+            kinds[count] = (byte) kind.ordinal();
+            if (++count == BUFFER_EVENTS)
+                flush();
+        }
+
+        synchronized void flush() {
+            if (count > 0)
+                writeBlock(this);
+            count = 0;
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    /**
+     * The current mapped region and its offset in the file, guarded by this
+     */
+    private MappedByteBuffer region;
+
+    private long regionOffset = 0;
+
+    /**
+     * Buffers of threads which are alive or have terminated since the last thread started recording,
+     * guarded by itself
+     */
+    private final List<ThreadBuffer> buffers = new ArrayList<ThreadBuffer>();
+
+    private final ThreadLocal<ThreadBuffer> threadBuffer = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            final ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread());
+            synchronized (buffers) {
+                for (Iterator<ThreadBuffer> it = buffers.iterator(); it.hasNext(); ) {
+                    final ThreadBuffer terminated = it.next();
+                    if (!terminated.thread.isAlive()) {
+                        terminated.flush();
+                        it.remove();
+                    }
+                }
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+    };
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a recorder writing to a given file, an existing file is overwritten
+     *
+     * @param path a trace file
+     * @throws IOException if the file cannot be created
+     */
+    public TraceRecorder(@NotNull final File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        region.putLong(MAGIC);
+        region.putInt(VERSION);
+        region.putLong(System.currentTimeMillis());
+        region.putLong(startNanos);
+    }
+
+    /**
+     * Records an event in the current thread, does nothing after close()
+     *
+     * @param kind an event kind
+     * @param jobId an ID of a job
+     */
+    public void record(@NotNull final Kind kind, final long jobId) {
+        if (!closed)
+            threadBuffer.get().add(kind, jobId, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return a number of thread buffers kept
+     */
+    int getBufferCount() {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+    /**
+     * Writes a block of a thread buffer, called with the buffer lock held
+     */
+    private synchronized void writeBlock(final ThreadBuffer buffer) {
+        // Closed concurrently
+        if (region == null)
+            return;
+        final int size = 8 + 2 + buffer.name.length + 4 + buffer.count * EVENT_SIZE;
+        try {
+            if (region.remaining() < size) {
+                regionOffset += region.position();
+                region = channel.map(FileChannel.MapMode.READ_WRITE, regionOffset, Math.max(REGION_SIZE, size));
+            }
+        } catch (IOException ex) {
+            // Nothing to do on a hot path, the rest of the trace is lost
+            closed = true;
+            return;
+        }
+        region.putLong(buffer.threadId);
+        region.putShort((short) buffer.name.length);
+        region.put(buffer.name);
+        region.putInt(buffer.count);
+        for (int i = 0; i < buffer.count; i++) {
+            region.putLong(buffer.times[i]);
+            region.putLong(buffer.jobIds[i]);
+            region.putInt(buffer.kinds[i]);
+        }
+    }
+
+    /**
+     * Writes events of all threads and closes the file, later events are not recorded.
+     * Events recorded concurrently with close() can be lost
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void close() throws IOException {
+        closed = true;
+        synchronized (buffers) {
+            for (ThreadBuffer buffer: buffers)
+                buffer.flush();
+        }
+        synchronized (this) {
+            region.force();
+            final long length = regionOffset + region.position();
+            region = null;
+            channel.truncate(length);
+            file.close();
+        }
+    }
+
+    /**
+     * Parses a trace file
+     *
+     * @param path a trace file written by a recorder
+     * @param visitor a receiver of events
+     * @return a wall-clock time in ms when recording was started
+     * @throws IOException if the file cannot be read or it's not a trace
+     */
+    static public long read(@NotNull final File path, @NotNull final Visitor visitor) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(path, "r");
+        try {
+            final FileChannel inputChannel = input.getChannel();
+            final long length = inputChannel.size();
+            if (length < HEADER_SIZE)
+                throw new IOException("A trace file is too short");
+            final ByteBuffer header = inputChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getLong() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a trace file of a supported version");
+            final long startMillis = header.getLong();
+            long offset = HEADER_SIZE;
+            boolean end = false;
+            while (offset < length && !end) {
+                final ByteBuffer data = inputChannel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(length - offset, REGION_SIZE));
+                while (data.remaining() >= 14) {
+                    final int blockStart = data.position();
+                    final long threadId = data.getLong();
+                    if (threadId == 0) {
+                        // Zeros after the last block of a file which is not closed
+                        end = true;
+                        break;
+                    }
+                    final byte[] name = new byte[data.getShort()];
+                    if (data.remaining() < name.length + 4) {
+                        data.position(blockStart);
+                        break;
+                    }
+                    data.get(name);
+                    final int count = data.getInt();
+                    if (data.remaining() < count * EVENT_SIZE) {
+                        data.position(blockStart);
+                        break;
+                    }
+                    visitor.thread(threadId, new String(name, UTF8));
+                    for (int i = 0; i < count; i++) {
+                        final long nanos = data.getLong();
+                        final long jobId = data.getLong();
+                        visitor.event(threadId, KINDS[data.getInt()], jobId, nanos);
+                    }
+                }
+                if (data.position() == 0 && !end)
+                    throw new IOException("A trace file is truncated at " + offset);
+                offset += data.position();
+            }
+            return startMillis;
+        } finally {
+            input.close();
+        }
+    }
+}
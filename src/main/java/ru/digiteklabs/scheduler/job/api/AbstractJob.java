@@ -6,13 +6,13 @@ import java.util.concurrent.CopyOnWriteArrayList;
 /**
  * A job skeleton implementation which requires only run() method.
  * Ready status here is always true, but inherited classes may overwrite this method.
- * Observers are supported.
+ * Observers are supported. Scheduling hints have defaults which inherited classes may overwrite.
  *
  * This class is unconditionally thread-safe
  *
  * @author Mikhail Glukhikh
  */
-public abstract class AbstractJob implements Job {
+public abstract class AbstractJob implements Job, JobHints {
 
     /**
      * Job which is not yet started or waits for the next start
@@ -42,6 +42,9 @@ public abstract class AbstractJob implements Job {
     // Thread-safe
     private volatile boolean readyStatus = true;
 
+    // Thread-safe
+    private volatile CheckpointStore checkpointStore = null;
+
     /**
      * A protected method for changing job's planned time.
      *
@@ -84,6 +87,42 @@ public abstract class AbstractJob implements Job {
         }
     }
 
+    /**
+     * A protected method for saving a checkpoint of job's progress, normally at the end of a stage.
+     *
+     * A state is saved to an attached store by getCheckpointKey(), a store may write it asynchronously.
+     * Does nothing if the job has no key or no store is attached.
+     *
+     * @param state a state to restore by restoreCheckpoint(), it must not be changed after a call
+     */
+    protected final void checkpoint(final byte[] state) {
+        final CheckpointStore store = checkpointStore;
+        final String key = getCheckpointKey();
+        if (store != null && key != null)
+            store.save(key, state);
+    }
+
+    /**
+     * A protected method for removing a checkpoint, normally when a job is completed,
+     * so a job added again starts from the beginning
+     */
+    protected final void clearCheckpoint() {
+        final CheckpointStore store = checkpointStore;
+        final String key = getCheckpointKey();
+        if (store != null && key != null)
+            store.remove(key);
+    }
+
+    /**
+     * Restores job's progress from a checkpoint, called by attachCheckpointStore() when a job is not running.
+     *
+     * This implementation does nothing, jobs saving checkpoints should overwrite it.
+     *
+     * @param state a state saved by checkpoint()
+     */
+    protected void restoreCheckpoint(final byte[] state) {
+    }
+
     /**
      * Constructs a job which is planned by time.
      * @param plannedTime launch time
@@ -179,6 +218,115 @@ public abstract class AbstractJob implements Job {
         return true;
     }
 
+    /**
+     * Gets a key of a rate limit this job obeys.
+     *
+     * This implementation returns null, so runs are not limited, but inherited classes may overwrite this method.
+     *
+     * @return a rate limit key, or null if runs of this job are not limited
+     */
+    public String getRateLimitKey() {
+        return null;
+    }
+
+    /**
+     * Gets a CPU weight of this job, that is a number of processors it keeps busy while running.
+     *
+     * This implementation returns 1, but inherited classes may overwrite this method.
+     * A job which mostly sleeps or waits while running, like the sample jobs do, should return 0,
+     * so it takes no CPU slot and does not hold back CPU-heavy jobs.
+     *
+     * @return a non-negative CPU weight
+     */
+    public int getCpuWeight() {
+        return 1;
+    }
+
+    /**
+     * Gets an estimate of heap memory this job allocates while running.
+     *
+     * This implementation returns 0, but inherited classes may overwrite this method.
+     *
+     * @return an estimate in bytes, or 0 if it is negligible
+     */
+    public long getHeapEstimate() {
+        return 0;
+    }
+
+    /**
+     * Gets a tolerance of this job's start, that is how late a run may start after its planned time.
+     *
+     * This implementation returns 0, but inherited classes may overwrite this method.
+     *
+     * @return a non-negative tolerance in ms, 0 if a job must start in time
+     */
+    public long getStartTolerance() {
+        return 0;
+    }
+
+    /**
+     * Gets a deadline of this job's next run, that is a moment when the run must be finished.
+     *
+     * This implementation returns null, but inherited classes may overwrite this method.
+     *
+     * @return a deadline, or null if the job has none
+     */
+    public Date getDeadline() {
+        return null;
+    }
+
+    /**
+     * Gets an expected duration of this job's run.
+     *
+     * This implementation returns 0, but inherited classes may overwrite this method.
+     *
+     * @return an expected duration in ms, or 0 if it is unknown
+     */
+    public long getExpectedDuration() {
+        return 0;
+    }
+
+    /**
+     * Checks whether this job is idempotent, that is run() can be called again while a call is in progress.
+     *
+     * This implementation returns false, but inherited classes may overwrite this method.
+     *
+     * @return true if this job is idempotent
+     */
+    public boolean isIdempotent() {
+        return false;
+    }
+
+    /**
+     * Gets a key of this job's checkpoints, which must be the same for the same job after a process restart.
+     *
+     * This implementation returns null, so the job has no checkpoints, but inherited classes may overwrite this method.
+     *
+     * @return a checkpoint key, or null if the job has no checkpoints
+     */
+    public String getCheckpointKey() {
+        return null;
+    }
+
+    /**
+     * Gives a checkpoint store to this job.
+     *
+     * This implementation keeps the store for checkpoint() and clearCheckpoint(),
+     * and passes the last checkpoint from it to restoreCheckpoint() if there is one.
+     *
+     * @param store a checkpoint store
+     */
+    @Override
+    public final void attachCheckpointStore(final CheckpointStore store) {
+        checkpointStore = store;
+        final String key = getCheckpointKey();
+        if (key == null)
+            return;
+        final byte[] state = store.load(key);
+        if (state != null)
+            restoreCheckpoint(state);
+    }
+
     /**
      * Gets information about this job progress.
      *
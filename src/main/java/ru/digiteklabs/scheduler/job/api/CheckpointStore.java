@@ -0,0 +1,36 @@
+package ru.digiteklabs.scheduler.job.api;
+
+/**
+ * A store of job checkpoints, that is states of job progress saved by keys, so a job can be resumed
+ * after it's removed and added again or after a process restart.
+ *
+ * Implementations must be thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public interface CheckpointStore {
+
+    /**
+     * Saves a state by a key. A store may write it later, but load() returns it at once.
+     * A state must not be changed after a call
+     *
+     * @param key a checkpoint key
+     * @param state a state
+     */
+    void save(String key, byte[] state);
+
+    /**
+     * Loads the last state saved by a key
+     *
+     * @param key a checkpoint key
+     * @return a state, or null if there is none
+     */
+    byte[] load(String key);
+
+    /**
+     * Removes a state saved by a key, normally when a job is completed
+     *
+     * @param key a checkpoint key
+     */
+    void remove(String key);
+}
@@ -0,0 +1,67 @@
+package ru.digiteklabs.scheduler.job.api;
+
+import java.util.Date;
+
+/**
+ * A source of current time for jobs and schedulers.
+ *
+ * Jobs which plan their next runs relative to now should take time from Clock.current().
+ * It is the system clock unless a scheduler simulation with virtual time runs in the current thread.
+ *
+ * The system clock is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public abstract class Clock {
+
+    /**
+     * The system clock based on System.currentTimeMillis()
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final ThreadLocal<Clock> current = new ThreadLocal<Clock>() {
+        @Override
+        protected Clock initialValue() {
+            return SYSTEM;
+        }
+    };
+
+    /**
+     * Gets current time of this clock
+     *
+     * @return current time in milliseconds since epoch
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Gets current time of this clock as a date
+     *
+     * @return current date and time
+     */
+    public Date now() {
+        return new Date(currentTimeMillis());
+    }
+
+    /**
+     * Gets a clock of the current thread
+     *
+     * @return a clock set by setCurrent(), or the system clock
+     */
+    public static Clock current() {
+        return current.get();
+    }
+
+    /**
+     * Sets a clock of the current thread, normally called only by a simulation
+     *
+     * @param clock a new clock, or null for the system clock
+     */
+    public static void setCurrent(final Clock clock) {
+        current.set(clock == null ? SYSTEM : clock);
+    }
+}
@@ -20,6 +20,8 @@ import java.util.Set;
  * It changes from PROGRESS_PLANNED when job is just created to PROGRESS_STARTED when it is started
  * and PROGRESS_FINISHED when it is finished. A recurring job may then return to PROGRESS_PLANNED again.
  *
+ * A job may also give a scheduler additional information about its runs by implementing JobHints.
+ *
  * @author Mikhail Glukhikh
  */
 public interface Job extends Runnable {
@@ -0,0 +1,104 @@
+package ru.digiteklabs.scheduler.job.api;
+
+import java.util.Date;
+
+/**
+ * Optional hints a job may give to a scheduler about its runs.
+ *
+ * A scheduler checks whether a job implements this interface. A job which does not is treated
+ * as not rate limited, taking one CPU slot and no heap, starting in time, without a deadline,
+ * not idempotent and without checkpoints. AbstractJob implements it with the same defaults.
+ *
+ * @author Mikhail Glukhikh
+ */
+public interface JobHints {
+
+    /**
+     * Gets a key of a rate limit this job obeys.
+     *
+     * Jobs with the same key normally use the same resource. A scheduler may limit a rate of their runs
+     * by the key, in this case a ready job waits while the limit is exceeded.
+     *
+     * @return a rate limit key, or null if runs of this job are not limited
+     */
+    String getRateLimitKey();
+
+    /**
+     * Gets a CPU weight of this job, that is a number of processors it keeps busy while running.
+     *
+     * A scheduler with limited CPU slots runs a job only when its weight fits into free slots.
+     * A job which mostly sleeps or waits for I/O should return 0.
+     *
+     * @return a non-negative CPU weight
+     */
+    int getCpuWeight();
+
+    /**
+     * Gets an estimate of heap memory this job allocates while running.
+     *
+     * A scheduler with a memory budget runs a job only when its estimate fits into free memory.
+     *
+     * @return an estimate in bytes, or 0 if it is negligible
+     */
+    long getHeapEstimate();
+
+    /**
+     * Gets a tolerance of this job's start, that is how late a run may start after its planned time.
+     *
+     * A scheduler may delay runs within this window to spread runs of many jobs planned for the same moment.
+     * All runs of a job are delayed by the same offset, so a recurring job keeps its rate if it plans
+     * its next run relative to the previous planned time rather than to the end of the previous run.
+     *
+     * @return a non-negative tolerance in ms, 0 if a job must start in time
+     */
+    long getStartTolerance();
+
+    /**
+     * Gets a deadline of this job's next run, that is a moment when the run must be finished.
+     *
+     * A scheduler may run ready jobs in order of their deadlines, refuse a job whose deadline cannot be met
+     * and count runs finished after their deadlines.
+     *
+     * @return a deadline, or null if the job has none
+     */
+    Date getDeadline();
+
+    /**
+     * Gets an expected duration of this job's run.
+     *
+     * A scheduler may use it together with a deadline to check whether the deadline can be met.
+     *
+     * @return an expected duration in ms, or 0 if it is unknown
+     */
+    long getExpectedDuration();
+
+    /**
+     * Checks whether this job is idempotent, that is run() can be called again while a call is in progress,
+     * and the effect is the same as of one call.
+     *
+     * A scheduler may start a backup call of run() when a run is slow, take the call which returns first
+     * and interrupt the other one. beforeRun() and afterRun() are still called once per run.
+     *
+     * @return true if this job is idempotent
+     */
+    boolean isIdempotent();
+
+    /**
+     * Gets a key of this job's checkpoints, which must be the same for the same job after a process restart.
+     *
+     * A job with a key may save its progress to a checkpoint store given by attachCheckpointStore().
+     *
+     * @return a checkpoint key, or null if the job has no checkpoints
+     */
+    String getCheckpointKey();
+
+    /**
+     * Gives a checkpoint store to this job, called by a scheduler when the job with a checkpoint key is added.
+     * <p/>
+     * The job resumes from its last checkpoint in the store, if there is one,
+     * and saves its next checkpoints there. It's not called while the job is running.
+     *
+     * @param store a checkpoint store
+     */
+    void attachCheckpointStore(CheckpointStore store);
+}
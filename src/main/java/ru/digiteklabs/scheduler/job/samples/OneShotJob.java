@@ -17,14 +17,28 @@ public class OneShotJob extends AbstractJob {
 
     private final long duration;
 
+    private final Date deadline;
+
+    /**
+     * Constructs one-shot job that will start at a given time, will run for a given duration
+     * and must be completed by a given deadline
+     * @param plannedTime a given start time
+     * @param duration a given job duration in milliseconds, it's also an expected duration
+     * @param deadline a given deadline, or null if there is none
+     */
+    public OneShotJob(final Date plannedTime, long duration, final Date deadline) {
+        super(plannedTime);
+        this.duration = duration;
+        this.deadline = deadline;
+    }
+
     /**
      * Constructs one-shot job that will start at a given time and will run for a given duration
      * @param plannedTime a given start time
      * @param duration a given job duration in milliseconds
      */
     public OneShotJob(final Date plannedTime, long duration) {
-        super(plannedTime);
-        this.duration = duration;
+        this(plannedTime, duration, null);
     }
 
     /**
@@ -69,6 +83,21 @@ public class OneShotJob extends AbstractJob {
         completed = true;
     }
 
+    @Override
+    public int getCpuWeight() {
+        return 0;
+    }
+
+    @Override
+    public Date getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public long getExpectedDuration() {
+        return duration;
+    }
+
     @Override
     public String toString() {
         return "One shot: " + (completed ? "completed" : "not completed");
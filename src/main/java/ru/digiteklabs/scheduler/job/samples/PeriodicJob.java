@@ -1,8 +1,8 @@
 package ru.digiteklabs.scheduler.job.samples;
 
 import ru.digiteklabs.scheduler.job.api.AbstractJob;
+import ru.digiteklabs.scheduler.job.api.Clock;
 
-import java.util.Calendar;
 import java.util.Date;
 
 /**
@@ -13,10 +13,15 @@ import java.util.Date;
  */
 public class PeriodicJob extends AbstractJob {
 
-    private final long duration, pause;
+    private final long duration, pause, tolerance;
 
     private volatile int launchNumber = 0;
 
+    /**
+     * A start time in ms of the current run
+     */
+    private volatile long started = 0;
+
     /**
      * Constructs a periodic job that will start at a given time and will run for a given duration,
      * then will wait for a given pause and run again, and so and so.
@@ -25,9 +30,26 @@ public class PeriodicJob extends AbstractJob {
      * @param pause a given pause
      */
     public PeriodicJob(final Date plannedTime, long duration, long pause) {
+        this(plannedTime, duration, pause, 0);
+    }
+
+    /**
+     * Constructs a periodic job like above, which allows a scheduler to delay its start by up to a given tolerance.
+     * Many jobs with the same start time and a tolerance about their period are spread over the period.
+     * A scheduler delays each run by the same part of the tolerance, so a run is planned a pause after
+     * the previous planned time plus its duration, and the period is not changed.
+     * @param plannedTime a given start time
+     * @param duration a given job duration in milliseconds
+     * @param pause a given pause
+     * @param tolerance a given start tolerance in milliseconds
+     */
+    public PeriodicJob(final Date plannedTime, long duration, long pause, long tolerance) {
         super(plannedTime);
+        if (tolerance < 0)
+            throw new IllegalArgumentException("Start tolerance must be non-negative");
         this.duration = duration;
         this.pause = pause;
+        this.tolerance = tolerance;
     }
 
     /**
@@ -49,10 +71,28 @@ public class PeriodicJob extends AbstractJob {
         }
     }
 
+    @Override
+    public void beforeRun() {
+        super.beforeRun();
+        started = Clock.current().currentTimeMillis();
+    }
+
     @Override
     public void afterRun() {
+        final long planned = getPlannedTime().getTime();
         super.afterRun();
-        changePlannedTime(new Date(Calendar.getInstance().getTimeInMillis() + pause));
+        final long now = Clock.current().currentTimeMillis();
+        changePlannedTime(new Date((tolerance > 0 ? planned + now - started : now) + pause));
+    }
+
+    @Override
+    public int getCpuWeight() {
+        return 0;
+    }
+
+    @Override
+    public long getStartTolerance() {
+        return tolerance;
     }
 
     @Override
@@ -0,0 +1,265 @@
+package ru.digiteklabs.scheduler.job.samples;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Primality checks shared by prime checker jobs.
+ *
+ * A number is checked against the calculated primes first: numbers covered by a calculator
+ * are found by binary search, other numbers are trial-divided by a few small primes.
+ * If neither gives an answer, deterministic Miller-Rabin test is used,
+ * which is exact for all non-negative long values. Large numbers are multiplied in Montgomery form.
+ *
+ * This class is stateless and thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+final class Primality {
+
+    /**
+     * Number of smallest primes used for trial division
+     */
+    static final int TRIAL_PRIMES = 64;
+
+    /**
+     * Miller-Rabin bases which are enough for all numbers less than SMALL_BASES_BOUND
+     */
+    private static final long[] SMALL_BASES = { 2, 3, 5, 7 };
+
+    private static final long SMALL_BASES_BOUND = 3215031751L;
+
+    /**
+     * Miller-Rabin bases which are enough for all numbers less than 2^64
+     */
+    private static final long[] LARGE_BASES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+
+    /**
+     * Numbers below this bound can be multiplied modulo themselves without long overflow
+     */
+    private static final long DIRECT_MULTIPLICATION_BOUND = 3037000499L;
+
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+
+    /**
+     * Arithmetic modulo an odd number with R = 2^64, numbers are kept as x * R modulo the number,
+     * so a product is reduced by a few multiplications instead of a division
+     */
+    private static final class Montgomery {
+
+        private final long modulus;
+
+        /**
+         * -modulus^-1 modulo 2^64
+         */
+        private final long negatedInverse;
+
+        /**
+         * R^2 modulo modulus, converts a number into Montgomery form
+         */
+        private final long rSquared;
+
+        /**
+         * One in Montgomery form
+         */
+        private final long one;
+
+        /**
+         * modulus - 1 in Montgomery form
+         */
+        private final long minusOne;
+
+        Montgomery(final long modulus) {
+            this.modulus = modulus;
+            // modulus * modulus == 1 modulo 8, each Newton step doubles a number of correct bits
+            long inverse = modulus;
+            for (int i = 0; i < 5; i++)
+                inverse *= 2 - modulus * inverse;
+            negatedInverse = -inverse;
+            // 2^64 modulo modulus, modulus is less than 2^63
+            final long half = (Long.MAX_VALUE % modulus + 1) % modulus;
+            one = addMod(half, half, modulus);
+            minusOne = modulus - one;
+            long square = one;
+            for (int i = 0; i < 64; i++)
+                square = addMod(square, square, modulus);
+            rSquared = square;
+        }
+
+        long toMontgomery(final long x) {
+            return multiply(x % modulus, rSquared);
+        }
+
+        /**
+         * Multiplies numbers in Montgomery form
+         */
+        long multiply(final long a, final long b) {
+            final long low = a * b;
+            final long u = low * negatedInverse;
+            // low + low(u * modulus) is 0 or 2^64
+            final long t = multiplyHigh(a, b) + multiplyHigh(u, modulus) + (low != 0 ? 1 : 0);
+            // t < 2 * modulus, compared as unsigned
+            return t + Long.MIN_VALUE >= modulus + Long.MIN_VALUE ? t - modulus : t;
+        }
+
+        long pow(final long base, long exponent) {
+            long result = one;
+            long power = toMontgomery(base);
+            while (exponent > 0) {
+                if ((exponent & 1) != 0)
+                    result = multiply(result, power);
+                power = multiply(power, power);
+                exponent >>= 1;
+            }
+            return result;
+        }
+    }
+
+    private Primality() {}
+
+    /**
+     * Takes smallest published primes for trial division
+     * @param primes calculated primes
+     * @return an array of at most TRIAL_PRIMES smallest primes
+     */
+    static int[] smallPrimes(final @NotNull PrimeStorage primes) {
+        final int count = Math.min(TRIAL_PRIMES, primes.size());
+        final int[] result = new int[count];
+        for (int i = 0; i < count; i++)
+            result[i] = primes.get(i);
+        return result;
+    }
+
+    /**
+     * Checks whether a given number is prime
+     * @param number a number to check
+     * @param smallPrimes smallest primes for trial division, see smallPrimes()
+     * @param primes calculated primes, only a published prefix is used
+     * @return PRIME or NOT_PRIME, never UNKNOWN
+     */
+    static PrimeCheckJob.CheckResult check(final long number, final @NotNull int[] smallPrimes,
+                                           final @NotNull PrimeStorage primes) {
+        if (number < 2)
+            return PrimeCheckJob.CheckResult.NOT_PRIME;
+        // Bound is read first, so all primes up to it are among size published primes
+        final int bound = primes.bound();
+        final int size = primes.size();
+        if (number <= bound)
+            return contains(primes, size, (int) number) ?
+                    PrimeCheckJob.CheckResult.PRIME : PrimeCheckJob.CheckResult.NOT_PRIME;
+        for (int pr: smallPrimes) {
+            if (pr > number / pr)
+                return PrimeCheckJob.CheckResult.PRIME;
+            if (number % pr == 0)
+                return PrimeCheckJob.CheckResult.NOT_PRIME;
+        }
+        return millerRabin(number) ? PrimeCheckJob.CheckResult.PRIME : PrimeCheckJob.CheckResult.NOT_PRIME;
+    }
+
+    /**
+     * Binary search among first size published primes
+     */
+    private static boolean contains(final PrimeStorage primes, final int size, final int number) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int pr = primes.get(mid);
+            if (pr < number)
+                low = mid + 1;
+            else if (pr > number)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deterministic Miller-Rabin test
+     * @param number a number to check
+     * @return true if number is prime, false otherwise
+     */
+    static boolean millerRabin(final long number) {
+        if (number < 2)
+            return false;
+        if (number < 4)
+            return true;
+        if ((number & 1) == 0)
+            return false;
+        long d = number - 1;
+        int shift = 0;
+        while ((d & 1) == 0) {
+            d >>= 1;
+            shift++;
+        }
+        if (number > DIRECT_MULTIPLICATION_BOUND)
+            return millerRabin(new Montgomery(number), d, shift);
+        witness:
+        for (long base: number < SMALL_BASES_BOUND ? SMALL_BASES : LARGE_BASES) {
+            if (base % number == 0)
+                continue;
+            long x = powMod(base, d, number);
+            if (x == 1 || x == number - 1)
+                continue;
+            for (int i = 1; i < shift; i++) {
+                x = x * x % number;
+                if (x == number - 1)
+                    continue witness;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Miller-Rabin test of a large number in Montgomery form
+     * @param montgomery arithmetic modulo a number to check
+     * @param d an odd part of the number minus one
+     * @param shift a power of two in the number minus one
+     * @return true if number is prime, false otherwise
+     */
+    private static boolean millerRabin(final Montgomery montgomery, final long d, final int shift) {
+        witness:
+        for (long base: LARGE_BASES) {
+            long x = montgomery.pow(base, d);
+            if (x == montgomery.one || x == montgomery.minusOne)
+                continue;
+            for (int i = 1; i < shift; i++) {
+                x = montgomery.multiply(x, x);
+                if (x == montgomery.minusOne)
+                    continue witness;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Raises base to a power modulo a number not greater than DIRECT_MULTIPLICATION_BOUND
+     */
+    private static long powMod(long base, long exponent, final long modulus) {
+        long result = 1;
+        base %= modulus;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0)
+                result = result * base % modulus;
+            base = base * base % modulus;
+            exponent >>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the high 64 bits of an unsigned 128-bit product
+     */
+    private static long multiplyHigh(final long a, final long b) {
+        final long a0 = a & LOW_MASK, a1 = a >>> 32;
+        final long b0 = b & LOW_MASK, b1 = b >>> 32;
+        final long p01 = a0 * b1, p10 = a1 * b0;
+        final long middle = ((a0 * b0) >>> 32) + (p01 & LOW_MASK) + (p10 & LOW_MASK);
+        return a1 * b1 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    private static long addMod(final long a, final long b, final long m) {
+        return a >= m - b ? a - (m - b) : a + b;
+    }
+}
@@ -0,0 +1,226 @@
+package ru.digiteklabs.scheduler.job.samples;
+
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.job.api.AbstractJob;
+import ru.digiteklabs.scheduler.job.api.Job;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Sample job class with a purpose of checking whether each number of a batch is prime.
+ *
+ * One batch job replaces a number of PrimeCheckJob instances. Small factors are taken
+ * from a prime calculator, large numbers are checked by deterministic Miller-Rabin test.
+ * The batch is split into blocks which are processed by a thread running this job
+ * and by helpers given to an executor, for example a pool shared by batch jobs.
+ * A helper which is not started when blocks are over is skipped, so a busy executor only slows a run down.
+ * If a run is interrupted, helpers stop after their current blocks and the prime count is not published.
+ *
+ * After run() is performed, this class is effectively immutable
+ *
+ * @author Mikhail Glukhikh
+ */
+public class PrimeBatchCheckJob extends AbstractJob {
+
+    /**
+     * Number of values processed by a worker at once
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    private final long[] numbers;
+
+    private final PrimeCalcJob calcJob;
+
+    private final int workers;
+
+    /**
+     * An executor for helpers, or null if there is only one worker
+     */
+    private final Executor executor;
+
+    /**
+     * Check results, ordinals of PrimeCheckJob.CheckResult
+     */
+    private final byte[] results;
+
+    private volatile int primeCount = 0;
+
+    // Guarded by this
+    private int checked = 0;
+
+    /**
+     * Constructs a batch prime checker job.
+     * @param plannedTime planned time to run
+     * @param calcJob prime calculator job to take small primes
+     * @param numbers numbers to check, the array is not copied and should not be changed later
+     * @param workers number of threads to check numbers, including a scheduler thread running this job
+     * @param executor an executor for workers except the first one
+     */
+    public PrimeBatchCheckJob(final Date plannedTime, final @NotNull PrimeCalcJob calcJob,
+                              final @NotNull long[] numbers, final int workers, final Executor executor) {
+        super(plannedTime, Collections.<Job>singleton(calcJob));
+        if (workers < 1)
+            throw new IllegalArgumentException("At least one worker is required");
+        if (workers > 1 && executor == null)
+            throw new IllegalArgumentException("An executor is required for more than one worker");
+        this.calcJob = calcJob;
+        this.numbers = numbers;
+        this.workers = workers;
+        this.executor = executor;
+        results = new byte[numbers.length];
+        final byte unknown = (byte) PrimeCheckJob.CheckResult.UNKNOWN.ordinal();
+        for (int i = 0; i < results.length; i++)
+            results[i] = unknown;
+    }
+
+    /**
+     * Constructs a batch prime checker job with one worker.
+     * @param plannedTime planned time to run
+     * @param calcJob prime calculator job to take small primes
+     * @param numbers numbers to check, the array is not copied and should not be changed later
+     */
+    public PrimeBatchCheckJob(final Date plannedTime, final @NotNull PrimeCalcJob calcJob,
+                              final @NotNull long[] numbers) {
+        this(plannedTime, calcJob, numbers, 1, null);
+    }
+
+    /**
+     * Gets a number of numbers in a batch
+     * @return a batch size
+     */
+    public int size() {
+        return numbers.length;
+    }
+
+    /**
+     * Gets a result of a check for one number
+     * @param index index of a number in a batch
+     * @return valid after job is finished: either number is prime, or non-prime, or result is unknown
+     */
+    public PrimeCheckJob.CheckResult getResult(final int index) {
+        return PrimeCheckJob.CheckResult.values()[results[index]];
+    }
+
+    /**
+     * Gets a number of primes found in a batch
+     * @return a number of primes, valid after job is finished
+     */
+    public int getPrimeCount() {
+        return primeCount;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            checked = 0;
+        }
+        final PrimeStorage primes = calcJob.getPrimeStorage();
+        final int[] smallPrimes = Primality.smallPrimes(primes);
+        final AtomicInteger nextBlock = new AtomicInteger(0);
+        final AtomicInteger found = new AtomicInteger(0);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int local = 0;
+                for (int block = nextBlock.getAndIncrement(); block * (long) BLOCK_SIZE < numbers.length;
+                     block = nextBlock.getAndIncrement()) {
+                    if (stopped.get() || Thread.currentThread().isInterrupted()) {
+                        stopped.set(true);
+                        break;
+                    }
+                    final int from = block * BLOCK_SIZE;
+                    final int to = Math.min(numbers.length, from + BLOCK_SIZE);
+                    for (int i = from; i < to; i++) {
+                        final PrimeCheckJob.CheckResult result = Primality.check(numbers[i], smallPrimes, primes);
+                        if (result == PrimeCheckJob.CheckResult.PRIME)
+                            local++;
+                        results[i] = (byte) result.ordinal();
+                    }
+                    reportProgress(to - from);
+                }
+                found.addAndGet(local);
+            }
+        };
+        final int helpers = getCpuWeight() - 1;
+        // A helper is claimed either by itself when it starts or by this thread when blocks are over
+        final AtomicIntegerArray claimed = new AtomicIntegerArray(helpers);
+        final CountDownLatch done = new CountDownLatch(helpers);
+        for (int i = 0; i < helpers; i++) {
+            final int helper = i;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!claimed.compareAndSet(helper, 0, 1))
+                            return;
+                        try {
+                            worker.run();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // This thread checks more blocks
+                break;
+            }
+        }
+        worker.run();
+        for (int i = 0; i < helpers; i++) {
+            if (claimed.compareAndSet(i, 0, 1))
+                done.countDown();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Helpers stop after their current blocks, results are left incomplete
+                interrupted = true;
+                stopped.set(true);
+            }
+        }
+        if (interrupted || stopped.get()) {
+            System.out.println("A batch prime checker is interrupted!");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // CountDownLatch.await() makes results of helpers visible here
+        primeCount = found.get();
+    }
+
+    /**
+     * A run takes a worker thread per block up to a given number of workers
+     * @return a number of worker threads of a run
+     */
+    @Override
+    public int getCpuWeight() {
+        return Math.max(1, Math.min(workers, (numbers.length + BLOCK_SIZE - 1) / BLOCK_SIZE));
+    }
+
+    /**
+     * Adds checked numbers and changes progress, never decreasing it
+     * @param count a number of just checked numbers
+     */
+    private synchronized void reportProgress(final int count) {
+        checked += count;
+        final int progress = (int) ((long) checked * (getMaxProgress() - 1) / numbers.length);
+        if (progress > getProgress())
+            changeProgress(progress);
+    }
+
+    @Override
+    public String toString() {
+        return "Prime batch checker: " + (isFinished() ? primeCount + " primes among " : "checking ")
+                + numbers.length + " numbers";
+    }
+}
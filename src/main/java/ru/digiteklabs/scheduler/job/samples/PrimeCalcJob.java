@@ -1,21 +1,40 @@
 package ru.digiteklabs.scheduler.job.samples;
 
 import ru.digiteklabs.scheduler.job.api.AbstractJob;
+import ru.digiteklabs.scheduler.job.api.Clock;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
 /**
  * Sample job with a purpose of calculating prime numbers.
  *
- * After run() is performed, this class is effectively immutable
+ * Primes are calculated by a segmented sieve and kept in a primitive append-only storage.
+ * They are published segment by segment, so readers may consume already calculated primes
+ * while run() continues.
+ *
+ * A calculator can be extended to a higher limit with extendLimit(). Then the next run()
+ * sieves only a new range and publishes it, and the scheduler should replan the job.
+ * Between extensions, this class is effectively immutable
  *
  * @author Mikhail Glukhikh
  */
 public class PrimeCalcJob extends AbstractJob {
 
-    private final List<Integer> primes = new ArrayList<Integer>();
+    /**
+     * Number of odd values sieved at once
+     */
+    private static final int SEGMENT_SIZE = 1 << 15;
+
+    private final PrimeStorage primes = new PrimeStorage();
+
+    private volatile int limit;
 
-    private final int limit;
+    /**
+     * An upper bound of already sieved range, accessed by run() only
+     */
+    private int sieved = 1;
 
     /**
      * Constructs a prime calculator job.
@@ -29,25 +48,120 @@ public class PrimeCalcJob extends AbstractJob {
 
     /**
      * Gets a list of calculated prime numbers
-     * @return a list of calculated prime numbers
+     * @return an unmodifiable list of prime numbers published at the moment of the call
      */
     public List<Integer> getPrimes() {
-        return Collections.unmodifiableList(primes);
+        return primes.asList();
+    }
+
+    /**
+     * Gets a primitive storage of calculated prime numbers
+     * @return a storage of prime numbers, only its published prefix is visible
+     */
+    public PrimeStorage getPrimeStorage() {
+        return primes;
+    }
+
+    /**
+     * Gets an upper bound for prime numbers to calculate
+     * @return a current limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Extends an upper bound for prime numbers to calculate.
+     *
+     * Sets planned time to now, so the job is run again and sieves only the new range.
+     * If the job is finished, Scheduler.replanJob() should be called after the extension.
+     * If the job runs now, it's replanned automatically on completion.
+     *
+     * @param newLimit a new upper bound
+     * @return true if limit is extended, false if a new limit is not greater than the current one
+     */
+    public synchronized boolean extendLimit(final int newLimit) {
+        if (newLimit <= limit)
+            return false;
+        limit = newLimit;
+        changePlannedTime(Clock.current().now());
+        return true;
     }
 
     @Override
     public void run() {
-        primes.add(2);
-        search:
-        for (int i = 3; i <= limit; i += 2) {
-            for (int pr : primes) {
-                if (pr * pr > i)
-                    break;
-                if (i % pr == 0)
-                    continue search;
-            }
-            primes.add(i);
+        final int target = limit;
+        long low = sieved + 1;
+        if (low <= 2 && target >= 2) {
+            primes.add(2);
+            primes.publish(2);
+            low = 3;
+        }
+        final boolean[] composite = new boolean[SEGMENT_SIZE];
+        if ((low & 1) == 0)
+            low++;
+        final long first = low;
+        while (low <= target) {
+            // All primes up to a square root of high must be already appended
+            final long high = Math.min(Math.min(target, low + 2L * SEGMENT_SIZE - 1), low * low - 1);
+            sieveSegment(composite, low, high);
+            primes.publish((int) high);
+            // Progress is less than maximum until afterRun()
+            final int progress = (int) ((high - first + 1) * (getMaxProgress() - 1) / (target - first + 1));
+            if (progress > getProgress())
+                changeProgress(progress);
+            low = high + 1;
+            if ((low & 1) == 0)
+                low++;
+        }
+        sieved = Math.max(sieved, target);
+        primes.publish(sieved);
+    }
+
+    /**
+     * Sieves odd numbers from a given range and appends found primes
+     * @param composite a working array
+     * @param low an odd lower bound
+     * @param high an upper bound
+     */
+    private void sieveSegment(final boolean[] composite, final long low, final long high) {
+        final int count = (int) ((high - low) / 2) + 1;
+        Arrays.fill(composite, 0, count, false);
+        for (int j = 1, appended = primes.length(); j < appended; j++) {
+            final long pr = primes.at(j);
+            if (pr * pr > high)
+                break;
+            long multiple = Math.max(pr * pr, (low + pr - 1) / pr * pr);
+            if ((multiple & 1) == 0)
+                multiple += pr;
+            for (; multiple <= high; multiple += 2 * pr)
+                composite[(int) ((multiple - low) >> 1)] = true;
         }
+        for (int k = 0; k < count; k++) {
+            if (!composite[k])
+                primes.add((int) (low + 2L * k));
+        }
+    }
+
+    /**
+     * Estimates memory of a run as a sieve segment plus a storage of all primes up to the limit,
+     * there are about x / ln(x) primes up to x
+     * @return an estimate in bytes
+     */
+    @Override
+    public long getHeapEstimate() {
+        final int target = limit;
+        return SEGMENT_SIZE + (target < 3 ? 0 : 4L * (long) (target / Math.log(target)));
+    }
+
+    /**
+     * Finishes a run, and if the limit was extended during it, plans the next run immediately
+     */
+    @Override
+    public synchronized void afterRun() {
+        super.afterRun();
+        if (sieved < limit)
+            changePlannedTime(Clock.current().now());
     }
 
     /**
@@ -47,20 +47,16 @@ public class PrimeCheckJob extends AbstractJob {
         return result;
     }
 
+    /**
+     * Checks a number against calculated primes.
+     *
+     * If calculated primes do not reach a square root of the number,
+     * deterministic Miller-Rabin test is used instead of trial division.
+     */
     @Override
     public void run() {
-        for (int pr: calcJob.getPrimes()) {
-            if (pr*pr > number) {
-                result = CheckResult.PRIME;
-                break;
-            }
-            if (number % pr == 0) {
-                result = CheckResult.NOT_PRIME;
-                break;
-            }
-        }
-        if (result == CheckResult.UNKNOWN)
-            result = CheckResult.PRIME;
+        final PrimeStorage primes = calcJob.getPrimeStorage();
+        result = Primality.check(number, Primality.smallPrimes(primes), primes);
     }
 
     @Override
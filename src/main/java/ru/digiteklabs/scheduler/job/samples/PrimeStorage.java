@@ -0,0 +1,177 @@
+package ru.digiteklabs.scheduler.job.samples;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Append-only primitive storage for prime numbers, kept in fixed-size int[] chunks.
+ *
+ * The storage has exactly one writer which appends primes in ascending order
+ * and publishes them from time to time by moving a volatile watermark.
+ * The watermark includes both a number of published primes and an upper bound
+ * up to which all primes are published, they are changed together atomically.
+ * Any number of readers can consume the published prefix concurrently
+ * without locking, while the writer continues appending.
+ *
+ * Compared to ArrayList of Integer, one prime costs 4 bytes instead of about 20.
+ *
+ * This class is thread-safe for one writer and many readers
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class PrimeStorage {
+
+    private static final int CHUNK_BITS = 12;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Chunk directory. A new directory is published before any prime from a new chunk is published.
+     */
+    private volatile int[][] chunks = new int[4][];
+
+    /**
+     * Number of appended primes, accessed by the writer only
+     */
+    private int length = 0;
+
+    /**
+     * A watermark for readers: an upper bound in high 32 bits and a number of published primes in low 32 bits
+     */
+    private volatile long watermark = 0L;
+
+    /**
+     * Appends a new prime. Can be called by the writer only.
+     *
+     * The prime is not visible to readers until publish() is called.
+     *
+     * @param prime a new prime, must be greater than all primes appended before
+     */
+    void add(final int prime) {
+        final int chunk = length >>> CHUNK_BITS;
+        int[][] directory = chunks;
+        if (chunk == directory.length) {
+            final int[][] extended = new int[directory.length * 2][];
+            System.arraycopy(directory, 0, extended, 0, directory.length);
+            directory = extended;
+            chunks = directory;
+        }
+        if (directory[chunk] == null)
+            directory[chunk] = new int[CHUNK_SIZE];
+        directory[chunk][length & CHUNK_MASK] = prime;
+        length++;
+    }
+
+    /**
+     * Gets a number of appended primes, including unpublished ones. Can be called by the writer only.
+     * @return a number of appended primes
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Gets an appended prime, including unpublished ones. Can be called by the writer only.
+     * @param index prime index, must be less than length()
+     * @return a prime with a given index
+     */
+    int at(final int index) {
+        return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /**
+     * Makes all appended primes visible to readers. Can be called by the writer only.
+     *
+     * @param bound all primes up to this bound must be appended at the moment
+     */
+    void publish(final int bound) {
+        watermark = ((long) bound << 32) | length;
+    }
+
+    /**
+     * Gets a number of published primes
+     * @return a number of published primes
+     */
+    public int size() {
+        return (int) watermark;
+    }
+
+    /**
+     * Gets an upper bound of published primes
+     * @return a number such that all primes not greater than it are published
+     */
+    public int bound() {
+        return (int) (watermark >>> 32);
+    }
+
+    /**
+     * Gets a published prime by its index
+     * @param index prime index, starting from 0
+     * @return a prime with a given index
+     * @throws IndexOutOfBoundsException if a prime with a given index is not published yet
+     */
+    public int get(final int index) {
+        final int published = size();
+        if (index < 0 || index >= published)
+            throw new IndexOutOfBoundsException("Index: " + index + ", published: " + published);
+        return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /**
+     * Gets the largest published prime
+     * @return the largest published prime, or 0 if nothing is published
+     */
+    public int last() {
+        final int size = size();
+        return size == 0 ? 0 : chunks[(size - 1) >>> CHUNK_BITS][(size - 1) & CHUNK_MASK];
+    }
+
+    /**
+     * Copies all published primes into an array
+     * @return a new array with a published prefix
+     */
+    public int[] toArray() {
+        final int size = size();
+        final int[][] directory = chunks;
+        final int[] result = new int[size];
+        for (int from = 0; from < size; from += CHUNK_SIZE) {
+            System.arraycopy(directory[from >>> CHUNK_BITS], 0, result, from, Math.min(CHUNK_SIZE, size - from));
+        }
+        return result;
+    }
+
+    /**
+     * Gets an unmodifiable list view of primes published at the moment of the call
+     * @return a list view of published primes
+     */
+    public List<Integer> asList() {
+        return new PrefixList(size());
+    }
+
+    /**
+     * A fixed-size list view over a published prefix, boxes values on access
+     */
+    private class PrefixList extends AbstractList<Integer> implements RandomAccess {
+
+        private final int size;
+
+        PrefixList(final int size) {
+            this.size = size;
+        }
+
+        @Override
+        public Integer get(final int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            return PrimeStorage.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
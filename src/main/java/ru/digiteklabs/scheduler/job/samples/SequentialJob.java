@@ -18,6 +18,8 @@ public class SequentialJob extends AbstractJob {
 
     private final long stageDuration;
 
+    private final String checkpointKey;
+
     /**
      * Constructs a sequential job that has a given number of stages, will start at a given time and will run for a given duration
      * @param stages a given number of stages
@@ -25,7 +27,20 @@ public class SequentialJob extends AbstractJob {
      * @param stageDuration a given job duration in milliseconds
      */
     public SequentialJob(int stages, final Date plannedTime, long stageDuration) {
+        this(null, stages, plannedTime, stageDuration);
+    }
+
+    /**
+     * Constructs a sequential job saving a checkpoint after each stage,
+     * so being added again it continues from the next stage. A checkpoint is removed when the job is completed
+     * @param checkpointKey a checkpoint key, or null for no checkpoints
+     * @param stages a given number of stages
+     * @param plannedTime a given start time
+     * @param stageDuration a given job duration in milliseconds
+     */
+    public SequentialJob(final String checkpointKey, int stages, final Date plannedTime, long stageDuration) {
         super(plannedTime);
+        this.checkpointKey = checkpointKey;
         this.stages = stages;
         this.stageDuration = stageDuration;
     }
@@ -45,16 +60,58 @@ public class SequentialJob extends AbstractJob {
                 if (stageDuration > 0)
                     Thread.sleep(stageDuration);
                 changeProgress(stage);
+                checkpoint(encode(stage));
             }
+            clearCheckpoint();
         } catch (InterruptedException e) {
             System.out.println("A sequential job is interrupted!");
         }
     }
 
+    static private byte[] encode(final int stage) {
+        return new byte[] { (byte) (stage >>> 24), (byte) (stage >>> 16), (byte) (stage >>> 8), (byte) stage };
+    }
+
+    /**
+     * Continues from a stage after a saved one
+     * @param state a number of the last completed stage
+     */
+    @Override
+    protected void restoreCheckpoint(final byte[] state) {
+        if (state.length != 4)
+            return;
+        final int saved = ((state[0] & 0xFF) << 24) | ((state[1] & 0xFF) << 16) | ((state[2] & 0xFF) << 8)
+                | (state[3] & 0xFF);
+        if (saved > 0 && saved <= stages) {
+            stage = saved;
+            changeProgress(saved);
+        }
+    }
+
+    /**
+     * Keeps progress of stages restored from a checkpoint
+     */
+    @Override
+    public void beforeRun() {
+        super.beforeRun();
+        if (stage > 0)
+            changeProgress(stage);
+    }
+
+    @Override
+    public String getCheckpointKey() {
+        return checkpointKey;
+    }
+
     public int getMaxProgress() {
         return stages;
     }
 
+    @Override
+    public int getCpuWeight() {
+        return 0;
+    }
+
     @Override
     public String toString() {
         return stage <= stages ? ("Sequential #" + stage) : "Sequential: completed";
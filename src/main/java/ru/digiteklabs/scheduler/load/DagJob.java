@@ -0,0 +1,79 @@
+package ru.digiteklabs.scheduler.load;
+
+import ru.digiteklabs.scheduler.job.api.AbstractJob;
+import ru.digiteklabs.scheduler.job.api.Job;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A one-shot job which is a node of a generated dependency graph.
+ *
+ * Nodes are not deleted on completion, otherwise a node could be deleted
+ * before its successors are added. A whole graph is removed when its sink is finished.
+ * A node is idempotent, and a given fraction of its calls are stragglers running STRAGGLER_SLOWDOWN times longer,
+ * like on a noisy worker.
+ *
+ * @author Mikhail Glukhikh
+ */
+class DagJob extends AbstractJob {
+
+    static final int STRAGGLER_SLOWDOWN = 10;
+
+    private final long duration;
+
+    private final double stragglers;
+
+    /**
+     * Thread-safe
+     */
+    private final Random random;
+
+    /**
+     * Constructs a graph node
+     * @param plannedTime a given start time
+     * @param requiredJobs jobs to complete before this one
+     * @param duration a given job duration in milliseconds
+     * @param stragglers a fraction of slow calls
+     * @param random a source of stragglers
+     */
+    DagJob(final Date plannedTime, final Set<Job> requiredJobs, final long duration, final double stragglers,
+           final Random random) {
+        super(plannedTime, requiredJobs);
+        this.duration = duration;
+        this.stragglers = stragglers;
+        this.random = random;
+    }
+
+    @Override
+    public void run() {
+        final boolean straggler = stragglers > 0 && random.nextDouble() < stragglers;
+        try {
+            if (duration > 0)
+                Thread.sleep(straggler ? duration * STRAGGLER_SLOWDOWN : duration);
+        } catch (InterruptedException e) {
+            // A slower call of a run with a backup is interrupted
+        }
+    }
+
+    @Override
+    public boolean isIdempotent() {
+        return true;
+    }
+
+    @Override
+    public boolean autoDeletedOnCompletion() {
+        return false;
+    }
+
+    @Override
+    public int getCpuWeight() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Graph node: " + (isFinished() ? "completed" : "not completed");
+    }
+}
@@ -0,0 +1,57 @@
+package ru.digiteklabs.scheduler.load;
+
+import java.util.Arrays;
+
+/**
+ * A recorder of latency samples with exact percentiles.
+ *
+ * Samples are kept in a growing array of longs, without boxing,
+ * and are sorted only when percentiles are requested.
+ *
+ * This class is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+final class LatencyRecorder {
+
+    // Guarded by this
+    private long[] samples = new long[1024];
+
+    // Guarded by this
+    private int size = 0;
+
+    // Guarded by this
+    private long sum = 0;
+
+    synchronized void record(final long sample) {
+        if (size == samples.length)
+            samples = Arrays.copyOf(samples, size * 2);
+        samples[size++] = sample;
+        sum += sample;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized double mean() {
+        return size == 0 ? 0.0 : (double) sum / size;
+    }
+
+    /**
+     * Gets percentiles of recorded samples by nearest rank
+     * @param percents requested percents from 0 to 100
+     * @return a sample for each requested percent, or zeros if nothing is recorded
+     */
+    synchronized long[] percentiles(final double... percents) {
+        final long[] result = new long[percents.length];
+        if (size == 0)
+            return result;
+        Arrays.sort(samples, 0, size);
+        for (int i = 0; i < percents.length; i++) {
+            final int rank = (int) Math.ceil(percents[i] / 100.0 * size);
+            result[i] = samples[Math.min(size - 1, Math.max(0, rank - 1))];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+package ru.digiteklabs.scheduler.load;
+
+import java.util.*;
+
+/**
+ * Parameters of a load test given as name=value command line arguments.
+ *
+ * This class is immutable
+ *
+ * @author Mikhail Glukhikh
+ */
+final class LoadConfig {
+
+    static final String IN_PROCESS = "inprocess";
+
+    static final String HTTP = "http";
+
+    /**
+     * Job kinds that can be used in a mix
+     */
+    static final List<String> KINDS = Collections.unmodifiableList(
+            Arrays.asList("oneshot", "periodic", "sequential", "checker", "dag"));
+
+    /**
+     * Either in-process or HTTP
+     */
+    final String mode;
+
+    /**
+     * A server URL for HTTP mode
+     */
+    final String url;
+
+    /**
+     * A number of jobs (or graphs) to submit
+     */
+    final int jobs;
+
+    /**
+     * Arrivals per second, zero to submit as fast as possible
+     */
+    final double rate;
+
+    /**
+     * A maximum time of submission in ms, zero for no limit
+     */
+    final long time;
+
+    /**
+     * Job kinds with their weights, in order of KINDS
+     */
+    final int[] weights;
+
+    /**
+     * A job run duration in ms, a sequential job spends it on ten stages
+     */
+    final long duration;
+
+    /**
+     * A planned time offset from a submission moment in ms
+     */
+    final long delay;
+
+    /**
+     * A pause between periodic job runs in ms
+     */
+    final long period;
+
+    /**
+     * Scheduler threads in in-process mode
+     */
+    final int threads;
+
+    /**
+     * Concurrent HTTP clients in HTTP mode
+     */
+    final int clients;
+
+    /**
+     * Either diamond (a root, width parallel nodes, a sink) or chain (width nodes one after another)
+     */
+    final String dagShape;
+
+    final int dagWidth;
+
+    /**
+     * A fraction of graph job calls which are slow
+     */
+    final double stragglers;
+
+    /**
+     * A percentile of graph job durations to start backups after, zero for no backups
+     */
+    final double speculation;
+
+    /**
+     * A prime calculator limit for prime checkers, checked numbers are below it
+     */
+    final int primes;
+
+    final long seed;
+
+    /**
+     * Maximum time in ms to wait for submitted jobs after submission is over
+     */
+    final long drain;
+
+    /**
+     * A report file name, or null to print a report
+     */
+    final String report;
+
+    /**
+     * A trace file name, or null not to record a trace
+     */
+    final String trace;
+
+    /**
+     * Parses arguments
+     * @param args name=value arguments
+     * @throws IllegalArgumentException if an argument is unknown or malformed
+     */
+    LoadConfig(final String[] args) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (String arg: args) {
+            final int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("Argument " + arg + " is not name=value");
+            values.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        mode = take(values, "mode", IN_PROCESS);
+        if (!IN_PROCESS.equals(mode) && !HTTP.equals(mode))
+            throw new IllegalArgumentException("Mode must be " + IN_PROCESS + " or " + HTTP);
+        url = take(values, "url", "http://localhost:8080");
+        jobs = Integer.parseInt(take(values, "jobs", "1000"));
+        rate = Double.parseDouble(take(values, "rate", "0"));
+        time = Long.parseLong(take(values, "time", "0"));
+        weights = parseMix(take(values, "mix", "oneshot:1"));
+        duration = Long.parseLong(take(values, "duration", "10"));
+        delay = Long.parseLong(take(values, "delay", "0"));
+        period = Long.parseLong(take(values, "period", "1000"));
+        threads = Integer.parseInt(take(values, "threads", "4"));
+        clients = Integer.parseInt(take(values, "clients", "4"));
+        dagShape = take(values, "dagShape", "diamond");
+        if (!"diamond".equals(dagShape) && !"chain".equals(dagShape))
+            throw new IllegalArgumentException("Graph shape must be diamond or chain");
+        dagWidth = Integer.parseInt(take(values, "dagWidth", "4"));
+        stragglers = Double.parseDouble(take(values, "stragglers", "0"));
+        speculation = Double.parseDouble(take(values, "speculation", "0"));
+        primes = Integer.parseInt(take(values, "primes", "1000000"));
+        seed = Long.parseLong(take(values, "seed", "1"));
+        drain = Long.parseLong(take(values, "drain", "30000"));
+        report = take(values, "report", null);
+        trace = take(values, "trace", null);
+        if (!values.isEmpty())
+            throw new IllegalArgumentException("Unknown arguments " + values.keySet());
+        if (jobs < 0 || rate < 0 || time < 0 || duration < 0 || delay < 0 || period < 0
+                || threads < 1 || clients < 1 || dagWidth < 1 || primes < 2
+                || stragglers < 0 || stragglers > 1 || speculation < 0 || speculation > 100)
+            throw new IllegalArgumentException("Numeric arguments are out of range");
+        if (HTTP.equals(mode) && weights[KINDS.indexOf("dag")] > 0)
+            throw new IllegalArgumentException("Graph jobs cannot be submitted by HTTP, the API has no dependencies");
+        if (HTTP.equals(mode) && trace != null)
+            throw new IllegalArgumentException("A trace can be recorded in inprocess mode only");
+        if (HTTP.equals(mode) && speculation > 0)
+            throw new IllegalArgumentException("Speculation can be used in inprocess mode only");
+    }
+
+    private static String take(final Map<String, String> values, final String name, final String defaultValue) {
+        final String value = values.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int[] parseMix(final String mix) {
+        final int[] result = new int[KINDS.size()];
+        int total = 0;
+        for (String part: mix.split(",")) {
+            final int colon = part.indexOf(':');
+            final String kind = colon < 0 ? part : part.substring(0, colon);
+            final int index = KINDS.indexOf(kind);
+            if (index < 0)
+                throw new IllegalArgumentException("Unknown job kind " + kind + ", expected one of " + KINDS);
+            result[index] = colon < 0 ? 1 : Integer.parseInt(part.substring(colon + 1));
+            if (result[index] < 0)
+                throw new IllegalArgumentException("Weight of " + kind + " is negative");
+            total += result[index];
+        }
+        if (total == 0)
+            throw new IllegalArgumentException("Job mix is empty");
+        return result;
+    }
+
+    /**
+     * Chooses a job kind according to weights
+     * @param random a random generator
+     * @return a job kind from KINDS
+     */
+    String chooseKind(final Random random) {
+        int total = 0;
+        for (int weight: weights)
+            total += weight;
+        int value = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            value -= weights[i];
+            if (value < 0)
+                return KINDS.get(i);
+        }
+        throw new AssertionError("Cannot choose a job kind in LoadConfig.chooseKind!");
+    }
+
+    /**
+     * @return the mix as a map from job kinds to weights, without zero weights
+     */
+    Map<String, Integer> getMix() {
+        final Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < weights.length; i++)
+            if (weights[i] > 0)
+                result.put(KINDS.get(i), weights[i]);
+        return result;
+    }
+}
@@ -0,0 +1,545 @@
+package ru.digiteklabs.scheduler.load;
+
+import ru.digiteklabs.scheduler.core.api.SchedulingException;
+import ru.digiteklabs.scheduler.core.impl.SchedulerMetrics;
+import ru.digiteklabs.scheduler.core.impl.TimerScheduler;
+import ru.digiteklabs.scheduler.core.impl.TraceRecorder;
+import ru.digiteklabs.scheduler.job.api.Job;
+import ru.digiteklabs.scheduler.job.api.JobObserver;
+import ru.digiteklabs.scheduler.job.samples.*;
+import ru.digiteklabs.scheduler.web.JsonWriter;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator and soak-test harness for a scheduler and a toy server.
+ *
+ * Submits a configurable mix of jobs with a given arrival rate either directly to a TimerScheduler
+ * created in the same process, or to a running ToyServer through its JSON API.
+ * When submission is over, waits for submitted jobs, removes periodic jobs and prints a JSON report
+ * with throughput, latency percentiles, garbage collection and heap usage.
+ *
+ * In-process latency is a delay in ms between a moment a job can run
+ * (its planned time, its submission or completion of its required jobs, whichever is later) and its start.
+ * HTTP latency is a round trip time of a submission request in microseconds.
+ *
+ * Run without arguments for a default in-process test, or with name=value arguments, see usage.
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class LoadGenerator {
+
+    static private final String USAGE = "Usage: LoadGenerator [name=value ...]\n" +
+            "  mode=inprocess|http   drive a scheduler in this process or a toy server (inprocess)\n" +
+            "  url=URL               toy server URL in http mode (http://localhost:8080)\n" +
+            "  jobs=N                number of jobs or graphs to submit (1000)\n" +
+            "  rate=R                arrivals per second, 0 for as fast as possible (0)\n" +
+            "  time=MS               maximum submission time, 0 for no limit (0)\n" +
+            "  mix=KIND:W,...        weighted job mix of " + LoadConfig.KINDS + " (oneshot:1)\n" +
+            "  duration=MS           job run duration (10)\n" +
+            "  delay=MS              planned time offset from submission (0)\n" +
+            "  period=MS             pause between periodic job runs (1000)\n" +
+            "  threads=N             scheduler threads in inprocess mode (4)\n" +
+            "  clients=N             concurrent HTTP clients in http mode (4)\n" +
+            "  dagShape=diamond|chain, dagWidth=N   graph shape and width (diamond, 4)\n" +
+            "  stragglers=F          fraction of graph job runs which are ten times slower (0)\n" +
+            "  speculation=P         percentile of graph job durations to start backups after, 0 for none (0)\n" +
+            "  primes=N              prime calculator limit for checkers (1000000)\n" +
+            "  seed=N                random seed (1)\n" +
+            "  drain=MS              maximum wait for submitted jobs (30000)\n" +
+            "  report=FILE           write a JSON report to a file instead of printing it\n" +
+            "  trace=FILE            record a binary trace of scheduler events in inprocess mode";
+
+    private static final double[] PERCENTS = {50, 90, 99, 99.9, 100};
+
+    private static final String[] PERCENT_NAMES = {"p50", "p90", "p99", "p999", "max"};
+
+    /**
+     * A poll interval in ms while waiting for jobs
+     */
+    private static final long POLL_INTERVAL = 10;
+
+    private final LoadConfig config;
+
+    private final Random random;
+
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    private final AtomicLong submitted = new AtomicLong(0);
+
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * Job runs finished in-process
+     */
+    private final AtomicLong finished = new AtomicLong(0);
+
+    /**
+     * Submission requests failed with an I/O error in HTTP mode
+     */
+    private final AtomicLong errors = new AtomicLong(0);
+
+    /**
+     * Submitted jobs that are not periodic and are not finished yet, in-process only
+     */
+    private final AtomicLong outstanding = new AtomicLong(0);
+
+    /**
+     * Jobs handed back by a scheduler shutdown, including periodic ones, in-process only
+     */
+    private volatile int abandoned = 0;
+
+    private SchedulerMetrics schedulerMetrics = null;
+
+    LoadGenerator(final LoadConfig config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+    }
+
+    /**
+     * Observes in-process jobs, records start latencies and finished runs
+     */
+    private class RunObserver implements JobObserver {
+
+        /**
+         * Moments in ms when jobs are submitted, thread-safe
+         */
+        private final ConcurrentMap<Job, Long> submittedAt = new ConcurrentHashMap<Job, Long>();
+
+        /**
+         * Moments in ms when graph nodes are finished, thread-safe
+         */
+        private final ConcurrentMap<Job, Long> finishedAt = new ConcurrentHashMap<Job, Long>();
+
+        /**
+         * Graphs by their sinks, a graph is listed sink first, thread-safe
+         */
+        private final ConcurrentMap<Job, List<Job>> graphs = new ConcurrentHashMap<Job, List<Job>>();
+
+        /**
+         * Graphs with a finished sink to remove from a scheduler, thread-safe
+         */
+        private final Queue<List<Job>> finishedGraphs = new ConcurrentLinkedQueue<List<Job>>();
+
+        @Override
+        public void progressChanged(Job job, int progress) {
+            final long now = System.currentTimeMillis();
+            if (progress == 0) {
+                final Long since = submittedAt.get(job);
+                final Date planned = job.getPlannedTime();
+                long ready = Math.max(since == null ? now : since, planned == null ? now : planned.getTime());
+                for (Job required: job.getRequiredJobs()) {
+                    final Long requiredFinished = finishedAt.get(required);
+                    if (requiredFinished != null)
+                        ready = Math.max(ready, requiredFinished);
+                }
+                latency.record(Math.max(0, now - ready));
+            } else if (progress == job.getMaxProgress()) {
+                if (job instanceof PeriodicJob) {
+                    finished.incrementAndGet();
+                    return;
+                }
+                // Some jobs report their maximum progress twice, at the last stage and in afterRun()
+                if (submittedAt.remove(job) == null)
+                    return;
+                finished.incrementAndGet();
+                outstanding.decrementAndGet();
+                if (job instanceof DagJob)
+                    finishedAt.put(job, now);
+                final List<Job> graph = graphs.remove(job);
+                if (graph != null)
+                    finishedGraphs.add(graph);
+            }
+        }
+
+        @Override
+        public void readyChanged(Job job, boolean ready) {
+            // DO NOTHING
+        }
+    }
+
+    /**
+     * Runs a test
+     * @return a JSON report
+     * @throws IOException if a toy server cannot be reached in HTTP mode
+     * @throws InterruptedException if interrupted
+     */
+    String run() throws IOException, InterruptedException {
+        final Map<String, Long> gcBefore = gcTotals();
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        final long start = System.nanoTime();
+        if (LoadConfig.HTTP.equals(config.mode))
+            runHttp(start);
+        else
+            runInProcess(start);
+        final long elapsed = (System.nanoTime() - start) / 1000000L;
+        return report(elapsed, gcBefore, gcTotals());
+    }
+
+    /**
+     * Waits until a next arrival moment
+     * @param index an arrival index
+     * @param start a test start in ns
+     * @return false if submission time is over, true otherwise
+     */
+    private boolean pace(final int index, final long start) throws InterruptedException {
+        if (config.time > 0 && System.nanoTime() - start >= config.time * 1000000L)
+            return false;
+        if (config.rate > 0) {
+            final long wait = start + (long) (index * 1e9 / config.rate) - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return true;
+    }
+
+    private void runInProcess(final long start) throws IOException, InterruptedException {
+        final TimerScheduler scheduler = new TimerScheduler(config.threads);
+        schedulerMetrics = scheduler.getMetrics();
+        final TraceRecorder recorder = config.trace == null ? null : new TraceRecorder(new File(config.trace));
+        scheduler.setTraceRecorder(recorder);
+        scheduler.setSpeculation(config.speculation);
+        final RunObserver observer = new RunObserver();
+        PrimeCalcJob calcJob = null;
+        if (config.weights[LoadConfig.KINDS.indexOf("checker")] > 0) {
+            calcJob = new PrimeCalcJob(new Date(), config.primes);
+            try {
+                scheduler.addJob(calcJob);
+            } catch (SchedulingException ex) {
+                throw new AssertionError("Cannot add a prime calculator in LoadGenerator.runInProcess!");
+            }
+        }
+        for (int i = 0; i < config.jobs && pace(i, start); i++) {
+            final long now = System.currentTimeMillis();
+            final Date planned = new Date(now + config.delay);
+            final String kind = config.chooseKind(random);
+            final List<Job> jobs;
+            if ("dag".equals(kind)) {
+                jobs = createGraph(planned);
+                observer.graphs.put(jobs.get(0), jobs);
+            } else {
+                jobs = Collections.singletonList(createJob(kind, planned, calcJob));
+            }
+            // Required jobs go first, so a graph is added from its end
+            for (int j = jobs.size() - 1; j >= 0; j--) {
+                final Job job = jobs.get(j);
+                job.addObserver(observer);
+                observer.submittedAt.put(job, now);
+                if (!(job instanceof PeriodicJob))
+                    outstanding.incrementAndGet();
+                submitted.incrementAndGet();
+                try {
+                    scheduler.addJob(job);
+                } catch (SchedulingException ex) {
+                    rejected.incrementAndGet();
+                    if (jobs.size() > 1) {
+                        // Successors of a rejected node would be rejected too
+                        dropGraph(observer, jobs);
+                        break;
+                    }
+                    if (observer.submittedAt.remove(job) != null && !(job instanceof PeriodicJob))
+                        outstanding.decrementAndGet();
+                }
+            }
+            removeGraphs(scheduler, observer);
+        }
+        final long deadline = System.currentTimeMillis() + config.drain;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+            removeGraphs(scheduler, observer);
+            Thread.sleep(POLL_INTERVAL);
+        }
+        removeGraphs(scheduler, observer);
+        // Periodic jobs and jobs not finished by the deadline are abandoned
+        abandoned = scheduler.shutdown().size();
+        scheduler.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (recorder != null)
+            recorder.close();
+    }
+
+    private Job createJob(final String kind, final Date planned, final PrimeCalcJob calcJob) {
+        if ("oneshot".equals(kind))
+            return new OneShotJob(planned, config.duration);
+        else if ("periodic".equals(kind))
+            return new PeriodicJob(planned, config.duration, config.period);
+        else if ("sequential".equals(kind))
+            return new SequentialJob(10, planned, config.duration / 10);
+        else if ("checker".equals(kind))
+            return new PrimeCheckJob(planned, calcJob, random.nextInt(config.primes));
+        throw new IllegalArgumentException("Unknown job kind " + kind);
+    }
+
+    private Job graphJob(final Date planned, final Set<Job> requiredJobs) {
+        return new DagJob(planned, requiredJobs, config.duration, config.stragglers, random);
+    }
+
+    /**
+     * Creates a graph of jobs of a configured shape
+     * @return graph nodes, a sink first, then in reverse dependency order
+     */
+    private List<Job> createGraph(final Date planned) {
+        final List<Job> result = new ArrayList<Job>();
+        if ("chain".equals(config.dagShape)) {
+            Job previous = graphJob(planned, Collections.<Job>emptySet());
+            result.add(previous);
+            for (int i = 1; i < config.dagWidth; i++) {
+                previous = graphJob(planned, Collections.singleton(previous));
+                result.add(previous);
+            }
+        } else {
+            final Job root = graphJob(planned, Collections.<Job>emptySet());
+            result.add(root);
+            final Set<Job> middle = new HashSet<Job>();
+            for (int i = 0; i < config.dagWidth; i++) {
+                final Job job = graphJob(planned, Collections.singleton(root));
+                middle.add(job);
+                result.add(job);
+            }
+            result.add(graphJob(planned, middle));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Drops a graph with a rejected node: its nodes are not waited for anymore,
+     * and nodes already added are removed together with finished graphs
+     */
+    private void dropGraph(final RunObserver observer, final List<Job> graph) {
+        observer.graphs.remove(graph.get(0));
+        for (Job job: graph) {
+            // A node finished concurrently is already removed by the observer
+            if (observer.submittedAt.remove(job) != null)
+                outstanding.decrementAndGet();
+        }
+        observer.finishedGraphs.add(graph);
+    }
+
+    /**
+     * Removes graphs with finished sinks, graph nodes are never removed automatically
+     */
+    private void removeGraphs(final TimerScheduler scheduler, final RunObserver observer) {
+        for (List<Job> graph = observer.finishedGraphs.poll(); graph != null;
+             graph = observer.finishedGraphs.poll()) {
+            try {
+                for (Job job: graph) {
+                    scheduler.removeJob(job);
+                    observer.finishedAt.remove(job);
+                    observer.submittedAt.remove(job);
+                }
+            } catch (SchedulingException ex) {
+                // A sink is still running, try again later
+                observer.finishedGraphs.add(graph);
+                return;
+            }
+        }
+    }
+
+    private void runHttp(final long start) throws IOException, InterruptedException {
+        final String prefix = "load-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+        if (config.weights[LoadConfig.KINDS.indexOf("checker")] > 0) {
+            // Creates a calculator or extends an existing one
+            final int code = post(prefix + "calculator", "calculator", 0, config.primes);
+            if (code != 200 && code != 201)
+                throw new IOException("Cannot create a prime calculator, response code " + code);
+        }
+        final ExecutorService clients = Executors.newFixedThreadPool(config.clients);
+        final List<String> periodicNames = new CopyOnWriteArrayList<String>();
+        for (int i = 0; i < config.jobs && pace(i, start); i++) {
+            final String kind = config.chooseKind(random);
+            final String name = prefix + i;
+            final long param = "checker".equals(kind) ? random.nextInt(config.primes) : config.duration;
+            submitted.incrementAndGet();
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long requestStart = System.nanoTime();
+                    try {
+                        final int code = post(name, kind, config.delay, param);
+                        latency.record((System.nanoTime() - requestStart) / 1000L);
+                        if (code != 201)
+                            rejected.incrementAndGet();
+                        else if ("periodic".equals(kind))
+                            periodicNames.add(name);
+                    } catch (IOException ex) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(config.drain, TimeUnit.MILLISECONDS);
+        final long deadline = System.currentTimeMillis() + config.drain;
+        for (String name: periodicNames) {
+            // 409 means the job is running now
+            while (delete(name) == 409 && System.currentTimeMillis() < deadline)
+                Thread.sleep(POLL_INTERVAL);
+        }
+    }
+
+    private int post(final String name, final String type, final long time, final long param) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(config.url + "/api/jobs").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        final byte[] body = ("name=" + URLEncoder.encode(name, "UTF-8") + "&type=" + type +
+                "&time=" + time + "&param=" + param).getBytes("UTF-8");
+        connection.setFixedLengthStreamingMode(body.length);
+        final OutputStream out = connection.getOutputStream();
+        out.write(body);
+        out.close();
+        return finish(connection);
+    }
+
+    private int delete(final String name) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                config.url + "/api/jobs/" + URLEncoder.encode(name, "UTF-8")).openConnection();
+        connection.setRequestMethod("DELETE");
+        return finish(connection);
+    }
+
+    /**
+     * Reads a response fully, so a connection can be reused
+     * @return a response code
+     */
+    private static int finish(final HttpURLConnection connection) throws IOException {
+        final int code = connection.getResponseCode();
+        final InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            final byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // Skip
+            }
+            in.close();
+        }
+        return code;
+    }
+
+    private static Map<String, Long> gcTotals() {
+        long count = 0, time = 0;
+        for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+            // -1 if undefined
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("collections", count);
+        result.put("timeMs", time);
+        return result;
+    }
+
+    private String report(final long elapsed, final Map<String, Long> gcBefore, final Map<String, Long> gcAfter)
+            throws IOException {
+        final boolean http = LoadConfig.HTTP.equals(config.mode);
+        final StringWriter text = new StringWriter();
+        final JsonWriter json = new JsonWriter(text);
+        json.beginObject().name("mode").value(config.mode);
+        json.name("config").beginObject()
+                .name("jobs").value(config.jobs)
+                .name("rate").value(config.rate)
+                .name("time").value(config.time)
+                .name("mix");
+        writeCounts(json, config.getMix());
+        json.name("duration").value(config.duration)
+                .name("delay").value(config.delay)
+                .name("period").value(config.period)
+                .name(http ? "clients" : "threads").value(http ? config.clients : config.threads);
+        if (config.weights[LoadConfig.KINDS.indexOf("dag")] > 0) {
+            json.name("dagShape").value(config.dagShape)
+                    .name("dagWidth").value(config.dagWidth)
+                    .name("stragglers").value(config.stragglers)
+                    .name("speculation").value(config.speculation);
+        }
+        json.endObject();
+        json.name("elapsedMs").value(elapsed)
+                .name("submitted").value(submitted.get())
+                .name("rejected").value(rejected.get());
+        final long done = http ? submitted.get() - rejected.get() - errors.get() : finished.get();
+        if (http) {
+            json.name("errors").value(errors.get()).name("accepted").value(done);
+        } else {
+            json.name("runs").value(done)
+                    .name("unfinished").value(outstanding.get())
+                    .name("abandoned").value(abandoned);
+        }
+        json.name("throughputPerSecond").value(elapsed == 0 ? 0.0 : done * 1000.0 / elapsed);
+        json.name(http ? "requestLatency" : "startLatency").beginObject()
+                .name("unit").value(http ? "us" : "ms")
+                .name("samples").value(latency.size())
+                .name("mean").value(latency.mean());
+        final long[] percentiles = latency.percentiles(PERCENTS);
+        for (int i = 0; i < PERCENTS.length; i++)
+            json.name(PERCENT_NAMES[i]).value(percentiles[i]);
+        json.endObject();
+        json.name("gc").beginObject();
+        for (Map.Entry<String, Long> entry: gcAfter.entrySet())
+            json.name(entry.getKey()).value(entry.getValue() - gcBefore.get(entry.getKey()));
+        json.endObject();
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long peak = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        json.name("heap").beginObject()
+                .name("usedBytes").value(heap.getUsed())
+                .name("committedBytes").value(heap.getCommitted())
+                .name("maxBytes").value(heap.getMax())
+                // Pools reach their peaks at different moments, so it's an upper bound
+                .name("peakUsedBytes").value(peak)
+                .endObject();
+        if (schedulerMetrics != null) {
+            json.name("scheduler").beginObject().name("jobs");
+            writeCounts(json, schedulerMetrics.getJobCounts());
+            json.name("timerQueueSize").value(schedulerMetrics.getTimerQueueSize())
+                    .name("completed").value(schedulerMetrics.getCompleted())
+                    .name("failed").value(schedulerMetrics.getFailed())
+                    .name("backupRuns").value(schedulerMetrics.getBackupRuns())
+                    .name("backupWins").value(schedulerMetrics.getBackupWins())
+                    .endObject();
+        }
+        json.endObject();
+        return text.append('\n').toString();
+    }
+
+    private static void writeCounts(final JsonWriter json, final Map<String, ? extends Number> counts)
+            throws IOException {
+        json.beginObject();
+        for (Map.Entry<String, ? extends Number> entry: counts.entrySet())
+            json.name(entry.getKey()).value(entry.getValue().longValue());
+        json.endObject();
+    }
+
+    /**
+     * Runs a load test with name=value arguments and prints or writes a report
+     * @param args command line arguments, see usage
+     */
+    static public void main(String[] args) throws Exception {
+        final LoadConfig config;
+        try {
+            config = new LoadConfig(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        final String report = new LoadGenerator(config).run();
+        if (config.report == null) {
+            System.out.print(report);
+        } else {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(config.report), "UTF-8");
+            out.write(report);
+            out.close();
+        }
+        // Runs which are not completed by the deadline may still keep scheduler threads
+        System.exit(0);
+    }
+}
@@ -0,0 +1,237 @@
+package ru.digiteklabs.scheduler.web;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.job.api.Job;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handler for a stream of server-sent events about environment changes.
+ *
+ * A new client gets a snapshot event with all jobs, then delta events with changed and removed jobs only.
+ * Changes are collected by environment observers and coalesced, a delta is rendered once
+ * per interval and the same bytes are sent to all clients. So the cost is proportional
+ * to a number of changes, not to a number of jobs multiplied by a number of clients.
+ *
+ * An exchange of a client is kept open after handle() returns, so event streams do not occupy server threads.
+ * Events are rendered under a lock but written outside of it: each client has a bounded queue of events
+ * and a writer task which is run by a shared pool while the queue is not empty. A client which falls
+ * MAX_QUEUED_EVENTS events behind is disconnected, a browser reconnects and gets a fresh snapshot.
+ * So a slow client delays neither other clients nor new connections.
+ *
+ * This class is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+class EventBroadcaster implements HttpHandler {
+
+    /**
+     * Number of intervals without changes after which a keep-alive comment is sent
+     */
+    private static final int HEARTBEAT_INTERVALS = 60;
+
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(RequestParser.UTF8);
+
+    /**
+     * Maximum number of events waiting to be written to one client
+     */
+    private static final int MAX_QUEUED_EVENTS = 32;
+
+    /**
+     * An open event stream of one client with events waiting to be written
+     */
+    private final class Client implements Runnable {
+
+        private final HttpExchange exchange;
+
+        private final OutputStream out;
+
+        // Unconditionally thread-safe
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_EVENTS);
+
+        /**
+         * True while a writer task of this client is submitted or running
+         */
+        private final AtomicBoolean writing = new AtomicBoolean(false);
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Client(final HttpExchange exchange) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+        }
+
+        /**
+         * Queues an event and starts a writer if there is none, disconnects the client if its queue is full
+         */
+        void offer(final byte[] message) {
+            if (closed.get())
+                return;
+            if (!queue.offer(message)) {
+                disconnect();
+                return;
+            }
+            if (writing.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    disconnect();
+                }
+            }
+        }
+
+        /**
+         * Writes queued events until the queue is empty, run by a writer pool
+         */
+        @Override
+        public void run() {
+            do {
+                for (byte[] message = queue.poll(); message != null; message = queue.poll()) {
+                    if (closed.get())
+                        return;
+                    try {
+                        out.write(message);
+                        out.flush();
+                    } catch (IOException ex) {
+                        // Client has gone away
+                        disconnect();
+                        return;
+                    }
+                }
+                writing.set(false);
+                // An event queued after the last poll but before the flag is cleared is written by this task
+            } while (!queue.isEmpty() && writing.compareAndSet(false, true));
+        }
+
+        /**
+         * Removes the client and closes its exchange in a writer thread, closing can block on a stalled client
+         */
+        void disconnect() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            clients.remove(this);
+            queue.clear();
+            try {
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        exchange.close();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                exchange.close();
+            }
+        }
+    }
+
+    private final ToyEnvironment environment;
+
+    // Unconditionally thread-safe
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+    private final Timer timer = new Timer("Event broadcaster", true);
+
+    /**
+     * Writers of client events, a thread is taken only while a client has events to write
+     */
+    private final ExecutorService writers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Event writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Guarded by this
+    private int idleIntervals = 0;
+
+    /**
+     * Constructs a broadcaster and starts sending deltas
+     * @param environment an environment to watch
+     * @param interval an interval between deltas in milliseconds
+     */
+    EventBroadcaster(final @NotNull ToyEnvironment environment, final long interval) {
+        this.environment = environment;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                broadcast();
+            }
+        }, interval, interval);
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        httpExchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        httpExchange.sendResponseHeaders(200, 0);
+        final Client client = new Client(httpExchange);
+        // Synchronizing with broadcast(), so changes made after the snapshot come with the next delta
+        synchronized (this) {
+            final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            final Writer writer = new OutputStreamWriter(snapshot, RequestParser.UTF8);
+            writer.write("event: snapshot\ndata: ");
+            environment.writeJson(new JsonWriter(writer));
+            writer.write("\n\n");
+            writer.close();
+            clients.add(client);
+            client.offer(snapshot.toByteArray());
+        }
+    }
+
+    /**
+     * Renders one delta event with all collected changes and queues it to all clients
+     */
+    synchronized void broadcast() {
+        final List<String> changed = environment.takeChangedNames();
+        final byte[] message;
+        if (!changed.isEmpty()) {
+            try {
+                message = renderDelta(changed);
+            } catch (IOException ex) {
+                // Should not occur for in-memory output
+                throw new AssertionError("Cannot render delta in EventBroadcaster.broadcast!");
+            }
+            idleIntervals = 0;
+        } else if (++idleIntervals >= HEARTBEAT_INTERVALS) {
+            message = HEARTBEAT;
+            idleIntervals = 0;
+        } else {
+            return;
+        }
+        for (Client client: clients)
+            client.offer(message);
+    }
+
+    private byte[] renderDelta(final List<String> changed) throws IOException {
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        final Writer writer = new OutputStreamWriter(delta, RequestParser.UTF8);
+        writer.write("event: delta\ndata: ");
+        final JsonWriter json = new JsonWriter(writer);
+        json.beginObject().name("changed").beginArray();
+        final List<String> removed = new ArrayList<String>();
+        for (String name: changed) {
+            final Job job = environment.getJob(name);
+            if (job != null)
+                environment.writeJson(json, name, job);
+            else
+                removed.add(name);
+        }
+        json.endArray().name("removed").beginArray();
+        for (String name: removed)
+            json.value(name);
+        json.endArray().endObject();
+        writer.write("\n\n");
+        writer.close();
+        return delta.toByteArray();
+    }
+}
@@ -0,0 +1,282 @@
+package ru.digiteklabs.scheduler.web;
+
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.job.api.Job;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A registry of named jobs with indexes by name, type and state.
+ *
+ * Names are kept sorted, so a page of jobs after a given name is found in O(log n + page size).
+ * Type and state indexes are sorted sets of names with their own counters.
+ * A state of a job is updated by calling updateState() from job observers.
+ *
+ * This class is unconditionally thread-safe, readers never lock
+ *
+ * @author Mikhail Glukhikh
+ */
+final class JobRegistry {
+
+    /**
+     * Coarse job state used for filtering
+     */
+    enum State {
+        /**
+         * Job is not started yet
+         */
+        PLANNED,
+        /**
+         * Job is started but not finished
+         */
+        RUNNING,
+        /**
+         * Job is finished, may be it will be run again
+         */
+        FINISHED;
+
+        static State of(final Job job) {
+            if (!job.isStarted())
+                return PLANNED;
+            return job.isFinished() ? FINISHED : RUNNING;
+        }
+    }
+
+    /**
+     * A registered job with its name, type and last known state
+     */
+    static final class Entry {
+
+        private final String name;
+
+        private final Job job;
+
+        private final String type;
+
+        // Changed with this lock held
+        private volatile State state;
+
+        // Guarded by this
+        private boolean removed = false;
+
+        Entry(final String name, final Job job, final String type) {
+            this.name = name;
+            this.job = job;
+            this.type = type;
+            this.state = State.of(job);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Job getJob() {
+            return job;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        State getState() {
+            return state;
+        }
+    }
+
+    /**
+     * A sorted set of names with a counter, since size() of concurrent sets is linear
+     */
+    private static final class Index {
+
+        private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<String>();
+
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        void add(final String name) {
+            if (names.add(name))
+                size.incrementAndGet();
+        }
+
+        void remove(final String name) {
+            if (names.remove(name))
+                size.decrementAndGet();
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<String, Entry>();
+
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * Jobs do not override equals(), so it's an identity map in fact
+     */
+    private final ConcurrentMap<Job, Entry> byJob = new ConcurrentHashMap<Job, Entry>();
+
+    private final ConcurrentMap<String, Index> byType = new ConcurrentHashMap<String, Index>();
+
+    /**
+     * Filled in constructor, then only read
+     */
+    private final Map<State, Index> byState = new EnumMap<State, Index>(State.class);
+
+    JobRegistry() {
+        for (State state: State.values())
+            byState.put(state, new Index());
+    }
+
+    private Index typeIndex(final String type) {
+        final Index index = byType.get(type);
+        if (index != null)
+            return index;
+        final Index created = new Index();
+        final Index previous = byType.putIfAbsent(type, created);
+        return previous != null ? previous : created;
+    }
+
+    /**
+     * Registers a new job
+     * @param name a job name
+     * @param job a job itself
+     * @param type a job type
+     * @return a new entry, or null if the name is already registered
+     */
+    Entry add(final @NotNull String name, final @NotNull Job job, final @NotNull String type) {
+        final Entry entry = new Entry(name, job, type);
+        if (byName.putIfAbsent(name, entry) != null)
+            return null;
+        size.incrementAndGet();
+        byJob.put(job, entry);
+        synchronized (entry) {
+            typeIndex(type).add(name);
+            byState.get(entry.state).add(name);
+        }
+        return entry;
+    }
+
+    /**
+     * Unregisters a job
+     * @param name a job name
+     * @return a removed entry, or null if the name is not registered
+     */
+    Entry remove(final @NotNull String name) {
+        final Entry entry = byName.remove(name);
+        if (entry == null)
+            return null;
+        size.decrementAndGet();
+        byJob.remove(entry.job, entry);
+        synchronized (entry) {
+            entry.removed = true;
+            typeIndex(entry.type).remove(name);
+            byState.get(entry.state).remove(name);
+        }
+        return entry;
+    }
+
+    /**
+     * Moves a job to an index of its current state
+     * @param entry a registered entry
+     * @return true if the state is changed, false otherwise
+     */
+    boolean updateState(final @NotNull Entry entry) {
+        synchronized (entry) {
+            final State state = State.of(entry.job);
+            if (entry.removed || state == entry.state)
+                return false;
+            byState.get(entry.state).remove(entry.name);
+            byState.get(state).add(entry.name);
+            entry.state = state;
+            return true;
+        }
+    }
+
+    Entry get(final String name) {
+        return byName.get(name);
+    }
+
+    Entry get(final Job job) {
+        return byJob.get(job);
+    }
+
+    /**
+     * @return a number of registered jobs
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @param state a given state
+     * @return a number of registered jobs in a given state
+     */
+    int size(final @NotNull State state) {
+        return byState.get(state).size.get();
+    }
+
+    /**
+     * @param type a given type
+     * @return a number of registered jobs of a given type
+     */
+    int size(final @NotNull String type) {
+        final Index index = byType.get(type);
+        return index == null ? 0 : index.size.get();
+    }
+
+    /**
+     * Finds where a previous page of jobs sorted by name without filters starts.
+     *
+     * Costs O(log n + limit).
+     *
+     * @param after a name the current page starts after, exclusive
+     * @param limit a maximum number of jobs in a page
+     * @return a name to start the previous page after, or null if the previous page is the first one
+     */
+    String previousPage(final @NotNull String after, final int limit) {
+        int skipped = 0;
+        for (String name: byName.headMap(after, true).descendingKeySet()) {
+            if (skipped++ == limit)
+                return name;
+        }
+        return null;
+    }
+
+    /**
+     * Lists a page of jobs sorted by name.
+     *
+     * Costs O(log n + limit) if at most one filter is given.
+     *
+     * @param type a type to filter, or null
+     * @param state a state to filter, or null
+     * @param after a name to start after, exclusive, or null to start from the beginning
+     * @param limit a maximum number of jobs in a page
+     * @return a page of entries
+     */
+    List<Entry> list(final String type, final State state, final String after, final int limit) {
+        final NavigableSet<String> source;
+        if (type != null) {
+            final Index index = byType.get(type);
+            if (index == null)
+                return Collections.emptyList();
+            source = index.names;
+        } else if (state != null) {
+            source = byState.get(state).names;
+        } else {
+            source = byName.keySet();
+        }
+        final List<Entry> result = new ArrayList<Entry>(Math.min(limit, 1024));
+        for (String name: after == null ? source : source.tailSet(after, false)) {
+            if (result.size() >= limit)
+                break;
+            final Entry entry = byName.get(name);
+            // An entry may be removed concurrently
+            if (entry == null || (state != null && entry.state != state))
+                continue;
+            result.add(entry);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+package ru.digiteklabs.scheduler.web;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A minimal streaming JSON writer.
+ *
+ * Writes directly to an underlying writer, commas between members and array elements
+ * are inserted automatically. Nesting is tracked up to a fixed depth.
+ * Used by the toy server and by reports of the load generator.
+ *
+ * This class is not thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class JsonWriter {
+
+    private static final int MAX_DEPTH = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+
+    /**
+     * For each nesting level, whether it already has an element
+     */
+    private final boolean[] nonEmpty = new boolean[MAX_DEPTH];
+
+    private int depth = 0;
+
+    /**
+     * True if a member name was just written and a value is expected
+     */
+    private boolean afterName = false;
+
+    public JsonWriter(final @NotNull Writer out) {
+        this.out = out;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (nonEmpty[depth - 1])
+                out.write(',');
+            nonEmpty[depth - 1] = true;
+        }
+    }
+
+    private JsonWriter open(final char c) throws IOException {
+        beforeValue();
+        if (depth == MAX_DEPTH)
+            throw new IllegalStateException("JSON nesting is too deep");
+        out.write(c);
+        nonEmpty[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(final char c) throws IOException {
+        depth--;
+        out.write(c);
+        return this;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(final @NotNull String name) throws IOException {
+        beforeValue();
+        quote(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(final String value) throws IOException {
+        beforeValue();
+        if (value == null)
+            out.write("null");
+        else
+            quote(value);
+        return this;
+    }
+
+    public JsonWriter value(final long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes a number, NaN and infinities have no JSON form and are written as null
+     */
+    public JsonWriter value(final double value) throws IOException {
+        beforeValue();
+        out.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(final boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    private void quote(final String s) throws IOException {
+        out.write('"');
+        final int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '<')
+                continue;
+            out.write(s, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    // Control characters and '<', the latter to be safe inside HTML script blocks
+                    out.write("\\u00");
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xF]);
+            }
+        }
+        out.write(s, start, length - start);
+        out.write('"');
+    }
+}
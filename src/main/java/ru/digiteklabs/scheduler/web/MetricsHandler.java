@@ -0,0 +1,165 @@
+package ru.digiteklabs.scheduler.web;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.core.impl.SchedulerMetrics;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A handler exposing scheduler and server metrics in Prometheus text format.
+ *
+ * Scheduler values are taken from counters maintained by the scheduler itself,
+ * HTTP requests are counted by filters created with requestCounter() for each server context.
+ * A scrape costs a constant time, independent of a number of jobs.
+ *
+ * This class is thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+class MetricsHandler implements HttpHandler {
+
+    private final SchedulerMetrics metrics;
+
+    /**
+     * Request counters by handler and status code, thread-safe
+     */
+    private final ConcurrentMap<String, AtomicLong> requests = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Constructs a handler
+     * @param metrics scheduler metrics to expose
+     */
+    MetricsHandler(final @NotNull SchedulerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates a filter counting requests of one server context
+     * @param handler a handler name to use as a label, normally a context path
+     * @return a filter to add to a context
+     */
+    Filter requestCounter(final @NotNull String handler) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    // -1 if a response has not been sent
+                    count(handler, exchange.getResponseCode());
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Counts requests to " + handler;
+            }
+        };
+    }
+
+    private void count(final String handler, final int code) {
+        final String key = "handler=\"" + handler + "\",code=\"" + code + "\"";
+        AtomicLong counter = requests.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong(0);
+            counter = requests.putIfAbsent(key, created);
+            if (counter == null)
+                counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        try {
+            if (!"GET".equals(httpExchange.getRequestMethod())) {
+                httpExchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            final Writer writer = new OutputStreamWriter(bytes, RequestParser.UTF8);
+            write(writer);
+            writer.close();
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            httpExchange.sendResponseHeaders(200, bytes.size());
+            bytes.writeTo(httpExchange.getResponseBody());
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    /**
+     * Writes all metrics in Prometheus text format
+     * @param out a writer to write to
+     * @throws IOException if a writer fails
+     */
+    void write(final Writer out) throws IOException {
+        header(out, "scheduler_jobs", "gauge", "Number of scheduled jobs by status");
+        for (Map.Entry<String, Long> entry: metrics.getJobCounts().entrySet())
+            sample(out, "scheduler_jobs", "status=\"" + entry.getKey() + "\"", entry.getValue());
+        gauge(out, "scheduler_timer_queue_size", "Number of tasks waiting for their planned time",
+                metrics.getTimerQueueSize());
+        gauge(out, "scheduler_executor_active", "Number of job runs in progress",
+                metrics.getExecutorActive());
+        gauge(out, "scheduler_executor_queued", "Number of job runs waiting for an executor thread",
+                metrics.getExecutorQueued());
+        header(out, "scheduler_job_runs_total", "counter", "Number of finished job runs by result");
+        sample(out, "scheduler_job_runs_total", "result=\"completed\"", metrics.getCompleted());
+        sample(out, "scheduler_job_runs_total", "result=\"failed\"", metrics.getFailed());
+        header(out, "scheduler_rate_limited_total", "counter", "Number of job runs which waited for a rate limit");
+        sample(out, "scheduler_rate_limited_total", null, metrics.getDeferred());
+        header(out, "scheduler_resource_waits_total", "counter", "Number of job runs which waited for CPU slots or memory");
+        sample(out, "scheduler_resource_waits_total", null, metrics.getHeld());
+        header(out, "scheduler_deadline_misses_total", "counter", "Number of job runs finished after their deadlines");
+        sample(out, "scheduler_deadline_misses_total", null, metrics.getDeadlineMisses());
+        header(out, "scheduler_backup_runs_total", "counter", "Number of backup runs of slow idempotent jobs");
+        sample(out, "scheduler_backup_runs_total", null, metrics.getBackupRuns());
+        header(out, "scheduler_backup_wins_total", "counter", "Number of backup runs finished before the first call");
+        sample(out, "scheduler_backup_wins_total", null, metrics.getBackupWins());
+        histogram(out, "scheduler_dispatch_latency_seconds",
+                "Delay between a moment a job can run and its start", metrics.getDispatchLatency());
+        histogram(out, "scheduler_job_run_seconds", "Job run time", metrics.getRunTime());
+        header(out, "http_requests_total", "counter", "Number of HTTP requests by handler and status code");
+        for (Map.Entry<String, AtomicLong> entry: requests.entrySet())
+            sample(out, "http_requests_total", entry.getKey(), entry.getValue().get());
+    }
+
+    private static void header(final Writer out, final String name, final String type, final String help)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(final Writer out, final String name, final String labels, final long value)
+            throws IOException {
+        out.write(name);
+        if (labels != null)
+            out.write("{" + labels + "}");
+        out.write(" " + value + "\n");
+    }
+
+    private static void gauge(final Writer out, final String name, final String help, final long value)
+            throws IOException {
+        header(out, name, "gauge", help);
+        sample(out, name, null, value);
+    }
+
+    private static void histogram(final Writer out, final String name, final String help,
+                                  final SchedulerMetrics.Histogram histogram) throws IOException {
+        header(out, name, "histogram", help);
+        final double[] bounds = histogram.getBounds();
+        final long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < bounds.length; i++)
+            sample(out, name + "_bucket", "le=\"" + bounds[i] + "\"", counts[i]);
+        sample(out, name + "_bucket", "le=\"+Inf\"", counts[bounds.length]);
+        out.write(name + "_sum " + histogram.getSum() + "\n");
+        sample(out, name + "_count", null, counts[bounds.length]);
+    }
+}
@@ -0,0 +1,317 @@
+package ru.digiteklabs.scheduler.web;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parsers for request parameters of a toy server.
+ *
+ * Both URL-encoded queries and flat JSON objects are parsed in one pass,
+ * without splitting into intermediate arrays. Values are returned as strings.
+ *
+ * This class is stateless and thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+final class RequestParser {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Maximum number of characters in a JSON request body or bytes in a form request body
+     */
+    private static final int MAX_BODY_LENGTH = 1 << 16;
+
+    private RequestParser() {}
+
+    /**
+     * Parses URL-encoded query like name=value&amp;name=value
+     * @param query a query
+     * @return a map from parameter names to their decoded values, parameters without '=' are skipped
+     */
+    static Map<String, String> parseQuery(final @NotNull String query) {
+        final Map<String, String> result = new HashMap<String, String>();
+        final int length = query.length();
+        int start = 0;
+        while (start < length) {
+            int end = query.indexOf('&', start);
+            if (end < 0)
+                end = length;
+            final int eq = query.indexOf('=', start);
+            if (eq >= 0 && eq < end)
+                result.put(decode(query, start, eq), decode(query, eq + 1, end));
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a part of URL-encoded string, substring is taken as is if nothing is encoded
+     */
+    private static String decode(final String s, final int from, final int to) {
+        int i = from;
+        while (i < to && s.charAt(i) != '%' && s.charAt(i) != '+')
+            i++;
+        if (i == to)
+            return s.substring(from, to);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(to - from);
+        for (i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c == '+') {
+                bytes.write(' ');
+            } else if (c == '%' && i + 2 < to && hex(s.charAt(i + 1)) >= 0 && hex(s.charAt(i + 2)) >= 0) {
+                bytes.write(hex(s.charAt(i + 1)) * 16 + hex(s.charAt(i + 2)));
+                i += 2;
+            } else if (c < 0x80) {
+                bytes.write(c);
+            } else {
+                final int end = Character.isHighSurrogate(c) && i + 1 < to ? i + 2 : i + 1;
+                final byte[] encoded = s.substring(i, end).getBytes(UTF8);
+                bytes.write(encoded, 0, encoded.length);
+                i = end - 1;
+            }
+        }
+        return new String(bytes.toByteArray(), UTF8);
+    }
+
+    private static int hex(final char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Reads and parses URL-encoded form from a request body
+     * @param in a request body
+     * @return a map from parameter names to their decoded values
+     * @throws IOException if a body cannot be read
+     * @throws IllegalArgumentException if a body is too long
+     */
+    static Map<String, String> parseForm(final @NotNull InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            bytes.write(buffer, 0, read);
+            if (bytes.size() > MAX_BODY_LENGTH)
+                throw new IllegalArgumentException("Form is too long");
+        }
+        return parseQuery(new String(bytes.toByteArray(), UTF8));
+    }
+
+    /**
+     * Parses one line of comma-separated values, quoting is not supported
+     * @param line a line
+     * @param fields an expected number of fields
+     * @return an array of trimmed fields
+     * @throws IllegalArgumentException if a number of fields differs from expected
+     */
+    static String[] parseCsv(final @NotNull String line, final int fields) {
+        final String[] result = new String[fields];
+        int start = 0;
+        for (int i = 0; i < fields; i++) {
+            int end = line.indexOf(',', start);
+            if (end < 0) {
+                if (i != fields - 1)
+                    throw new IllegalArgumentException("CSV: " + fields + " fields expected");
+                end = line.length();
+            } else if (i == fields - 1) {
+                throw new IllegalArgumentException("CSV: " + fields + " fields expected");
+            }
+            result[i] = line.substring(start, end).trim();
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * A reader of lines with a bounded length.
+     *
+     * Unlike BufferedReader.readLine(), a line is never kept in memory as a whole:
+     * characters after maxLength are skipped up to a line end, so the next line is read as usual.
+     */
+    static final class LineReader {
+
+        private final Reader in;
+
+        private final int maxLength;
+
+        private final StringBuilder sb = new StringBuilder();
+
+        private boolean tooLong = false;
+
+        /**
+         * @param in a reader, better a buffered one since characters are read one by one
+         * @param maxLength maximum number of characters in a line
+         */
+        LineReader(final @NotNull Reader in, final int maxLength) {
+            this.in = in;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * Reads a line ended by \n, \r\n or an end of stream
+         * @return a line without a line end, cut to maxLength characters if too long, null at an end of stream
+         * @throws IOException if a reader cannot be read
+         */
+        String readLine() throws IOException {
+            sb.setLength(0);
+            tooLong = false;
+            int c = in.read();
+            if (c < 0)
+                return null;
+            for (; c >= 0 && c != '\n'; c = in.read()) {
+                if (sb.length() < maxLength + 1)
+                    sb.append((char) c);
+            }
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) == '\r')
+                sb.setLength(sb.length() - 1);
+            if (sb.length() > maxLength) {
+                tooLong = true;
+                sb.setLength(maxLength);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return true if the last line read is longer than maxLength characters
+         */
+        boolean isTooLong() {
+            return tooLong;
+        }
+    }
+
+    /**
+     * Parses a flat JSON object, values can be strings, numbers, booleans or nulls.
+     *
+     * @param in a reader positioned at the object start
+     * @return a map from member names to their values as strings, null values are skipped
+     * @throws IOException if a reader cannot be read
+     * @throws IllegalArgumentException if JSON is malformed, too long, or contains nested objects or arrays
+     */
+    static Map<String, String> parseJson(final @NotNull Reader in) throws IOException {
+        return new JsonObjectParser(in).parse();
+    }
+
+    /**
+     * A one-pass parser for one flat JSON object
+     */
+    private static class JsonObjectParser {
+
+        private final Reader in;
+
+        private final StringBuilder sb = new StringBuilder();
+
+        private int current;
+
+        private int read = 0;
+
+        JsonObjectParser(final Reader in) {
+            this.in = in;
+        }
+
+        private void next() throws IOException {
+            if (++read > MAX_BODY_LENGTH)
+                throw new IllegalArgumentException("JSON object is too long");
+            current = in.read();
+        }
+
+        private void skipSpaces() throws IOException {
+            while (current == ' ' || current == '\t' || current == '\n' || current == '\r')
+                next();
+        }
+
+        private void expect(final char c) throws IOException {
+            skipSpaces();
+            if (current != c)
+                throw new IllegalArgumentException("JSON: '" + c + "' expected");
+            next();
+        }
+
+        Map<String, String> parse() throws IOException {
+            final Map<String, String> result = new HashMap<String, String>();
+            next();
+            expect('{');
+            skipSpaces();
+            if (current == '}')
+                return result;
+            while (true) {
+                skipSpaces();
+                final String name = parseString();
+                expect(':');
+                skipSpaces();
+                final String value = current == '"' ? parseString() : parseLiteral();
+                if (value != null)
+                    result.put(name, value);
+                skipSpaces();
+                if (current == '}')
+                    return result;
+                expect(',');
+            }
+        }
+
+        private String parseString() throws IOException {
+            if (current != '"')
+                throw new IllegalArgumentException("JSON: string expected");
+            sb.setLength(0);
+            for (next(); current != '"'; next()) {
+                if (current < 0)
+                    throw new IllegalArgumentException("JSON: unterminated string");
+                if (current == '\\') {
+                    next();
+                    switch (current) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            int code = 0;
+                            for (int i = 0; i < 4; i++) {
+                                next();
+                                final int digit = hex((char) current);
+                                if (digit < 0)
+                                    throw new IllegalArgumentException("JSON: bad unicode escape");
+                                code = code * 16 + digit;
+                            }
+                            sb.append((char) code);
+                            break;
+                        default:
+                            if (current < 0)
+                                throw new IllegalArgumentException("JSON: unterminated string");
+                            sb.append((char) current);
+                    }
+                } else {
+                    sb.append((char) current);
+                }
+            }
+            next();
+            return sb.toString();
+        }
+
+        private String parseLiteral() throws IOException {
+            sb.setLength(0);
+            while (current >= 0 && current != ',' && current != '}' && current != ' ' && current != '\t'
+                    && current != '\n' && current != '\r') {
+                if (current == '{' || current == '[')
+                    throw new IllegalArgumentException("JSON: nested values are not supported");
+                sb.append((char) current);
+                next();
+            }
+            if (sb.length() == 0)
+                throw new IllegalArgumentException("JSON: value expected");
+            final String literal = sb.toString();
+            return "null".equals(literal) ? null : literal;
+        }
+    }
+}
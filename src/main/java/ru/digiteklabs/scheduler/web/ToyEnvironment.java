@@ -2,29 +2,158 @@ package ru.digiteklabs.scheduler.web;
 
 import ru.digiteklabs.scheduler.core.api.Scheduler;
 import ru.digiteklabs.scheduler.core.api.SchedulingException;
+import ru.digiteklabs.scheduler.core.impl.SchedulerMetrics;
 import ru.digiteklabs.scheduler.core.impl.TimerScheduler;
 import ru.digiteklabs.scheduler.job.api.Job;
-import ru.digiteklabs.scheduler.job.samples.PeriodicJob;
-import ru.digiteklabs.scheduler.job.samples.PrimeCalcJob;
+import ru.digiteklabs.scheduler.job.api.JobObserver;
+import ru.digiteklabs.scheduler.job.samples.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * An environment with a scheduler and an opportunity to add/remove/monitor jobs.
  *
  * Can be considered as a wrapper for a back-end.
+ * The environment observes its jobs and its scheduler and collects names of changed, added and removed jobs,
+ * so a front-end can send only changes to its clients.
+ * Jobs are kept in an indexed registry, so a front-end can show them page by page,
+ * filtered by type or state.
+ *
+ * This class is thread-safe
  *
  * @author Mikhail Glukhikh
  */
-public class ToyEnvironment {
+public class ToyEnvironment implements JobObserver, TimerScheduler.ScheduleListener {
+
+    /**
+     * A start time of this process in base 36, a part of entity tags,
+     * so a restarted server does not repeat tags of its previous versions
+     */
+    static private final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * Rendered description of the environment at some version, immutable except a lazily compressed copy
+     */
+    static final class Snapshot {
+
+        private final long version;
+
+        private final String text;
+
+        private final byte[] bytes;
+
+        /**
+         * Compressed on the first request, can be compressed twice concurrently which is harmless
+         */
+        private volatile byte[] gzipBytes = null;
+
+        Snapshot(final long version, final String text) {
+            this.version = version;
+            this.text = text;
+            this.bytes = text.getBytes(RequestParser.UTF8);
+        }
+
+        /**
+         * @return environment version this snapshot was rendered at
+         */
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return an entity tag for HTTP caching
+         */
+        String getETag() {
+            return "\"" + EPOCH + "-" + version + "\"";
+        }
+
+        /**
+         * @return an entity tag of a compressed representation for HTTP caching
+         */
+        String getGzipETag() {
+            return "\"" + EPOCH + "-" + version + "-gzip\"";
+        }
+
+        String getText() {
+            return text;
+        }
+
+        /**
+         * @return UTF-8 encoded text, must not be modified
+         */
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return gzip compressed UTF-8 encoded text, must not be modified
+         */
+        byte[] getGzipBytes() {
+            byte[] result = gzipBytes;
+            if (result == null) {
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                try {
+                    final GZIPOutputStream out = new GZIPOutputStream(compressed);
+                    out.write(bytes);
+                    out.close();
+                } catch (IOException ex) {
+                    // Should not occur for in-memory output
+                    throw new AssertionError("Cannot compress snapshot in ToyEnvironment.Snapshot!");
+                }
+                result = compressed.toByteArray();
+                gzipBytes = result;
+            }
+            return result;
+        }
+    }
 
     private final Scheduler scheduler;
 
-    private final Map<String, Job> jobs = new HashMap<String, Job>();
+    /**
+     * The same scheduler, for its metrics and queries
+     */
+    private final TimerScheduler timerScheduler;
+
+    /**
+     * A default and maximum number of jobs in one page
+     */
+    static final int PAGE_SIZE = 100, MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Registered jobs, thread-safe. Additions and removals are also synchronized by this
+     */
+    private final JobRegistry jobs = new JobRegistry();
+
+    /**
+     * Environment version, incremented on each observed change
+     */
+    private final AtomicLong version = new AtomicLong(0L);
+
+    /**
+     * Last rendered snapshots, thread-safe
+     */
+    private volatile Snapshot htmlSnapshot = null, jsonSnapshot = null;
+
+    /**
+     * Names of jobs changed since the last takeChangedNames() call, thread-safe
+     */
+    private final Set<String> changedNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private final Calendar calendar = Calendar.getInstance();
 
-    private PrimeCalcJob primeCalcJob = null;
+    // Guarded by this for writes
+    private volatile PrimeCalcJob primeCalcJob = null;
+
+    // Guarded by this for writes
+    private volatile String primeCalcJobName = null;
 
     /**
      * Creates an environment with a sample periodic job, duration 1s, period 10s
@@ -32,9 +161,14 @@ public class ToyEnvironment {
      * @param threadNumber number of threads to use in a scheduler
      */
     public ToyEnvironment(final int threadNumber) {
-        scheduler = new TimerScheduler(threadNumber);
+        timerScheduler = new TimerScheduler(threadNumber);
+        scheduler = timerScheduler;
+        // Planned times are changed after progress is reported, and finished jobs are removed by a scheduler
+        timerScheduler.addScheduleListener(this);
         final Job job = new PeriodicJob(calendar.getTime(), 1000, 10000);
-        jobs.put("First", job);
+        jobs.add("First", job, getJobType(job));
+        job.addObserver(this);
+        markChanged("First");
         try {
             scheduler.addJob(job);
         } catch (SchedulingException ex) {
@@ -49,17 +183,21 @@ public class ToyEnvironment {
      * @return true if a job is successfully removed, false if name does not exist
      * @throws SchedulingException if name exists but scheduler cannot remove this job
      */
-    public boolean removeJob(final String name) throws SchedulingException {
-        if (jobs.containsKey(name)) {
-            final Job job = jobs.get(name);
-            if (!scheduler.getScheduledJobs().contains(job) || scheduler.removeJob(job)) {
-                jobs.remove(name);
-                if (job==primeCalcJob)
-                    primeCalcJob = null;
-                return true;
-            }
+    public synchronized boolean removeJob(final String name) throws SchedulingException {
+        final JobRegistry.Entry entry = jobs.get(name);
+        if (entry == null)
+            return false;
+        final Job job = entry.getJob();
+        if (scheduler.getScheduledJobs().contains(job) && !scheduler.removeJob(job))
+            return false;
+        jobs.remove(name);
+        job.removeObserver(this);
+        markChanged(name);
+        if (job==primeCalcJob) {
+            primeCalcJob = null;
+            primeCalcJobName = null;
         }
-        return false;
+        return true;
     }
 
     /**
@@ -70,21 +208,140 @@ public class ToyEnvironment {
      * prime calculator is to add
      * @throws SchedulingException if scheduler cannot add this job
      */
-    public boolean addJob(final String name, final Job job) throws SchedulingException {
-        if (jobs.containsKey(name))
-            return false;
+    public synchronized boolean addJob(final String name, final Job job) throws SchedulingException {
         if (job instanceof PrimeCalcJob && primeCalcJob != null)
             return false;
-        if (scheduler.addJob(job)) {
-            jobs.put(name, job);
-            if (job instanceof PrimeCalcJob)
-                primeCalcJob = (PrimeCalcJob)job;
-            return true;
-        } else {
+        // Registering and observing before scheduling to catch changes of immediately started jobs
+        if (jobs.add(name, job, getJobType(job)) == null)
+            return false;
+        job.addObserver(this);
+        boolean added = false;
+        try {
+            added = scheduler.addJob(job);
+        } finally {
+            if (!added) {
+                job.removeObserver(this);
+                jobs.remove(name);
+            }
+        }
+        if (!added)
             return false;
+        markChanged(name);
+        if (job instanceof PrimeCalcJob) {
+            primeCalcJob = (PrimeCalcJob)job;
+            primeCalcJobName = name;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a batch of new jobs to the environment, taking the environment lock once
+     * @param names given job names
+     * @param jobs given jobs, in the same order as names
+     * @return an array of results in the same order, null if a job is added, an error message otherwise
+     */
+    public synchronized String[] addJobs(final List<String> names, final List<Job> jobs) {
+        final String[] result = new String[names.size()];
+        for (int i = 0; i < result.length; i++) {
+            try {
+                if (!addJob(names.get(i), jobs.get(i)))
+                    result[i] = "Error adding job " + names.get(i);
+            } catch (SchedulingException ex) {
+                result[i] = "Error: " + ex.getMessage();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remembers a changed name and moves to the next version
+     */
+    private void markChanged(final String name) {
+        changedNames.add(name);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Called when a given job changes its progress.
+     *
+     * @param job      a given job
+     * @param progress job's progress
+     */
+    @Override
+    public void progressChanged(Job job, int progress) {
+        final JobRegistry.Entry entry = jobs.get(job);
+        if (entry != null) {
+            jobs.updateState(entry);
+            markChanged(entry.getName());
         }
     }
 
+    /**
+     * Called when a given job changes its ready status.
+     *
+     * @param job   a given job
+     * @param ready true if job is ready to run, false otherwise
+     */
+    @Override
+    public void readyChanged(Job job, boolean ready) {
+        progressChanged(job, job.getProgress());
+    }
+
+    /**
+     * Called when a run of a given job is finished or the job is removed from scheduling
+     *
+     * @param job a given job
+     */
+    @Override
+    public void scheduleChanged(Job job) {
+        progressChanged(job, job.getProgress());
+    }
+
+    /**
+     * Takes names of jobs which were changed, added or removed since the previous call.
+     *
+     * Each name is taken only once even if a job was changed many times.
+     * A name of a removed job is also returned, getJob() gives null for it.
+     *
+     * @return a list of changed names
+     */
+    List<String> takeChangedNames() {
+        final List<String> result = new ArrayList<String>();
+        for (Iterator<String> it = changedNames.iterator(); it.hasNext(); ) {
+            result.add(it.next());
+            it.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Extends the current prime calculator to a higher limit.
+     *
+     * Only a new range is calculated, prime checkers waiting for the calculator
+     * are run again when the extension is completed.
+     *
+     * @param limit a new upper bound for prime numbers to calculate
+     * @return true if the calculator is extended, false if it does not exist or its limit is not less than given
+     * @throws SchedulingException if scheduler cannot replan the calculator
+     */
+    public boolean extendCalcJob(final int limit) throws SchedulingException {
+        final PrimeCalcJob calcJob = primeCalcJob;
+        if (calcJob == null || !calcJob.extendLimit(limit))
+            return false;
+        scheduler.replanJob(calcJob);
+        final JobRegistry.Entry entry = jobs.get(calcJob);
+        if (entry != null)
+            markChanged(entry.getName());
+        return true;
+    }
+
+    /**
+     * Shuts the environment scheduler down, jobs are kept in the environment
+     */
+    public void shutdown() {
+        timerScheduler.shutdown();
+    }
+
     /**
      * @return a reference to the current prime calculator if exists, null otherwise
      */
@@ -92,12 +349,162 @@ public class ToyEnvironment {
         return primeCalcJob;
     }
 
+    /**
+     * @return a name of the current prime calculator if exists, null otherwise
+     */
+    public String getCalcJobName() {
+        return primeCalcJobName;
+    }
+
+    /**
+     * Gets a job by its name
+     * @param name a given job name
+     * @return a job with a given name, or null if name does not exist
+     */
+    public Job getJob(final String name) {
+        final JobRegistry.Entry entry = jobs.get(name);
+        return entry == null ? null : entry.getJob();
+    }
+
+    /**
+     * @return a number of jobs in the environment
+     */
+    public int getJobNumber() {
+        return jobs.size();
+    }
+
+    /**
+     * @return metrics of the environment scheduler
+     */
+    public SchedulerMetrics getMetrics() {
+        return timerScheduler.getMetrics();
+    }
+
+    /**
+     * Gets a type of a job as it's used in a job creation form
+     * @param job a given job
+     * @return a string representing job type
+     */
+    static String getJobType(final Job job) {
+        if (job instanceof OneShotJob)
+            return "oneshot";
+        else if (job instanceof PeriodicJob)
+            return "periodic";
+        else if (job instanceof SequentialJob)
+            return "sequential";
+        else if (job instanceof PrimeCalcJob)
+            return "calculator";
+        else if (job instanceof PrimeCheckJob)
+            return "checker";
+        else
+            return job.getClass().getSimpleName();
+    }
+
+    /**
+     * Writes description of one job in JSON format
+     * @param writer a JSON writer
+     * @param name a job name
+     * @param job a job itself
+     * @throws IOException if writer cannot write
+     */
+    void writeJson(final JsonWriter writer, final String name, final Job job) throws IOException {
+        final Date plannedTime = job.getPlannedTime();
+        writer.beginObject();
+        writer.name("name").value(name);
+        writer.name("type").value(getJobType(job));
+        writer.name("state").value(JobRegistry.State.of(job).name().toLowerCase());
+        writer.name("description").value(job.toString());
+        writer.name("progress").value(getProgressValue(job));
+        writer.name("maxProgress").value(job.getMaxProgress());
+        writer.name("started").value(job.isStarted());
+        writer.name("finished").value(job.isFinished());
+        writer.name("scheduled").value(scheduler.getScheduledJobs().contains(job));
+        writer.name("plannedTime");
+        if (plannedTime == Job.PLANNED_TIME_NEVER)
+            writer.value(null);
+        else
+            writer.value(plannedTime.getTime());
+        writer.endObject();
+    }
+
+    /**
+     * Writes the first page of the environment in JSON format
+     * @param writer a JSON writer
+     * @throws IOException if writer cannot write
+     */
+    void writeJson(final JsonWriter writer) throws IOException {
+        writeJson(writer, null, null, null, PAGE_SIZE);
+    }
+
+    /**
+     * Writes one page of the environment in JSON format, as an object with a total number of jobs,
+     * an array of jobs sorted by name, and a name to request the next page after, or null for the last page.
+     * Jobs are counted by type or by state, so the total is null when both filters are given
+     * @param writer a JSON writer
+     * @param type a job type to filter, or null
+     * @param state a job state to filter, or null
+     * @param after a name to start after, or null to start from the beginning
+     * @param limit a maximum number of jobs in a page
+     * @throws IOException if writer cannot write
+     */
+    void writeJson(final JsonWriter writer, final String type, final JobRegistry.State state,
+                   final String after, final int limit) throws IOException {
+        // One more job is taken to know whether the next page exists
+        final List<JobRegistry.Entry> page = jobs.list(type, state, after, limit + 1);
+        writer.beginObject();
+        if (type != null && state != null)
+            writer.name("total").value((String) null);
+        else
+            writer.name("total").value(type != null ? jobs.size(type)
+                    : (state != null ? jobs.size(state) : jobs.size()));
+        writer.name("jobs").beginArray();
+        for (int i = 0; i < page.size() && i < limit; i++)
+            writeJson(writer, page.get(i).getName(), page.get(i).getJob());
+        writer.endArray();
+        writer.name("next").value(page.size() > limit ? page.get(limit - 1).getName() : null);
+        writer.endObject();
+    }
+
+    /**
+     * Writes jobs found by a scheduler index query in JSON format, as an object with an array of jobs.
+     *
+     * Jobs are found either by status, or by an interval from now, or by a planned time range,
+     * in the latter two cases they are ordered by planned time
+     *
+     * @param writer a JSON writer
+     * @param status a scheduler job status, or null to query by planned time
+     * @param within an interval from now in ms, or null to query by a range, used if status is null
+     * @param from a range start, inclusive, or null for no start
+     * @param to a range end, exclusive, used if status and within are null
+     * @param limit a maximum number of jobs
+     * @throws IOException if writer cannot write
+     */
+    void writeScheduledJson(final JsonWriter writer, final TimerScheduler.JobStatus status, final Long within,
+                            final Date from, final Date to, final int limit) throws IOException {
+        final List<Job> found = status != null ? timerScheduler.getJobsByStatus(status, limit)
+                : within != null ? timerScheduler.getJobsDueWithin(within, limit)
+                : timerScheduler.getJobsPlannedBetween(from, to, limit);
+        writer.beginObject().name("jobs").beginArray();
+        int written = 0;
+        for (Job job: found) {
+            if (written >= limit)
+                break;
+            final JobRegistry.Entry entry = jobs.get(job);
+            // Not registered jobs like a calculator being added are skipped
+            if (entry != null) {
+                writeJson(writer, entry.getName(), job);
+                written++;
+            }
+        }
+        writer.endArray().endObject();
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, Job> entry: jobs.entrySet()) {
-            sb.append(entry.getKey()).append(": ").append(entry.getValue());
-            sb.append(" -> ").append(entry.getValue().getProgress()).append("/1000\n");
+        for (JobRegistry.Entry entry: jobs.list(null, null, null, PAGE_SIZE)) {
+            sb.append(entry.getName()).append(": ").append(entry.getJob());
+            sb.append(" -> ").append(entry.getJob().getProgress()).append("/1000\n");
         }
         return sb.toString();
     }
@@ -107,22 +514,143 @@ public class ToyEnvironment {
         return progress < 0 ? 0 : (progress > job.getMaxProgress() ? job.getMaxProgress() : progress);
     }
 
+    /**
+     * Gets a current version of the environment.
+     *
+     * A version is incremented when a job is added, removed, or changes its progress or ready status,
+     * and when a scheduler finishes a run of a job or removes it.
+     *
+     * @return a current version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
     /**
      *
      * @return description of the environment in HTML format
      */
     public String toHtml() {
+        return getHtmlSnapshot().getText();
+    }
+
+    /**
+     * Gets description of one page of the environment in HTML format
+     * @param after a name to start after, or null for the first page
+     * @return description of a page with links to neighbouring pages
+     */
+    public String toHtml(final String after) {
+        return after == null ? toHtml() : renderHtml(after);
+    }
+
+    /**
+     * Gets description of the first page of the environment in HTML format, rendered at most once per version
+     * @return an HTML snapshot
+     */
+    Snapshot getHtmlSnapshot() {
+        // Version is read before rendering, so a change during rendering makes the snapshot outdated
+        final long current = version.get();
+        final Snapshot snapshot = htmlSnapshot;
+        if (snapshot != null && snapshot.getVersion() == current)
+            return snapshot;
+        final Snapshot rendered = new Snapshot(current, renderHtml());
+        htmlSnapshot = rendered;
+        return rendered;
+    }
+
+    /**
+     * Gets description of the first page of the environment in JSON format, rendered at most once per version
+     * @return a JSON snapshot
+     */
+    Snapshot getJsonSnapshot() {
+        final long current = version.get();
+        final Snapshot snapshot = jsonSnapshot;
+        if (snapshot != null && snapshot.getVersion() == current)
+            return snapshot;
+        final StringWriter writer = new StringWriter();
+        try {
+            writeJson(new JsonWriter(writer));
+        } catch (IOException ex) {
+            // Should not occur for StringWriter
+            throw new AssertionError("Cannot render JSON in ToyEnvironment.getJsonSnapshot!");
+        }
+        final Snapshot rendered = new Snapshot(current, writer.toString());
+        jsonSnapshot = rendered;
+        return rendered;
+    }
+
+    /**
+     * Escapes a text for HTML content and attribute values
+     */
+    static private String escapeHtml(final String text) {
+        final StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '&': sb.append("&amp;"); break;
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '"': sb.append("&quot;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static private String pageLink(final String after, final String text) {
+        try {
+            final String href = after == null ? "?" : "?after=" + URLEncoder.encode(after, "UTF-8");
+            return "<a href=\"" + escapeHtml(href) + "\">" + text + "</a> ";
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError("UTF-8 is not supported in ToyEnvironment.pageLink!");
+        }
+    }
+
+    private String renderHtml() {
+        return renderHtml(null);
+    }
+
+    /**
+     * Renders one page of jobs sorted by name.
+     *
+     * A table has data-after and data-next attributes with names the page starts after and ends with,
+     * the latter only if a next page exists, so a page script can tell whether a changed job is on the page.
+     */
+    private String renderHtml(final String after) {
+        // One more job is taken to know whether the next page exists
+        final List<JobRegistry.Entry> page = jobs.list(null, null, after, PAGE_SIZE + 1);
+        final String next = page.size() > PAGE_SIZE ? page.get(PAGE_SIZE - 1).getName() : null;
         final StringBuilder sb = new StringBuilder();
-        sb.append("<div id=\"env\"><form id=\"main\"><table><tr><th>Job</th><th>Status</th><th>Progress</th><th></th></tr>");
-        for (Map.Entry<String, Job> entry: jobs.entrySet()) {
-            sb.append("<tr><td>").append(entry.getKey()).append("</td><td>");
-            sb.append(entry.getValue()).append("</td><td>");
-            sb.append("<progress value=\"").append(getProgressValue(entry.getValue())).append("\"");
-            sb.append(" max=\"").append(entry.getValue().getMaxProgress()).append("\"/></td><td>");
-            sb.append("<button type=\"submit\" name=\"remove\" value=\"").append(entry.getKey());
+        sb.append("<div id=\"env\"><form id=\"main\"><table");
+        if (after != null)
+            sb.append(" data-after=\"").append(escapeHtml(after)).append("\"");
+        if (next != null)
+            sb.append(" data-next=\"").append(escapeHtml(next)).append("\"");
+        sb.append("><tr><th>Job</th><th>Status</th><th>Progress</th><th></th></tr>");
+        for (int i = 0; i < page.size() && i < PAGE_SIZE; i++) {
+            final JobRegistry.Entry entry = page.get(i);
+            sb.append("<tr><td>").append(escapeHtml(entry.getName())).append("</td><td>");
+            sb.append(escapeHtml(entry.getJob().toString())).append("</td><td>");
+            sb.append("<progress value=\"").append(getProgressValue(entry.getJob())).append("\"");
+            sb.append(" max=\"").append(entry.getJob().getMaxProgress()).append("\"/></td><td>");
+            sb.append("<button type=\"submit\" name=\"remove\" value=\"").append(escapeHtml(entry.getName()));
             sb.append("\">Remove</button>");
         }
-        sb.append("</table></form></div>");
+        sb.append("</table>");
+        if (after != null)
+            sb.append("<input type=\"hidden\" name=\"after\" value=\"").append(escapeHtml(after)).append("\">");
+        sb.append("</form>");
+        if (after != null || next != null) {
+            sb.append("<p>").append(jobs.size()).append(" jobs: ");
+            if (after != null) {
+                sb.append(pageLink(null, "First page"));
+                sb.append(pageLink(jobs.previousPage(after, PAGE_SIZE), "Previous page"));
+            }
+            if (next != null)
+                sb.append(pageLink(next, "Next page"));
+            sb.append("</p>");
+        }
+        sb.append("</div>");
         return sb.toString();
     }
 }
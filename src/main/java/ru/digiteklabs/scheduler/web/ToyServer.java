@@ -5,16 +5,17 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import org.jetbrains.annotations.NotNull;
 import ru.digiteklabs.scheduler.core.api.SchedulingException;
+import ru.digiteklabs.scheduler.core.impl.TimerScheduler;
 import ru.digiteklabs.scheduler.job.api.Job;
 import ru.digiteklabs.scheduler.job.samples.*;
 
-import java.io.IOException;
-import java.io.OutputStream;
+import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A very simple web server based on HttpServer.
@@ -27,13 +28,51 @@ public class ToyServer {
 
     private class ConnectionHandler implements HttpHandler {
 
+        /**
+         * Page head with a script which listens to server-sent events and updates rows of a shown page.
+         * A change of a job which is not shown is ignored unless the job belongs to the page by its name,
+         * then the page is reloaded, as well as when a shown job is removed.
+         * Falls back to polling if a browser does not support EventSource
+         */
         static private final String HTML_HEAD = "<head><title>Toy Scheduling Server</title>" +
                 "<script type=\"text/javascript\" src=\"http://code.jquery.com/jquery-latest.js\"></script>" +
                 "<script>" +
                 "\n$(document).ready( function() {" +
-                "\nsetInterval(function() {" +
-                "$('#env').load('main');" +
-                "\n}, 1000);" +
+                "\nfunction reload() {" +
+                "\nvar after = $('#env table').attr('data-after');" +
+                "\nvar query = after === undefined ? '' : '?after=' + encodeURIComponent(after);" +
+                "\n$('#env').load('main' + query + ' #env > *');" +
+                "\n}" +
+                "\nif (!window.EventSource) {" +
+                "\nsetInterval(reload, 1000);" +
+                "\nreturn;" +
+                "\n}" +
+                "\nfunction onPage(name) {" +
+                "\nvar after = $('#env table').attr('data-after'), next = $('#env table').attr('data-next');" +
+                "\nreturn (after === undefined || name > after) && (next === undefined || name <= next);" +
+                "\n}" +
+                "\nfunction findRow(name) {" +
+                "\nreturn $('#env tr').filter(function() { return $(this).find('button').val() === name; });" +
+                "\n}" +
+                "\nvar source = new EventSource('events');" +
+                "\nsource.addEventListener('snapshot', function(e) { reload(); });" +
+                "\nsource.addEventListener('delta', function(e) {" +
+                "\nvar delta = JSON.parse(e.data);" +
+                "\nvar outdated = false;" +
+                "\n$.each(delta.changed, function(i, job) {" +
+                "\nvar row = findRow(job.name);" +
+                "\nif (row.length) {" +
+                "\nrow.children().eq(1).text(job.description);" +
+                "\nrow.find('progress').attr('value', job.progress).attr('max', job.maxProgress);" +
+                "\n} else if (onPage(job.name)) {" +
+                "\noutdated = true;" +
+                "\n}" +
+                "\n});" +
+                "\n$.each(delta.removed, function(i, name) {" +
+                "\nif (findRow(name).length) outdated = true;" +
+                "\n});" +
+                "\nif (outdated) reload();" +
+                "\n});" +
                 "\n}); " +
                 "\n</script>" +
                 "</head>";
@@ -54,20 +93,8 @@ public class ToyServer {
                 "<td><input type=\"number\" name=\"param\"></td></tr>" +
                 "</table></form>";
 
-        private Map<String, String> parseQuery(final @NotNull String query) {
-            final String[] content = query.split("&");
-            final Map<String, String> result = new HashMap<String, String>();
-            for (String expr: content) {
-                final String[] values = expr.split("=");
-                if (values.length == 2) {
-                    result.put(values[0], values[1]);
-                }
-            }
-            return result;
-        }
-
         private void handleQuery(final @NotNull String query) {
-            final Map<String, String> parsed = parseQuery(query);
+            final Map<String, String> parsed = RequestParser.parseQuery(query);
             try {
                 if (parsed.containsKey("remove")) {
                     final String name = parsed.get("remove");
@@ -85,13 +112,8 @@ public class ToyServer {
                 final String param = parsed.get("param");
                 if (time == null || param == null)
                     return;
-                final Job job = createJob(type, Integer.parseInt(time), Integer.parseInt(param));
-                if (job != null) {
-                    if (environment.addJob(name, job))
-                        status = "OK";
-                    else
-                        status = "Error adding job " + name;
-                }
+                final String error = submitJob(name, type, time, param);
+                status = error == null ? "OK" : error;
             } catch (NumberFormatException ex) {
                 // JUST RETURN
             } catch (SchedulingException ex) {
@@ -101,30 +123,449 @@ public class ToyServer {
 
         @Override
         public void handle(HttpExchange httpExchange) throws IOException {
-            final URI uri = httpExchange.getRequestURI();
-            //System.out.println(uri);
-            System.out.println(uri.getPath());
-            final String response;
-            if ("/main".equals(uri.getPath())) {
-                response = environment.toHtml();
-            } else if ("/".equals(uri.getPath())) {
-                final String query = uri.getQuery();
-                if (query != null) {
-                    handleQuery(query);
+            try {
+                final URI uri = httpExchange.getRequestURI();
+                final String query = uri.getRawQuery();
+                // A page after a given name, the first page is cached
+                final String after = query == null ? null : RequestParser.parseQuery(query).get("after");
+                if ("/main".equals(uri.getPath())) {
+                    if (after == null) {
+                        sendSnapshot(httpExchange, environment.getHtmlSnapshot(), "text/html; charset=utf-8");
+                    } else {
+                        final Writer out = openBody(httpExchange, 200, "text/html; charset=utf-8");
+                        out.write(environment.toHtml(after));
+                        out.close();
+                    }
+                } else if ("/".equals(uri.getPath())) {
+                    if (query != null) {
+                        handleQuery(query);
+                    }
+                    // Written part by part, without concatenating the whole page
+                    final Writer out = openBody(httpExchange, 200, "text/html; charset=utf-8");
+                    out.write("<html>");
+                    out.write(HTML_HEAD);
+                    out.write("<body><p>Hello from a toy server</p>\n");
+                    out.write(environment.toHtml(after));
+                    out.write(NEW_JOB_FORM);
+                    out.write("<p><b>" + status + "</b></p></body></html>");
+                    out.close();
+                } else {
+                    httpExchange.sendResponseHeaders(404, -1);
                 }
-                response = "<html>" + HTML_HEAD + "<body><p>Hello from a toy server</p>\n" +
-                        environment.toHtml() + NEW_JOB_FORM + //REFRESH_FORM +
-                        "<p><b>" + status + "</b></p></body></html>";
-            } else {
-                response = "";
-            }
-            httpExchange.sendResponseHeaders(200, response.length());
-            OutputStream out = httpExchange.getResponseBody();
-            out.write(response.getBytes());
+            } finally {
+                httpExchange.close();
+            }
+        }
+    }
+
+    /**
+     * A handler for JSON REST API.
+     *
+     * Supports the following requests:<ul>
+     *     <li>GET /api/jobs -- a page of jobs sorted by name, optionally filtered by type and state,
+     *     query parameters are type, state (planned, running, finished), after (a name to start after)
+     *     and limit (a page size)</li>
+     *     <li>POST /api/jobs -- creates a new job by name, type, time and param given as JSON object or form</li>
+     *     <li>GET /api/jobs/{name} -- a job with a given name</li>
+     *     <li>DELETE /api/jobs/{name} -- removes a job with a given name</li>
+     *     <li>GET /api/scheduled -- scheduled jobs found by scheduler indexes, either by status
+     *     (status=future, not_ready, run, finished or paused), or due within a given interval (within=ms),
+     *     or with a planned time in a given range (from and to, ms since epoch), with an optional limit</li>
+     *     <li>POST /api/bulk -- creates many jobs given as NDJSON (one JSON object per line)
+     *     or as CSV (name,type,time,param per line, text/csv content type), a body is parsed line by line,
+     *     jobs are added in batches and a result of each line is streamed back as NDJSON</li>
+     * </ul>
+     * Errors are reported as JSON objects with a single error member.
+     */
+    private class ApiHandler implements HttpHandler {
+
+        static private final String JOBS_PATH = "/api/jobs";
+
+        static private final String BULK_PATH = "/api/bulk";
+
+        static private final String SCHEDULED_PATH = "/api/scheduled";
+
+        /**
+         * Number of jobs added to the environment at once during bulk ingest
+         */
+        static private final int BULK_BATCH_SIZE = 256;
+
+        /**
+         * Maximum number of characters in one line of a bulk request
+         */
+        static private final int MAX_LINE_LENGTH = 1 << 12;
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            try {
+                final String path = httpExchange.getRequestURI().getPath();
+                final String method = httpExchange.getRequestMethod();
+                if (JOBS_PATH.equals(path) || (JOBS_PATH + "/").equals(path)) {
+                    if ("GET".equals(method))
+                        listJobs(httpExchange);
+                    else if ("POST".equals(method))
+                        createJob(httpExchange);
+                    else
+                        sendError(httpExchange, 405, "Method " + method + " is not allowed");
+                } else if (SCHEDULED_PATH.equals(path)) {
+                    if ("GET".equals(method))
+                        findScheduledJobs(httpExchange);
+                    else
+                        sendError(httpExchange, 405, "Method " + method + " is not allowed");
+                } else if (BULK_PATH.equals(path)) {
+                    if ("POST".equals(method))
+                        createJobs(httpExchange);
+                    else
+                        sendError(httpExchange, 405, "Method " + method + " is not allowed");
+                } else if (path.startsWith(JOBS_PATH + "/")) {
+                    final String name = path.substring(JOBS_PATH.length() + 1);
+                    if ("GET".equals(method))
+                        getJob(httpExchange, name);
+                    else if ("DELETE".equals(method))
+                        deleteJob(httpExchange, name);
+                    else
+                        sendError(httpExchange, 405, "Method " + method + " is not allowed");
+                } else {
+                    sendError(httpExchange, 404, "Unknown resource " + path);
+                }
+            } finally {
+                httpExchange.close();
+            }
+        }
+
+        private void listJobs(final HttpExchange httpExchange) throws IOException {
+            final String query = httpExchange.getRequestURI().getRawQuery();
+            if (query == null || query.isEmpty()) {
+                sendSnapshot(httpExchange, environment.getJsonSnapshot(), "application/json; charset=utf-8");
+                return;
+            }
+            final Map<String, String> parsed = RequestParser.parseQuery(query);
+            final JobRegistry.State state;
+            final int limit;
+            try {
+                final String stateName = parsed.get("state");
+                state = stateName == null ? null : JobRegistry.State.valueOf(stateName.toUpperCase());
+                final String limitValue = parsed.get("limit");
+                limit = limitValue == null ? ToyEnvironment.PAGE_SIZE : Integer.parseInt(limitValue);
+            } catch (IllegalArgumentException ex) {
+                sendError(httpExchange, 400, "State must be planned, running or finished, limit must be a number");
+                return;
+            }
+            if (limit < 1 || limit > ToyEnvironment.MAX_PAGE_SIZE) {
+                sendError(httpExchange, 400, "Limit must be from 1 to " + ToyEnvironment.MAX_PAGE_SIZE);
+                return;
+            }
+            final Writer out = openJson(httpExchange, 200);
+            environment.writeJson(new JsonWriter(out), parsed.get("type"), state, parsed.get("after"), limit);
+            out.close();
+        }
+
+        private void findScheduledJobs(final HttpExchange httpExchange) throws IOException {
+            final String query = httpExchange.getRequestURI().getRawQuery();
+            final Map<String, String> parsed = query == null ? new HashMap<String, String>()
+                    : RequestParser.parseQuery(query);
+            TimerScheduler.JobStatus status = null;
+            Long within = null;
+            Date from = null, to = null;
+            final int limit;
+            try {
+                final String limitValue = parsed.get("limit");
+                limit = limitValue == null ? ToyEnvironment.PAGE_SIZE : Integer.parseInt(limitValue);
+                if (parsed.containsKey("status")) {
+                    status = TimerScheduler.JobStatus.valueOf(parsed.get("status").toUpperCase());
+                } else if (parsed.containsKey("within")) {
+                    within = Long.parseLong(parsed.get("within"));
+                } else if (parsed.containsKey("to")) {
+                    to = new Date(Long.parseLong(parsed.get("to")));
+                    if (parsed.containsKey("from"))
+                        from = new Date(Long.parseLong(parsed.get("from")));
+                } else {
+                    sendError(httpExchange, 400, "One of status, within or to is required");
+                    return;
+                }
+            } catch (IllegalArgumentException ex) {
+                sendError(httpExchange, 400,
+                        "Status must be future, not_ready, run, finished or paused, within, from, to and limit must be numbers");
+                return;
+            }
+            if (limit < 1 || limit > ToyEnvironment.MAX_PAGE_SIZE) {
+                sendError(httpExchange, 400, "Limit must be from 1 to " + ToyEnvironment.MAX_PAGE_SIZE);
+                return;
+            }
+            final Writer out = openJson(httpExchange, 200);
+            environment.writeScheduledJson(new JsonWriter(out), status, within, from, to, limit);
+            out.close();
+        }
+
+        private void getJob(final HttpExchange httpExchange, final String name) throws IOException {
+            final Job job = environment.getJob(name);
+            if (job == null) {
+                sendError(httpExchange, 404, "Job " + name + " does not exist");
+                return;
+            }
+            final Writer out = openJson(httpExchange, 200);
+            environment.writeJson(new JsonWriter(out), name, job);
+            out.close();
+        }
+
+        private void createJob(final HttpExchange httpExchange) throws IOException {
+            final Map<String, String> parsed;
+            try {
+                final String contentType = httpExchange.getRequestHeaders().getFirst("Content-Type");
+                if (contentType != null && contentType.contains("json"))
+                    parsed = RequestParser.parseJson(new BufferedReader(
+                            new InputStreamReader(httpExchange.getRequestBody(), RequestParser.UTF8)));
+                else
+                    parsed = RequestParser.parseForm(httpExchange.getRequestBody());
+            } catch (IllegalArgumentException ex) {
+                sendError(httpExchange, 400, ex.getMessage());
+                return;
+            }
+            final String name = parsed.get("name");
+            final String type = parsed.get("type");
+            final String time = parsed.get("time");
+            final String param = parsed.get("param");
+            if (name == null || name.isEmpty() || type == null || time == null || param == null) {
+                sendError(httpExchange, 400, "Members name, type, time and param are required");
+                return;
+            }
+            final String error;
+            final boolean extension = "calculator".equals(type) && environment.getCalcJob() != null;
+            try {
+                error = submitJob(name, type, time, param);
+            } catch (NumberFormatException ex) {
+                sendError(httpExchange, 400, "Time and param must be integer numbers");
+                return;
+            } catch (SchedulingException ex) {
+                sendError(httpExchange, 409, ex.getMessage());
+                return;
+            }
+            if (error != null) {
+                sendError(httpExchange, 409, error);
+                return;
+            }
+            final String created = extension ? environment.getCalcJobName() : name;
+            final Job job = environment.getJob(created);
+            if (job == null) {
+                // Removed concurrently
+                sendError(httpExchange, 404, "Job " + created + " does not exist");
+                return;
+            }
+            httpExchange.getResponseHeaders().set("Location", JOBS_PATH + "/" + created);
+            final Writer out = openJson(httpExchange, extension ? 200 : 201);
+            environment.writeJson(new JsonWriter(out), created, job);
+            out.close();
+        }
+
+        /**
+         * Creates jobs from a streamed request body.
+         *
+         * Lines are parsed as they arrive, so a body is never kept in memory as a whole.
+         * Parsed jobs are collected into a batch which is added to the environment under one lock,
+         * then results of the batch lines are written and flushed. Empty lines and a CSV header are skipped.
+         * A prime calculator line is handled like a single POST: lines before it are added first,
+         * then the calculator is added or the existing one is extended.
+         * The last line of a response is a summary with numbers of added and failed jobs.
+         */
+        private void createJobs(final HttpExchange httpExchange) throws IOException {
+            final String contentType = httpExchange.getRequestHeaders().getFirst("Content-Type");
+            final boolean csv = contentType != null && contentType.contains("csv");
+            final RequestParser.LineReader in = new RequestParser.LineReader(new BufferedReader(
+                    new InputStreamReader(httpExchange.getRequestBody(), RequestParser.UTF8)), MAX_LINE_LENGTH);
+            httpExchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+            httpExchange.sendResponseHeaders(200, 0);
+            final Writer out = new BufferedWriter(
+                    new OutputStreamWriter(httpExchange.getResponseBody(), RequestParser.UTF8));
+            final int[] lines = new int[BULK_BATCH_SIZE];
+            final String[] errors = new String[BULK_BATCH_SIZE];
+            final List<String> names = new ArrayList<String>(BULK_BATCH_SIZE);
+            final List<Job> jobs = new ArrayList<Job>(BULK_BATCH_SIZE);
+            int size = 0, added = 0, failed = 0, lineNumber = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber++;
+                if (line.trim().isEmpty() || (csv && lineNumber == 1 && line.startsWith("name,")))
+                    continue;
+                String name = null, type = null, time = null, param = null;
+                String error = null;
+                try {
+                    if (in.isTooLong())
+                        throw new IllegalArgumentException("Line is too long");
+                    if (csv) {
+                        final String[] fields = RequestParser.parseCsv(line, 4);
+                        name = fields[0];
+                        type = fields[1];
+                        time = fields[2];
+                        param = fields[3];
+                    } else {
+                        final Map<String, String> parsed = RequestParser.parseJson(new StringReader(line));
+                        name = parsed.get("name");
+                        type = parsed.get("type");
+                        time = parsed.get("time");
+                        param = parsed.get("param");
+                    }
+                    if (name == null || name.isEmpty() || type == null || time == null || param == null)
+                        error = "Members name, type, time and param are required";
+                } catch (IllegalArgumentException ex) {
+                    error = ex.getMessage();
+                }
+                if (error == null && "calculator".equals(type)) {
+                    final int batchAdded = addBatch(out, lines, errors, names, jobs);
+                    added += batchAdded;
+                    failed += size - batchAdded;
+                    size = 0;
+                    if (submitCalculator(out, lineNumber, name, time, param))
+                        added++;
+                    else
+                        failed++;
+                    continue;
+                }
+                Job job = null;
+                if (error == null) {
+                    try {
+                        job = ToyServer.this.createJob(type, Integer.parseInt(time), Integer.parseInt(param));
+                        if (job == null)
+                            error = "Error creating job " + name + " of type " + type;
+                    } catch (NumberFormatException ex) {
+                        error = "Time and param must be integer numbers";
+                    }
+                }
+                lines[size] = lineNumber;
+                errors[size++] = error;
+                names.add(name);
+                // Failed lines keep their places in a batch, so results are written in order
+                jobs.add(job);
+                if (size == BULK_BATCH_SIZE) {
+                    final int batchAdded = addBatch(out, lines, errors, names, jobs);
+                    added += batchAdded;
+                    failed += size - batchAdded;
+                    size = 0;
+                }
+            }
+            final int batchAdded = addBatch(out, lines, errors, names, jobs);
+            added += batchAdded;
+            failed += size - batchAdded;
+            new JsonWriter(out).beginObject().name("added").value(added).name("failed").value(failed).endObject();
+            out.write('\n');
+            out.close();
+        }
+
+        /**
+         * Adds a prime calculator or extends the existing one, the same way as a single POST does,
+         * and writes a result of its line
+         * @return true if a calculator is added or extended
+         */
+        private boolean submitCalculator(final Writer out, final int line, final String name,
+                                         final String time, final String param) throws IOException {
+            final boolean extension = environment.getCalcJob() != null;
+            String error;
+            try {
+                error = submitJob(name, "calculator", time, param);
+            } catch (NumberFormatException ex) {
+                error = "Time and param must be integer numbers";
+            } catch (SchedulingException ex) {
+                error = "Error: " + ex.getMessage();
+            }
+            final String calcName = extension && error == null ? environment.getCalcJobName() : name;
+            writeResult(out, line, calcName, error, extension ? "extended" : "created");
+            out.flush();
+            return error == null;
+        }
+
+        /**
+         * Writes a result of one bulk line as a JSON object with a status or an error
+         */
+        private void writeResult(final Writer out, final int line, final String name, final String error,
+                                 final String status) throws IOException {
+            final JsonWriter json = new JsonWriter(out);
+            json.beginObject().name("line").value(line).name("name").value(name);
+            if (error == null)
+                json.name("status").value(status);
+            else
+                json.name("error").value(error);
+            json.endObject();
+            out.write('\n');
+        }
+
+        /**
+         * Adds parsed jobs of a batch to the environment, writes and flushes results of batch lines, clears the batch
+         * @return a number of added jobs
+         */
+        private int addBatch(final Writer out, final int[] lines, final String[] errors,
+                             final List<String> names, final List<Job> jobs) throws IOException {
+            final int size = names.size();
+            final List<String> validNames = new ArrayList<String>(size);
+            final List<Job> validJobs = new ArrayList<Job>(size);
+            for (int i = 0; i < size; i++) {
+                if (errors[i] == null) {
+                    validNames.add(names.get(i));
+                    validJobs.add(jobs.get(i));
+                }
+            }
+            final String[] results = environment.addJobs(validNames, validJobs);
+            int added = 0;
+            for (int i = 0, j = 0; i < size; i++) {
+                final String error = errors[i] != null ? errors[i] : results[j++];
+                writeResult(out, lines[i], names.get(i), error, "created");
+                if (error == null)
+                    added++;
+            }
+            out.flush();
+            names.clear();
+            jobs.clear();
+            return added;
+        }
+
+        private void deleteJob(final HttpExchange httpExchange, final String name) throws IOException {
+            if (environment.getJob(name) == null) {
+                sendError(httpExchange, 404, "Job " + name + " does not exist");
+                return;
+            }
+            try {
+                if (environment.removeJob(name))
+                    httpExchange.sendResponseHeaders(204, -1);
+                else
+                    sendError(httpExchange, 404, "Job " + name + " does not exist");
+            } catch (SchedulingException ex) {
+                sendError(httpExchange, 409, ex.getMessage());
+            }
+        }
+
+        /**
+         * Sends headers of a JSON response with chunked encoding, compressed if a client accepts it
+         * @return a writer for a response body, must be closed by a caller
+         */
+        private Writer openJson(final HttpExchange httpExchange, final int code) throws IOException {
+            return openBody(httpExchange, code, "application/json; charset=utf-8");
+        }
+
+        /**
+         * Sends a short JSON error with a fixed length, never compressed
+         */
+        private void sendError(final HttpExchange httpExchange, final int code, final String message)
+                throws IOException {
+            final StringWriter text = new StringWriter();
+            new JsonWriter(text).beginObject().name("error").value(message).endObject();
+            final byte[] bytes = text.toString().getBytes(RequestParser.UTF8);
+            httpExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            httpExchange.sendResponseHeaders(code, bytes.length);
+            final OutputStream out = httpExchange.getResponseBody();
+            out.write(bytes);
             out.close();
         }
     }
 
+    /**
+     * An interval between server-sent events with job changes, in milliseconds
+     */
+    static private final long EVENT_INTERVAL = 250;
+
+    static private final int DEFAULT_PORT = 8080;
+
+    /**
+     * A buffer size for response writers and compression
+     */
+    static private final int GZIP_BUFFER_SIZE = 8192;
+
     private final ExecutorService executor;
 
     private final HttpServer server;
@@ -133,6 +574,141 @@ public class ToyServer {
 
     private String status = "OK";
 
+    /**
+     * Checks whether a client accepts gzip content coding
+     * @param httpExchange an exchange with request headers
+     * @return true if gzip is accepted by Accept-Encoding headers
+     */
+    static boolean acceptsGzip(final HttpExchange httpExchange) {
+        return acceptsGzip(httpExchange.getRequestHeaders().get("Accept-Encoding"));
+    }
+
+    /**
+     * Checks whether Accept-Encoding headers accept gzip content coding.
+     *
+     * An explicit gzip entry is preferred over *, wherever it is in the list,
+     * an entry with zero quality excludes a coding.
+     *
+     * @param headers values of Accept-Encoding headers, null if there are none
+     * @return true if gzip or * is listed and not excluded by zero quality
+     */
+    static boolean acceptsGzip(final List<String> headers) {
+        if (headers == null)
+            return false;
+        boolean any = false;
+        for (String header: headers) {
+            for (String coding: header.split(",")) {
+                final int semicolon = coding.indexOf(';');
+                final String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+                if (!"gzip".equalsIgnoreCase(name) && !"*".equals(name))
+                    continue;
+                final String parameters = semicolon < 0 ? "" : coding.substring(semicolon + 1).replace(" ", "");
+                final boolean accepted = !parameters.matches("q=0(\\.0*)?");
+                if ("*".equals(name))
+                    any = accepted;
+                else
+                    return accepted;
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Sends headers of a response with chunked encoding, compressed by gzip if a client accepts it.
+     *
+     * Text is encoded to UTF-8 as it's written, so a response is never materialized as a whole.
+     * Not for streams that must be flushed while open, compressed data cannot be flushed in Java 6.
+     *
+     * @param httpExchange an exchange to respond
+     * @param code a response code
+     * @param contentType a content type
+     * @return a writer for a response body, must be closed by a caller
+     * @throws IOException if headers cannot be sent
+     */
+    static Writer openBody(final HttpExchange httpExchange, final int code, final String contentType)
+            throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", contentType);
+        httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        OutputStream out = httpExchange.getResponseBody();
+        if (acceptsGzip(httpExchange)) {
+            httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            httpExchange.sendResponseHeaders(code, 0);
+            out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        } else {
+            httpExchange.sendResponseHeaders(code, 0);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, RequestParser.UTF8), GZIP_BUFFER_SIZE);
+    }
+
+    /**
+     * Sends a rendered snapshot of the environment with its entity tag.
+     *
+     * If a client already has the same version, only 304 Not Modified is sent.
+     * A snapshot is sent with a fixed length, compressed by gzip if a client accepts it,
+     * and a compressed copy is cached in the snapshot itself. Compressed and plain
+     * representations have different entity tags.
+     *
+     * @param httpExchange an exchange to respond
+     * @param snapshot a snapshot to send
+     * @param contentType a content type of the snapshot
+     * @throws IOException if a response cannot be sent
+     */
+    private void sendSnapshot(final HttpExchange httpExchange, final ToyEnvironment.Snapshot snapshot,
+                              final String contentType) throws IOException {
+        final boolean gzip = acceptsGzip(httpExchange);
+        final String etag = gzip ? snapshot.getGzipETag() : snapshot.getETag();
+        httpExchange.getResponseHeaders().set("ETag", etag);
+        // Clients should revalidate their copy on each request
+        httpExchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (etag.equals(httpExchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            httpExchange.sendResponseHeaders(304, -1);
+            httpExchange.close();
+            return;
+        }
+        final byte[] bytes;
+        if (gzip) {
+            bytes = snapshot.getGzipBytes();
+            httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        } else {
+            bytes = snapshot.getBytes();
+        }
+        httpExchange.getResponseHeaders().set("Content-Type", contentType);
+        httpExchange.sendResponseHeaders(200, bytes.length);
+        final OutputStream out = httpExchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Creates new job by string parameters and adds it to the environment.
+     *
+     * If a prime calculator is to add and it already exists, it's extended instead.
+     *
+     * @param name a job name
+     * @param type a string representing job type
+     * @param time a planned time in ms from now
+     * @param param a job-dependable parameter
+     * @return null if a job is added or a calculator is extended, an error message otherwise
+     * @throws NumberFormatException if time or param is not an integer number
+     * @throws SchedulingException if scheduler cannot add this job
+     */
+    private String submitJob(final String name, final String type, final String time, final String param)
+            throws SchedulingException {
+        if ("calculator".equals(type) && environment.getCalcJob() != null) {
+            // The only calculator is extended instead of creating a second one
+            if (environment.extendCalcJob(Integer.parseInt(param)))
+                return null;
+            return "Error extending prime calculator to " + param;
+        }
+        final Job job = createJob(type, Integer.parseInt(time), Integer.parseInt(param));
+        if (job == null)
+            return "Error creating job " + name + " of type " + type;
+        if (environment.addJob(name, job))
+            return null;
+        return "Error adding job " + name;
+    }
+
     /**
      * Creates new job by string type, planned time, and a job-dependable parameter.
      * @param type a string representing job type
@@ -162,17 +738,32 @@ public class ToyServer {
     }
 
     /**
-     * Constructs a new toy server with a given thread number
+     * Constructs a new toy server with a given thread number on port 8080
      * @param serverThreadNumber a necessary thread number for a server
      * @param schedulerThreadNumber a necessary thread number for a scheduler
      */
     public ToyServer(final int serverThreadNumber, final int schedulerThreadNumber) {
+        this(DEFAULT_PORT, serverThreadNumber, schedulerThreadNumber);
+    }
+
+    /**
+     * Constructs a new toy server with a given thread number on a given port
+     * @param port a port to listen, or 0 for any free port
+     * @param serverThreadNumber a necessary thread number for a server
+     * @param schedulerThreadNumber a necessary thread number for a scheduler
+     */
+    public ToyServer(final int port, final int serverThreadNumber, final int schedulerThreadNumber) {
         environment = new ToyEnvironment(schedulerThreadNumber);
         executor = Executors.newFixedThreadPool(serverThreadNumber);
         HttpServer server;
         try {
-            server = HttpServer.create(new InetSocketAddress(8080), 0);
-            server.createContext("/", new ConnectionHandler());
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            final MetricsHandler metrics = new MetricsHandler(environment.getMetrics());
+            server.createContext("/", new ConnectionHandler()).getFilters().add(metrics.requestCounter("/"));
+            server.createContext("/api/", new ApiHandler()).getFilters().add(metrics.requestCounter("/api/"));
+            server.createContext("/events", new EventBroadcaster(environment, EVENT_INTERVAL))
+                    .getFilters().add(metrics.requestCounter("/events"));
+            server.createContext("/metrics", metrics).getFilters().add(metrics.requestCounter("/metrics"));
             server.setExecutor(executor);
             System.out.println("A toy server started successfully");
         } catch (IOException ex) {
@@ -184,11 +775,30 @@ public class ToyServer {
             this.server.start();
     }
 
+    /**
+     * @return a port the server listens, or -1 if it has failed to start
+     */
+    public int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server and shuts its scheduler down
+     */
+    public void stop() {
+        if (server != null)
+            server.stop(0);
+        executor.shutdown();
+        environment.shutdown();
+    }
+
     /**
      * A classic main function
      * @param args command line arguments, not in use
      */
     static public void main(String[] args) {
+        // Small responses on kept-alive connections are delayed by Nagle's algorithm otherwise
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         // Creates a server with one thread for itself and four threads for a scheduler
         new ToyServer(1,4);
     }
@@ -0,0 +1,243 @@
+package ru.digiteklabs.scheduler.web;
+
+import org.jetbrains.annotations.NotNull;
+import ru.digiteklabs.scheduler.core.impl.TraceRecorder;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An offline converter of a binary scheduler trace into Chrome trace event JSON,
+ * which can be opened by chrome://tracing or Perfetto UI.
+ *
+ * Process 1 has a track per thread with runs and instant timer, ready and dispatch events.
+ * Process 2 has a track per job with a wait from ready to start and a run.
+ * A flow arrow goes from a finished run to each job which became ready in the same thread right after it,
+ * so it shows which prerequisite has released a job. Following such releases back from the last finished run
+ * gives a critical path, it is shown as a single track of process 3.
+ *
+ * This class is not thread-safe
+ *
+ * @author Mikhail Glukhikh
+ */
+public final class TraceConverter {
+
+    static private final String USAGE = "Usage: TraceConverter TRACE_FILE JSON_FILE";
+
+    static private final int THREADS = 1;
+
+    static private final int JOBS = 2;
+
+    static private final int CRITICAL_PATH = 3;
+
+    /**
+     * An event read from a trace
+     */
+    private static final class Event {
+
+        private final long threadId;
+
+        private final TraceRecorder.Kind kind;
+
+        private final long jobId;
+
+        private final long nanos;
+
+        Event(final long threadId, final TraceRecorder.Kind kind, final long jobId, final long nanos) {
+            this.threadId = threadId;
+            this.kind = kind;
+            this.jobId = jobId;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * One run of a job from ready to finish, times in ns or -1 if unknown
+     */
+    private static final class Run {
+
+        private final long jobId;
+
+        private long ready = -1;
+
+        private long start = -1;
+
+        private long finish = -1;
+
+        /**
+         * A run whose finish has made this job ready, or null
+         */
+        private Run releasedBy = null;
+
+        Run(final long jobId) {
+            this.jobId = jobId;
+        }
+    }
+
+    private final Map<Long, String> threadNames = new LinkedHashMap<Long, String>();
+
+    private final List<Event> events = new ArrayList<Event>();
+
+    private long startMillis;
+
+    private long flows = 0;
+
+    private TraceConverter() {}
+
+    private void read(final File trace) throws IOException {
+        startMillis = TraceRecorder.read(trace, new TraceRecorder.Visitor() {
+            @Override
+            public void thread(long threadId, String name) {
+                threadNames.put(threadId, name);
+            }
+
+            @Override
+            public void event(long threadId, TraceRecorder.Kind kind, long jobId, long nanos) {
+                events.add(new Event(threadId, kind, jobId, nanos));
+            }
+        });
+        // A stable sort keeps order of events of a thread with equal times
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event first, Event second) {
+                return first.nanos < second.nanos ? -1 : (first.nanos == second.nanos ? 0 : 1);
+            }
+        });
+    }
+
+    private static long micros(final long nanos) {
+        return nanos / 1000;
+    }
+
+    private static void metadata(final JsonWriter json, final String name, final int pid, final long tid,
+                                 final String value) throws IOException {
+        json.beginObject().name("name").value(name).name("ph").value("M").name("pid").value(pid);
+        if (tid >= 0)
+            json.name("tid").value(tid);
+        json.name("args").beginObject().name("name").value(value).endObject().endObject();
+    }
+
+    private static void slice(final JsonWriter json, final String name, final int pid, final long tid,
+                              final long from, final long to, final long jobId) throws IOException {
+        json.beginObject().name("name").value(name).name("ph").value("X")
+                .name("pid").value(pid).name("tid").value(tid).name("ts").value(micros(from))
+                .name("dur").value(micros(to) - micros(from)).name("args").beginObject().name("job").value(jobId).endObject().endObject();
+    }
+
+    private static void instant(final JsonWriter json, final String name, final long tid, final long nanos,
+                                final long jobId) throws IOException {
+        json.beginObject().name("name").value(name).name("ph").value("i").name("s").value("t")
+                .name("pid").value(THREADS).name("tid").value(tid).name("ts").value(micros(nanos))
+                .name("args").beginObject().name("job").value(jobId).endObject().endObject();
+    }
+
+    /**
+     * Draws an arrow from the end of a run of one job to the wait of another one
+     */
+    private void flow(final JsonWriter json, final Run from, final Run to) throws IOException {
+        final long id = ++flows;
+        json.beginObject().name("name").value("release").name("cat").value("release").name("ph").value("s")
+                .name("id").value(id).name("pid").value(JOBS).name("tid").value(from.jobId)
+                .name("ts").value(Math.max(micros(from.start), micros(from.finish) - 1)).endObject();
+        json.beginObject().name("name").value("release").name("cat").value("release").name("ph").value("f")
+                .name("bp").value("e").name("id").value(id).name("pid").value(JOBS).name("tid").value(to.jobId)
+                .name("ts").value(micros(to.ready)).endObject();
+    }
+
+    private void write(final Writer out) throws IOException {
+        final JsonWriter json = new JsonWriter(out);
+        json.beginObject().name("displayTimeUnit").value("ms");
+        json.name("otherData").beginObject().name("startTime").value(startMillis).endObject();
+        json.name("traceEvents").beginArray();
+        metadata(json, "process_name", THREADS, -1, "Scheduler threads");
+        metadata(json, "process_name", JOBS, -1, "Jobs");
+        metadata(json, "process_name", CRITICAL_PATH, -1, "Critical path");
+        for (Map.Entry<Long, String> entry: threadNames.entrySet())
+            metadata(json, "thread_name", THREADS, entry.getKey(), entry.getValue());
+        // Runs from ready to finish by job
+        final Map<Long, Run> open = new HashMap<Long, Run>();
+        // The last run finished by each thread since it started another one
+        final Map<Long, Run> released = new HashMap<Long, Run>();
+        Run last = null;
+        for (Event event: events) {
+            Run run = open.get(event.jobId);
+            if (run == null && event.kind != TraceRecorder.Kind.TIMER) {
+                run = new Run(event.jobId);
+                open.put(event.jobId, run);
+            }
+            switch (event.kind) {
+                case TIMER:
+                    instant(json, "timer", event.threadId, event.nanos, event.jobId);
+                    break;
+                case READY:
+                    instant(json, "ready", event.threadId, event.nanos, event.jobId);
+                    if (run.ready < 0) {
+                        run.ready = event.nanos;
+                        run.releasedBy = released.get(event.threadId);
+                        if (run.releasedBy != null)
+                            flow(json, run.releasedBy, run);
+                    }
+                    break;
+                case DISPATCH:
+                    instant(json, "dispatch", event.threadId, event.nanos, event.jobId);
+                    break;
+                case START:
+                    run.start = event.nanos;
+                    released.remove(event.threadId);
+                    if (run.ready >= 0)
+                        slice(json, "wait", JOBS, event.jobId, run.ready, run.start, event.jobId);
+                    break;
+                case FINISH:
+                case FAIL:
+                    open.remove(event.jobId);
+                    if (run.start < 0)
+                        break;
+                    run.finish = event.nanos;
+                    final String name = event.kind == TraceRecorder.Kind.FAIL ? "failed job " : "job ";
+                    slice(json, name + event.jobId, THREADS, event.threadId, run.start, run.finish, event.jobId);
+                    slice(json, "run", JOBS, event.jobId, run.start, run.finish, event.jobId);
+                    released.put(event.threadId, run);
+                    if (last == null || run.finish >= last.finish)
+                        last = run;
+                    break;
+            }
+        }
+        for (Run run = last; run != null; run = run.releasedBy) {
+            if (run.ready >= 0)
+                slice(json, "wait job " + run.jobId, CRITICAL_PATH, 1, run.ready, run.start, run.jobId);
+            slice(json, "job " + run.jobId, CRITICAL_PATH, 1, run.start, run.finish, run.jobId);
+        }
+        json.endArray().endObject();
+    }
+
+    /**
+     * Converts a trace file into Chrome trace event JSON
+     *
+     * @param trace a trace file written by TraceRecorder
+     * @param out a writer for JSON, not closed
+     * @throws IOException if the trace cannot be read or JSON cannot be written
+     */
+    static public void convert(@NotNull final File trace, @NotNull final Writer out) throws IOException {
+        final TraceConverter converter = new TraceConverter();
+        converter.read(trace);
+        converter.write(out);
+    }
+
+    /**
+     * Converts a trace file given by the first argument into a JSON file given by the second one
+     * @param args command line arguments, see usage
+     */
+    static public void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8"));
+        try {
+            convert(new File(args[0]), out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -4,12 +4,20 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import ru.digiteklabs.scheduler.core.api.Scheduler;
+import ru.digiteklabs.scheduler.core.api.SchedulingException;
+import ru.digiteklabs.scheduler.job.api.AbstractJob;
+import ru.digiteklabs.scheduler.job.api.Clock;
+import ru.digiteklabs.scheduler.job.api.Job;
 import ru.digiteklabs.scheduler.job.samples.*;
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.List;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -25,6 +33,34 @@ public class TimerSchedulerTest {
 
     }
 
+    /**
+     * A model of simulated runs which takes an expected duration of a job or a given default one,
+     * and counts launches of each job
+     */
+    private static class LaunchCounter implements Simulation.DurationModel {
+
+        private final long duration;
+
+        private final Map<Job, Integer> launches = new HashMap<Job, Integer>();
+
+        LaunchCounter(final long duration) {
+            this.duration = duration;
+        }
+
+        @Override
+        public long getDuration(Job job) {
+            final Integer launched = launches.get(job);
+            launches.put(job, launched == null ? 1 : launched + 1);
+            final long expected = ((AbstractJob) job).getExpectedDuration();
+            return expected > 0 ? expected : duration;
+        }
+
+        int getLaunches(final Job job) {
+            final Integer launched = launches.get(job);
+            return launched == null ? 0 : launched;
+        }
+    }
+
     /**
      * Creates one-shot job with immediate run and checks its progress
      * @throws Exception
@@ -131,6 +167,72 @@ public class TimerSchedulerTest {
         assertFalse(job.isCompleted());
     }
 
+    /**
+     * A one-shot job which makes two threads looking it up meet each other, once armed
+     */
+    private static class MeetingJob extends OneShotJob {
+
+        private final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        private final CountDownLatch waiting = new CountDownLatch(1);
+
+        private volatile boolean armed = false;
+
+        MeetingJob(final Date plannedTime) {
+            super(plannedTime);
+        }
+
+        @Override
+        public int hashCode() {
+            if (armed) {
+                waiting.countDown();
+                try {
+                    barrier.await(1, TimeUnit.SECONDS);
+                } catch (Exception ex) {
+                    // The second thread has not come
+                }
+                armed = false;
+            }
+            return super.hashCode();
+        }
+    }
+
+    /**
+     * Makes the timer and a ready status change check a job at the same moment, the job must run once
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentReadyCheck() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(2);
+        final long now = Calendar.getInstance().getTimeInMillis();
+        final MeetingJob required = new MeetingJob(new Date(now + 20));
+        final AtomicInteger runs = new AtomicInteger();
+        final Set<Job> requiredJobs = new HashSet<Job>();
+        requiredJobs.add(required);
+        final AbstractJob job = new AbstractJob(new Date(now + 150), requiredJobs) {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                try {
+                    // A second run would start while the first one is running
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        scheduler.addJob(required);
+        scheduler.addJob(job);
+        Thread.sleep(80);
+        assertTrue(required.isFinished());
+        required.armed = true;
+        // The timer checks required jobs and waits in the required job lookup for a second check
+        assertTrue(required.waiting.await(1, TimeUnit.SECONDS));
+        scheduler.readyChanged(job, true);
+        Thread.sleep(100);
+        assertTrue(runs.get() == 1);
+    }
+
     /**
      * Creates a sequential job and checks its progress and stages.
      * @throws Exception
@@ -152,50 +254,1219 @@ public class TimerSchedulerTest {
     }
 
     /**
-     * Creates a periodic job and runs it a few times
+     * Creates a periodic job and runs it a few times in virtual time
      * @throws Exception
      */
     @Test
     public void testPeriodicJob() throws Exception {
-        final Scheduler scheduler = new TimerScheduler();
-        final PeriodicJob job = new PeriodicJob(new Date(Calendar.getInstance().getTimeInMillis() + 500), 500, 500);
+        final long start = 1000000000000L;
+        final LaunchCounter counter = new LaunchCounter(500);
+        final Simulation simulation = new Simulation(start, 4, counter);
+        final Scheduler scheduler = simulation.getScheduler();
+        final PeriodicJob job = new PeriodicJob(new Date(start + 500), 500, 500);
         assertTrue(job.getLaunchNumber() == 0);
         assertFalse(job.isStarted());
         scheduler.addJob(job);
-        Thread.sleep(1250);
-        assertTrue(job.getLaunchNumber() == 1);
+        simulation.runFor(1250);
+        assertTrue(counter.getLaunches(job) == 1);
         assertTrue(job.isFinished());
-        Thread.sleep(2000);
-        assertTrue(job.getLaunchNumber() == 3);
+        simulation.runFor(2000);
+        assertTrue(counter.getLaunches(job) == 3);
         assertTrue(job.isFinished());
         scheduler.removeJob(job);
+        simulation.runFor(1000);
+        assertTrue(counter.getLaunches(job) == 3);
+    }
+
+    /**
+     * Runs a few jobs and checks scheduler metrics
+     * @throws Exception
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(2);
+        final SchedulerMetrics metrics = scheduler.getMetrics();
+        final OneShotJob delayed = new OneShotJob(new Date(Calendar.getInstance().getTimeInMillis() + 10000), 10);
+        scheduler.addJob(delayed);
+        for (int i = 0; i < 3; i++)
+            scheduler.addJob(new OneShotJob(new Date(), 10));
+        Thread.sleep(250);
+        assertTrue(metrics.getCompleted() == 3);
+        assertTrue(metrics.getFailed() == 0);
+        assertTrue(metrics.getTimerQueueSize() == 1);
+        assertTrue(metrics.getExecutorActive() + metrics.getExecutorQueued() == 0);
+        assertTrue(metrics.getJobCounts().get("future") == 1);
+        assertTrue(metrics.getJobCounts().get("finished") == 0);
+        final long[] runs = metrics.getRunTime().getCumulativeCounts();
+        assertTrue(runs[runs.length - 1] == 3);
+        assertTrue(metrics.getRunTime().getSum() >= 0.03);
+        scheduler.removeJob(delayed);
+        assertTrue(metrics.getTimerQueueSize() == 0);
+        assertTrue(metrics.getJobCounts().get("future") == 0);
+    }
+
+    /**
+     * Checks queries by status and by planned time
+     * @throws Exception
+     */
+    @Test
+    public void testJobQueries() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(2);
+        final long now = Calendar.getInstance().getTimeInMillis();
+        final OneShotJob running = new OneShotJob(500);
+        final OneShotJob first = new OneShotJob(new Date(now + 2000));
+        final OneShotJob second = new OneShotJob(new Date(now + 1000));
+        final OneShotJob third = new OneShotJob(new Date(now + 10000));
+        scheduler.addJob(running);
+        scheduler.addJob(first);
+        scheduler.addJob(second);
+        scheduler.addJob(third);
+        Thread.sleep(100);
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.RUN).equals(Collections.singletonList(running)));
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.FUTURE).size() == 3);
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.FUTURE, 2).size() == 2);
+        assertTrue(scheduler.getJobsDueWithin(5000, 10).equals(Arrays.asList(second, first)));
+        assertTrue(scheduler.getJobsDueWithin(5000, 1).equals(Collections.singletonList(second)));
+        assertTrue(scheduler.getJobsPlannedBetween(new Date(now + 1500), new Date(now + 20000), 10)
+                .equals(Arrays.asList(first, third)));
+        scheduler.removeJob(first);
+        assertTrue(scheduler.getJobsDueWithin(5000, 10).equals(Collections.singletonList(second)));
         Thread.sleep(1000);
-        assertTrue(job.getLaunchNumber() == 3);
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.RUN).isEmpty());
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.FUTURE).equals(Collections.singletonList(third)));
+        assertTrue(scheduler.getJobsDueWithin(5000, 10).isEmpty());
+        scheduler.removeJob(third);
+    }
+
+    /**
+     * Adds and removes dependencies between scheduled jobs, checks cycle detection and execution order
+     * @throws Exception
+     */
+    @Test
+    public void testDependencyEditing() throws Exception {
+        final Scheduler scheduler = new TimerScheduler(3);
+        final Date planned = new Date(Calendar.getInstance().getTimeInMillis() + 200);
+        final OneShotJob first = new OneShotJob(planned, 200);
+        final OneShotJob second = new OneShotJob(planned, 200);
+        final OneShotJob third = new OneShotJob(planned, 200);
+        scheduler.addJob(first);
+        scheduler.addJob(second);
+        scheduler.addJob(third);
+        // second requires third, third requires first, against the order they are added
+        assertTrue(scheduler.addDependency(second, third));
+        assertTrue(scheduler.addDependency(third, first));
+        assertFalse(scheduler.addDependency(third, first));
+        try {
+            scheduler.addDependency(first, second);
+            fail("Cycle is not detected");
+        } catch (SchedulingException ex) {
+            // OK
+        }
+        Thread.sleep(300);
+        assertTrue(first.isStarted());
+        assertFalse(third.isStarted());
+        Thread.sleep(200);
+        assertTrue(first.isCompleted());
+        assertTrue(third.isStarted());
+        assertFalse(second.isStarted());
+        // second is released before third is completed
+        assertTrue(scheduler.removeDependency(second, third));
+        Thread.sleep(50);
+        assertTrue(second.isStarted());
+        assertFalse(third.isCompleted());
+        Thread.sleep(300);
+        assertTrue(second.isCompleted());
+        assertTrue(third.isCompleted());
+        // A required job is not deleted automatically
+        assertTrue(scheduler.getScheduledJobs().equals(Collections.<Job>singleton(first)));
+        assertTrue(scheduler.removeJob(first));
+    }
+
+    /**
+     * Creates tagged jobs, pauses, shifts and resumes them as a group, then cancels a tagged subgraph
+     * @throws Exception
+     */
+    @Test
+    public void testTagOperations() throws Exception {
+        final long start = 1000000000000L;
+        final Simulation simulation = new Simulation(start, 3, new LaunchCounter(0));
+        final TimerScheduler scheduler = simulation.getScheduler();
+        final Date planned = new Date(start + 200);
+        final Set<String> tags = Collections.singleton("customer");
+        final OneShotJob first = new OneShotJob(planned, 50);
+        final OneShotJob second = new OneShotJob(planned, 50);
+        final OneShotJob third = new OneShotJob(planned, 50);
+        scheduler.addJob(first, tags);
+        scheduler.addJob(second, tags);
+        scheduler.addJob(third);
+        assertTrue(scheduler.addDependency(third, first));
+        assertTrue(scheduler.pauseTag("customer") == 2);
+        assertTrue(scheduler.pauseTag("customer") == 0);
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.PAUSED).size() == 2);
+        // Paused jobs leave the time index
+        assertTrue(scheduler.getJobsDueWithin(1000, 10).equals(Collections.<Job>singletonList(third)));
+        simulation.runFor(300);
+        assertFalse(first.isStarted());
+        assertFalse(second.isStarted());
+        assertFalse(third.isStarted());
+        assertTrue(scheduler.shiftTag("customer", 200) == 2);
+        assertTrue(scheduler.resumeTag("customer") == 2);
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.FUTURE).size() == 2);
+        // Shifted jobs start at 400 ms, and the third one waits for the first one
+        simulation.runFor(99);
+        assertFalse(first.isStarted());
+        simulation.runFor(1);
+        assertTrue(first.isStarted() && second.isStarted());
+        assertFalse(third.isStarted());
+        simulation.runFor(50);
+        assertTrue(first.isFinished());
+        assertTrue(second.isFinished());
+        assertTrue(third.isStarted());
+        simulation.runFor(50);
+        assertTrue(third.isFinished());
+        // A subgraph of a tagged job and its dependent is cancelled at once
+        final OneShotJob fourth = new OneShotJob(new Date(start + 10000));
+        final OneShotJob fifth = new OneShotJob(new Date(start + 10000));
+        scheduler.addJob(fourth);
+        scheduler.addJob(fifth);
+        assertTrue(scheduler.tagJob(fourth, "pipeline"));
+        assertFalse(scheduler.tagJob(fourth, "pipeline"));
+        assertTrue(scheduler.addDependency(fifth, fourth));
+        assertTrue(scheduler.getJobsByTag("pipeline").equals(Collections.<Job>singletonList(fourth)));
+        assertTrue(scheduler.cancelTag("pipeline") == 2);
+        assertTrue(scheduler.getJobsByTag("pipeline").isEmpty());
+        assertTrue(scheduler.getScheduledJobs().equals(Collections.<Job>singleton(first)));
+        assertTrue(scheduler.cancelTag("customer") == 1);
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
     }
 
     /**
-     * Creates a set of 50 periodic jobs and checks their status at different time moments
+     * Shuts a scheduler down with a running job, then drains another one with a near and a far job
+     * @throws Exception
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        final long start = 1000000000000L;
+        final Simulation simulation = new Simulation(start, 2, new LaunchCounter(10));
+        final TimerScheduler scheduler = simulation.getScheduler();
+        final OneShotJob running = new OneShotJob(new Date(start), 200);
+        final OneShotJob far = new OneShotJob(new Date(start + 10000));
+        final PeriodicJob periodic = new PeriodicJob(new Date(start), 10, 100);
+        scheduler.addJob(running);
+        scheduler.addJob(far);
+        scheduler.addJob(periodic);
+        simulation.runFor(50);
+        final List<Job> pending = scheduler.shutdown();
+        assertTrue(pending.size() == 2);
+        assertTrue(pending.contains(far) && pending.contains(periodic));
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.RUN).equals(Collections.<Job>singletonList(running)));
+        try {
+            scheduler.addJob(new OneShotJob());
+            fail("Job is added after shutdown");
+        } catch (SchedulingException ex) {
+            // OK
+        }
+        // The running job takes 200 ms
+        assertFalse(scheduler.awaitTermination(1, TimeUnit.SECONDS));
+        simulation.runFor(149);
+        assertFalse(running.isFinished());
+        simulation.runFor(1);
+        assertTrue(scheduler.awaitTermination(1, TimeUnit.SECONDS));
+        assertTrue(running.isFinished());
+        assertTrue(scheduler.getJobsByStatus(TimerScheduler.JobStatus.RUN).isEmpty());
+        assertTrue(scheduler.shutdown().isEmpty());
+
+        final Simulation drainedSimulation = new Simulation(start, 2, new LaunchCounter(10));
+        final TimerScheduler drained = drainedSimulation.getScheduler();
+        final OneShotJob near = new OneShotJob(new Date(start + 100), 50);
+        final PeriodicJob recurring = new PeriodicJob(new Date(start), 10, 20);
+        drained.addJob(near);
+        drained.addJob(far);
+        drained.addJob(recurring);
+        drainedSimulation.runFor(5);
+        // The near job is waited for, a recurring job is not run again, the far job is not waited for
+        final List<Job> rest = drained.drain(1, TimeUnit.SECONDS);
+        assertTrue(rest.size() == 2 && rest.contains(far) && rest.contains(recurring));
+        assertTrue(drainedSimulation.currentTimeMillis() == start + 150);
+        assertTrue(near.isFinished());
+        assertTrue(recurring.isFinished());
+        assertTrue(drained.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Drains a simulated scheduler whose virtual time is far from wall time, with a job planned after the timeout,
+     * checks it's not waited for
+     * @throws Exception
+     */
+    @Test
+    public void testSimulatedDrain() throws Exception {
+        final long start = 1000000000000L;
+        final Simulation simulation = new Simulation(start, 1, new Simulation.DurationModel() {
+            @Override
+            public long getDuration(Job job) {
+                return 1000;
+            }
+        });
+        final OneShotJob later = new OneShotJob(new Date(start + 10000));
+        simulation.getScheduler().addJob(later);
+        simulation.runFor(1000);
+        final long begin = System.currentTimeMillis();
+        assertTrue(simulation.getScheduler().drain(2, TimeUnit.SECONDS).equals(Collections.<Job>singletonList(later)));
+        assertTrue(System.currentTimeMillis() - begin < 1000);
+    }
+
+    /**
+     * Simulates a day of 100 periodic jobs in virtual time with four threads, then with one thread which cannot keep up
+     * @throws Exception
+     */
+    @Test
+    public void testSimulation() throws Exception {
+        final long start = 1000000000000L, day = 24 * 3600 * 1000L;
+        final Simulation.DurationModel second = new Simulation.DurationModel() {
+            @Override
+            public long getDuration(Job job) {
+                return 1000;
+            }
+        };
+        final Simulation simulation = new Simulation(start, 4, second);
+        for (int i = 0; i < 100; i++)
+            simulation.getScheduler().addJob(new PeriodicJob(new Date(start + i * 600), 0, 59000));
+        simulation.runFor(day);
+        // Each job runs once a minute, the last one has no time to complete its last run
+        final SchedulerMetrics metrics = simulation.getScheduler().getMetrics();
+        assertTrue(metrics.getCompleted() == 100 * 1440 - 1);
+        assertTrue(simulation.getMaxQueued() == 0);
+        assertTrue(simulation.currentTimeMillis() == start + day);
+        assertTrue(Math.abs(simulation.getUtilization() - 1440 * 100 / (86400.0 * 4)) < 0.001);
+
+        final Simulation overloaded = new Simulation(start, 1, second);
+        for (int i = 0; i < 100; i++)
+            overloaded.getScheduler().addJob(new PeriodicJob(new Date(start + i * 600), 0, 59000));
+        overloaded.runFor(day);
+        assertTrue(overloaded.getUtilization() > 0.99);
+        assertTrue(overloaded.getMaxQueued() > 0);
+        assertTrue(overloaded.getScheduler().getMetrics().getCompleted() <= 86400);
+        // One job is still running
+        assertTrue(overloaded.getScheduler().shutdown().size() == 99);
+    }
+
+    /**
+     * Simulates a day of 100 periodic jobs with the same start time, first without a start tolerance, then with it
+     * @throws Exception
+     */
+    @Test
+    public void testStartTolerance() throws Exception {
+        final long start = 1000000000000L, day = 24 * 3600 * 1000L;
+        final Simulation.DurationModel second = new Simulation.DurationModel() {
+            @Override
+            public long getDuration(Job job) {
+                return 1000;
+            }
+        };
+        final Simulation aligned = new Simulation(start, 4, second);
+        for (int i = 0; i < 100; i++)
+            aligned.getScheduler().addJob(new PeriodicJob(new Date(start), 0, 59000));
+        aligned.runFor(day);
+        assertTrue(aligned.getMaxQueued() >= 90);
+
+        final Simulation spread = new Simulation(start, 4, second);
+        final TimerScheduler scheduler = spread.getScheduler();
+        for (int i = 0; i < 100; i++)
+            scheduler.addJob(new PeriodicJob(new Date(start), 0, 59000, 59000));
+        assertTrue(scheduler.getJobsPlannedBetween(new Date(start), new Date(start + 59000), 1000).size() == 100);
+        // Each tenth of the window has about 10 jobs
+        for (int i = 0; i < 10; i++) {
+            final int count = scheduler.getJobsPlannedBetween(new Date(start + i * 5900),
+                    new Date(start + (i + 1) * 5900), 1000).size();
+            assertTrue(count >= 8 && count <= 12);
+        }
+        spread.runFor(day);
+        assertTrue(spread.getMaxQueued() <= 4);
+        // Each job still runs once a minute, all delays are less than the pause
+        assertTrue(scheduler.getMetrics().getCompleted() == 100 * 1440);
+    }
+
+    /**
+     * A job planned at the start of each minute, not relative to its previous run
+     */
+    private static class MinuteJob extends AbstractJob {
+
+        MinuteJob(final Date plannedTime) {
+            super(plannedTime);
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public void afterRun() {
+            final long planned = getPlannedTime().getTime();
+            super.afterRun();
+            changePlannedTime(new Date(planned + 60000));
+        }
+
+        @Override
+        public long getStartTolerance() {
+            return 59000;
+        }
+    }
+
+    /**
+     * Simulates two hours of 100 jobs planned at the start of each minute with a start tolerance,
+     * checks their start offsets are kept by later runs, after resuming and after replanning
+     * @throws Exception
+     */
+    @Test
+    public void testStartOffset() throws Exception {
+        final long start = 1000000000000L, hour = 3600 * 1000L;
+        final Simulation simulation = new Simulation(start, 4, new Simulation.DurationModel() {
+            @Override
+            public long getDuration(Job job) {
+                return 1000;
+            }
+        });
+        final TimerScheduler scheduler = simulation.getScheduler();
+        final List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 100; i++) {
+            final Job job = new MinuteJob(new Date(start));
+            jobs.add(job);
+            scheduler.addJob(job, Collections.singleton("minute"));
+        }
+        simulation.runFor(hour);
+        assertTrue(simulation.getMaxQueued() <= 4);
+        assertTrue(scheduler.pauseTag("minute") == 100);
+        assertTrue(scheduler.resumeTag("minute") == 100);
+        for (Job job: jobs)
+            assertTrue(scheduler.replanJob(job));
+        final long now = simulation.currentTimeMillis();
+        assertTrue(scheduler.getJobsPlannedBetween(new Date(now), new Date(now + 60000), 1000).size() == 100);
+        simulation.runFor(hour);
+        assertTrue(simulation.getMaxQueued() <= 4);
+        assertTrue(scheduler.getMetrics().getCompleted() == 100 * 120);
+    }
+
+    /**
+     * Simulates ten jobs with one rate limit key and a job without it, all becoming due at once
+     * @throws Exception
+     */
+    @Test
+    public void testRateLimit() throws Exception {
+        final long start = 1000000000000L;
+        final List<Long> starts = new ArrayList<Long>();
+        final Simulation simulation = new Simulation(start, 10, new Simulation.DurationModel() {
+            @Override
+            public long getDuration(Job job) {
+                starts.add(Clock.current().currentTimeMillis() - start);
+                return 100;
+            }
+        });
+        final TimerScheduler scheduler = simulation.getScheduler();
+        scheduler.setRateLimit("downstream", 2.0, 2);
+        for (int i = 0; i < 10; i++) {
+            scheduler.addJob(new OneShotJob(new Date(start + 1000)) {
+                @Override
+                public String getRateLimitKey() {
+                    return "downstream";
+                }
+            });
+        }
+        scheduler.addJob(new OneShotJob(new Date(start + 1000)));
+        simulation.runFor(10000);
+        // A burst of two limited jobs with an unlimited one, then a limited job each 500 ms
+        assertTrue(starts.equals(Arrays.asList(1000L, 1000L, 1000L, 1500L, 2000L, 2500L, 3000L,
+                3500L, 4000L, 4500L, 5000L)));
+        assertTrue(scheduler.getMetrics().getDeferred() == 8);
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
+    }
+
+    /**
+     * The system clock which is slow once for a thread other than a given one, once armed
+     */
+    private static class SlowClock extends SchedulerClock {
+
+        private final SchedulerClock clock = SchedulerClock.system();
+
+        private final CountDownLatch slow = new CountDownLatch(1);
+
+        private volatile Thread fastThread = null;
+
+        void arm(final Thread fastThread) {
+            this.fastThread = fastThread;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            final Thread fast = fastThread;
+            if (fast != null && fast != Thread.currentThread()) {
+                fastThread = null;
+                slow.countDown();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return clock.currentTimeMillis();
+        }
+
+        @Override
+        void schedule(TimerTask task, long time) {
+            clock.schedule(task, time);
+        }
+
+        @Override
+        void purge() {
+            clock.purge();
+        }
+
+        @Override
+        void stop() {
+            clock.stop();
+        }
+
+        @Override
+        void await(Object monitor, long millis) throws InterruptedException {
+            clock.await(monitor, millis);
+        }
+    }
+
+    private static OneShotJob limitedJob(final Date plannedTime) {
+        return new OneShotJob(plannedTime) {
+            @Override
+            public String getRateLimitKey() {
+                return "downstream";
+            }
+        };
+    }
+
+    /**
+     * Makes a ready status change check a rate limited job while the timer takes a token for it,
+     * only one token must be taken, so the second limited job starts at once
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentRateLimitedReadyCheck() throws Exception {
+        final SlowClock clock = new SlowClock();
+        final TimerScheduler scheduler = new TimerScheduler(Executors.newFixedThreadPool(2), clock);
+        scheduler.setRateLimit("downstream", 0.1, 2);
+        final OneShotJob job = limitedJob(new Date(Calendar.getInstance().getTimeInMillis() + 100));
+        scheduler.addJob(job);
+        clock.arm(Thread.currentThread());
+        // The timer is slowed down in the rate limiter
+        assertTrue(clock.slow.await(1, TimeUnit.SECONDS));
+        scheduler.readyChanged(job, true);
+        Thread.sleep(100);
+        assertTrue(job.isFinished());
+        final OneShotJob second = limitedJob(new Date());
+        scheduler.addJob(second);
+        Thread.sleep(50);
+        assertTrue(second.isFinished());
+        assertTrue(scheduler.getMetrics().getDeferred() == 0);
+        scheduler.shutdown();
+    }
+
+    private static Job resourceJob(final Date plannedTime, final int cpuWeight, final long heapEstimate) {
+        return new OneShotJob(plannedTime) {
+            @Override
+            public int getCpuWeight() {
+                return cpuWeight;
+            }
+
+            @Override
+            public long getHeapEstimate() {
+                return heapEstimate;
+            }
+        };
+    }
+
+    /**
+     * Simulates jobs with different resource requirements and checks they are packed into CPU slots and memory
+     * @throws Exception
+     */
+    @Test
+    public void testResourceLimits() throws Exception {
+        final long start = 1000000000000L;
+        final Map<Job, Long> starts = new HashMap<Job, Long>();
+        final Simulation simulation = new Simulation(start, 10, new Simulation.DurationModel() {
+            @Override
+            public long getDuration(Job job) {
+                starts.put(job, Clock.current().currentTimeMillis() - start);
+                return TimerScheduler.hints(job).getCpuWeight() == 0 ? 1000 : 100;
+            }
+        });
+        final TimerScheduler scheduler = simulation.getScheduler();
+        scheduler.setResourceLimits(2, 100);
+        final Date time = new Date(start + 1000);
+        final List<Job> sleeping = new ArrayList<Job>();
+        for (int i = 0; i < 4; i++)
+            sleeping.add(resourceJob(time, 0, 0));
+        final Job wide = resourceJob(time, 2, 10);
+        final Job firstBig = resourceJob(time, 1, 60);
+        final Job secondBig = resourceJob(time, 1, 60);
+        final Job small = resourceJob(time, 1, 10);
+        final Job huge = resourceJob(time, 4, 0);
+        for (Job job: Arrays.asList(wide, firstBig, secondBig, small, huge))
+            scheduler.addJob(job);
+        for (Job job: sleeping)
+            scheduler.addJob(job);
+        simulation.runFor(1050);
+        // Runs waiting for resources are not in the executor queue
+        assertTrue(scheduler.getMetrics().getHeld() > 0);
+        assertTrue(scheduler.getMetrics().getExecutorQueued() == 0);
+        simulation.runFor(10000);
+        // Sleeping jobs take no slots, the small job fills a slot the second big one cannot use for memory,
+        // the huge one waits for all slots
+        for (Job job: sleeping)
+            assertTrue(starts.get(job) == 1000L);
+        assertTrue(starts.get(wide) == 1000L);
+        assertTrue(starts.get(firstBig) == 1100L);
+        assertTrue(starts.get(small) == 1100L);
+        assertTrue(starts.get(secondBig) == 1200L);
+        assertTrue(starts.get(huge) == 1300L);
+        assertTrue(scheduler.getMetrics().getHeld() == 4);
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
+    }
+
+    private static OneShotJob deadlineJob(final List<Job> order, final long duration, final Date deadline) {
+        return new OneShotJob(new Date(), duration, deadline) {
+            @Override
+            public void run() {
+                order.add(this);
+                super.run();
+            }
+        };
+    }
+
+    /**
+     * Runs jobs with deadlines behind a long job in one thread, checks their order, admission and deadline misses
+     * @throws Exception
+     */
+    @Test
+    public void testDeadlines() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(1, TimerScheduler.DispatchOrder.EARLIEST_DEADLINE_FIRST);
+        final List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        final long now = System.currentTimeMillis();
+        final Job blocker = deadlineJob(order, 300, null);
+        scheduler.addJob(blocker);
+        Thread.sleep(50);
+        final Job late = deadlineJob(order, 100, new Date(now + 3000));
+        final Job early = deadlineJob(order, 100, new Date(now + 1000));
+        final Job middle = deadlineJob(order, 100, new Date(now + 2000));
+        final Job free = deadlineJob(order, 0, null);
+        // No expected duration, so it's admitted, but it cannot start before the blocker is finished
+        final Job missed = deadlineJob(order, 0, new Date(now + 100));
+        for (Job job: Arrays.asList(late, early, middle, free, missed))
+            scheduler.addJob(job);
+        // Cannot finish in time alone
+        try {
+            scheduler.addJob(deadlineJob(order, 500, new Date(now + 400)));
+            fail("A job which cannot finish in time is admitted");
+        } catch (SchedulingException ex) {
+            // Expected
+        }
+        // Can finish in time alone, but not after the early job
+        try {
+            scheduler.addJob(deadlineJob(order, 900, new Date(now + 1000)));
+            fail("A job which cannot finish in time together with others is admitted");
+        } catch (SchedulingException ex) {
+            // Expected
+        }
+        Thread.sleep(1000);
+        assertTrue(order.equals(Arrays.asList(blocker, missed, early, middle, late, free)));
+        assertTrue(scheduler.getMetrics().getDeadlineMisses() == 1);
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
+        // Admitted time is released after runs
+        scheduler.addJob(deadlineJob(order, 950, new Date(System.currentTimeMillis() + 1000)));
+        scheduler.shutdown();
+    }
+
+    /**
+     * Admits a long series of jobs with deadlines planned far ahead after two long ones, then checks
+     * a job inserted into the series is refused if it makes a later job miss its deadline and admitted if not
+     * @throws Exception
+     */
+    @Test
+    public void testDeadlineAdmission() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(1, TimerScheduler.DispatchOrder.EARLIEST_DEADLINE_FIRST);
+        final long now = System.currentTimeMillis(), window = 10000000L, gap = 10000L;
+        final Date planned = new Date(now + 1000000);
+        // Two long jobs leave two gaps of a window
+        for (int i = 0; i < 2; i++)
+            scheduler.addJob(new OneShotJob(planned, window / 2 - gap, new Date(now + window - gap)));
+        // Each job of the series takes a gap, so one gap is left for all of them
+        final int series = 10000;
+        for (int i = 0; i < series; i++)
+            scheduler.addJob(new OneShotJob(planned, gap, new Date(now + window + gap * i)));
+        // Fits before its own deadline, but the second job of the series would miss its one
+        final Date inserted = new Date(now + window + gap - 1000);
+        try {
+            scheduler.addJob(new OneShotJob(planned, gap + 4000, inserted));
+            fail("A job which makes a later job miss its deadline is admitted");
+        } catch (SchedulingException ex) {
+            // Expected
+        }
+        scheduler.addJob(new OneShotJob(planned, gap - 4000, inserted));
+        try {
+            scheduler.addJob(new OneShotJob(planned, 2 * gap, new Date(now + window + gap * series - 1000)));
+            fail("A job which does not fit after all others is admitted");
+        } catch (SchedulingException ex) {
+            // Expected
+        }
+        assertTrue(scheduler.getScheduledJobs().size() == series + 3);
+        scheduler.shutdown();
+    }
+
+    /**
+     * An idempotent job which sleeps 20 ms or, on the first call, a given time,
+     * the first call can ignore interrupts
+     */
+    private static class StragglerJob extends AbstractJob {
+
+        private final long firstDuration;
+
+        private final boolean stubborn;
+
+        private final AtomicInteger calls = new AtomicInteger(0);
+
+        private final AtomicInteger interrupted = new AtomicInteger(0);
+
+        private final AtomicInteger inside = new AtomicInteger(0);
+
+        StragglerJob(final Set<Job> requiredJobs, final long firstDuration) {
+            this(requiredJobs, firstDuration, false);
+        }
+
+        StragglerJob(final Set<Job> requiredJobs, final long firstDuration, final boolean stubborn) {
+            super(new Date(), requiredJobs);
+            this.firstDuration = firstDuration;
+            this.stubborn = stubborn;
+        }
+
+        @Override
+        public void run() {
+            inside.incrementAndGet();
+            try {
+                final boolean first = calls.incrementAndGet() == 1;
+                final long end = System.currentTimeMillis() + (first ? firstDuration : 20);
+                for (long rest = end - System.currentTimeMillis(); rest > 0; rest = end - System.currentTimeMillis()) {
+                    try {
+                        Thread.sleep(rest);
+                    } catch (InterruptedException ex) {
+                        interrupted.incrementAndGet();
+                        if (!first || !stubborn)
+                            return;
+                    }
+                }
+            } finally {
+                inside.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean isIdempotent() {
+            return true;
+        }
+    }
+
+    /**
+     * Runs a chain of an idempotent job with a slow first call and its successor, checks a backup releases it
+     * @throws Exception
+     */
+    @Test
+    public void testSpeculation() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(4);
+        scheduler.setSpeculation(90);
+        // A history of the class is required
+        for (int i = 0; i < 10; i++)
+            scheduler.addJob(new StragglerJob(Collections.<Job>emptySet(), 20));
+        Thread.sleep(200);
+        assertTrue(scheduler.getMetrics().getCompleted() == 10);
+        final long start = System.currentTimeMillis();
+        final StragglerJob slow = new StragglerJob(Collections.<Job>emptySet(), 5000);
+        scheduler.addJob(slow);
+        final StragglerJob next = new StragglerJob(Collections.<Job>singleton(slow), 20);
+        scheduler.addJob(next);
+        // A backup is started after a few tens of ms, but a loaded machine can delay it
+        while (!next.isFinished() && System.currentTimeMillis() - start < 1000)
+            Thread.sleep(10);
+        assertTrue(next.isFinished());
+        assertTrue(slow.isFinished());
+        assertTrue(slow.calls.get() == 2);
+        // The first call has lost and it's interrupted
+        assertTrue(slow.interrupted.get() == 1);
+        assertTrue(scheduler.getMetrics().getBackupRuns() == 1);
+        assertTrue(scheduler.getMetrics().getBackupWins() == 1);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // Without speculation a slow call is waited for
+        scheduler.setSpeculation(0);
+        final StragglerJob alone = new StragglerJob(Collections.<Job>emptySet(), 300);
+        scheduler.addJob(alone);
+        Thread.sleep(150);
+        assertFalse(alone.isFinished());
+        Thread.sleep(300);
+        assertTrue(alone.isFinished());
+        assertTrue(alone.calls.get() == 1);
+        assertTrue(scheduler.getMetrics().getBackupRuns() == 1);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Runs a chain of a one-shot idempotent job, whose first call ignores interrupts, and its successor,
+     * checks a winning backup releases the successor while the first call is still in progress
+     * @throws Exception
+     */
+    @Test
+    public void testSpeculationWithStubbornCall() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(4);
+        scheduler.setSpeculation(90);
+        for (int i = 0; i < 10; i++)
+            scheduler.addJob(new StragglerJob(Collections.<Job>emptySet(), 20));
+        Thread.sleep(200);
+        final long start = System.currentTimeMillis();
+        final StragglerJob slow = new StragglerJob(Collections.<Job>emptySet(), 2000, true);
+        scheduler.addJob(slow);
+        final StragglerJob next = new StragglerJob(Collections.<Job>singleton(slow), 20);
+        scheduler.addJob(next);
+        while (!next.isFinished() && System.currentTimeMillis() - start < 1500)
+            Thread.sleep(10);
+        assertTrue(next.isFinished());
+        assertTrue(slow.isFinished());
+        // The first call is interrupted, but it goes on
+        assertTrue(slow.inside.get() == 1);
+        assertTrue(slow.interrupted.get() == 1);
+        assertTrue(scheduler.getMetrics().getBackupWins() == 1);
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(3, TimeUnit.SECONDS));
+        assertTrue(slow.inside.get() == 0);
+    }
+
+    /**
+     * An idempotent job run a given number of times every 10 ms, each call takes 20 ms,
+     * but the first call of a given run takes a given time and ignores interrupts
+     */
+    private static class RecurringStragglerJob extends AbstractJob {
+
+        private final int runs, slowRun;
+
+        private final long slowDuration;
+
+        private final AtomicInteger finished = new AtomicInteger(0);
+
+        private final AtomicInteger inside = new AtomicInteger(0);
+
+        /**
+         * A number of runs started while a call of run() of a previous run is in progress
+         */
+        private final AtomicInteger overlaps = new AtomicInteger(0);
+
+        private final AtomicInteger slowCalls = new AtomicInteger(0);
+
+        RecurringStragglerJob(final int runs, final int slowRun, final long slowDuration) {
+            super(new Date());
+            this.runs = runs;
+            this.slowRun = slowRun;
+            this.slowDuration = slowDuration;
+        }
+
+        @Override
+        public void run() {
+            inside.incrementAndGet();
+            try {
+                final boolean slow = finished.get() == slowRun && slowCalls.getAndIncrement() == 0;
+                final long end = System.currentTimeMillis() + (slow ? slowDuration : 20);
+                for (long rest = end - System.currentTimeMillis(); rest > 0; rest = end - System.currentTimeMillis()) {
+                    try {
+                        Thread.sleep(rest);
+                    } catch (InterruptedException ex) {
+                        // Ignored like by a blocking call
+                    }
+                }
+            } finally {
+                inside.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void beforeRun() {
+            if (inside.get() > 0)
+                overlaps.incrementAndGet();
+            super.beforeRun();
+        }
+
+        @Override
+        public void afterRun() {
+            super.afterRun();
+            if (finished.incrementAndGet() < runs)
+                changePlannedTime(new Date(System.currentTimeMillis() + 10));
+        }
+
+        @Override
+        public boolean isIdempotent() {
+            return true;
+        }
+    }
+
+    /**
+     * Runs a recurring idempotent job whose run has a slow first call ignoring interrupts,
+     * checks a backup wins, but the next run is started only after the slow call returns
+     * @throws Exception
+     */
+    @Test
+    public void testRecurringSpeculation() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(4);
+        scheduler.setSpeculation(90);
+        // Runs before the slow one make a history of the class
+        final RecurringStragglerJob job = new RecurringStragglerJob(15, 12, 300);
+        scheduler.addJob(job);
+        final long start = System.currentTimeMillis();
+        while (job.finished.get() < 15 && System.currentTimeMillis() - start < 3000)
+            Thread.sleep(10);
+        assertTrue(job.finished.get() == 15);
+        assertTrue(job.overlaps.get() == 0);
+        assertTrue(scheduler.getMetrics().getBackupWins() >= 1);
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Runs a chain of compact jobs with extra dependencies and a failing branch, checks order and statuses
+     * @throws Exception
+     */
+    @Test
+    public void testCompactScheduler() throws Exception {
+        final int size = 10000;
+        final int[] order = new int[size + 3];
+        final long[] times = new long[size + 3];
+        final AtomicInteger sequence = new AtomicInteger(0);
+        final CompactScheduler scheduler = new CompactScheduler(4, new CompactScheduler.Body() {
+            @Override
+            public void run(int id) {
+                if (id == size)
+                    throw new IllegalStateException("A compact job fails");
+                times[id] = System.currentTimeMillis();
+                order[id] = sequence.incrementAndGet();
+            }
+        }, size);
+        final long now = System.currentTimeMillis();
+        assertTrue(scheduler.addJob(now) == 0);
+        for (int i = 1; i < size; i++)
+            scheduler.addJob(i == size / 2 ? now + 200 : now, i - 1, i / 2);
+        final int failing = scheduler.addJob(now);
+        final int skipped = scheduler.addJob(now, failing);
+        final int skippedToo = scheduler.addJob(now, 0, skipped);
+        try {
+            scheduler.addJob(now, skippedToo + 1);
+            fail("Dependency on a job which is not added");
+        } catch (SchedulingException ex) {
+            // Expected
+        }
+        scheduler.start();
+        try {
+            scheduler.addJob(now);
+            fail("Adding to a started scheduler");
+        } catch (SchedulingException ex) {
+            // Expected
+        }
+        assertTrue(scheduler.awaitCompletion(10, TimeUnit.SECONDS));
+        for (int i = 1; i < size; i++)
+            assertTrue(order[i] > order[i - 1] && order[i] > order[i / 2]);
+        assertTrue(times[size / 2] >= now + 200);
+        assertTrue(scheduler.getStatus(size - 1) == CompactScheduler.Status.FINISHED);
+        assertTrue(scheduler.getStatus(failing) == CompactScheduler.Status.FAILED);
+        assertTrue(scheduler.getStatus(skipped) == CompactScheduler.Status.SKIPPED);
+        assertTrue(scheduler.getStatus(skippedToo) == CompactScheduler.Status.SKIPPED);
+        assertTrue(scheduler.getDone() == size + 3);
+        assertTrue(scheduler.getFailed() == 1 && scheduler.getSkipped() == 2);
+        assertTrue(scheduler.shutdown() == 0);
+    }
+
+    /**
+     * Runs compact jobs on one worker where the first one throws an error, checks that the others are done
+     * @throws Exception
+     */
+    @Test
+    public void testCompactSchedulerError() throws Exception {
+        final CompactScheduler scheduler = new CompactScheduler(1, new CompactScheduler.Body() {
+            @Override
+            public void run(int id) {
+                if (id == 0)
+                    throw new AssertionError("A compact job fails with an error");
+            }
+        }, 3);
+        final long now = System.currentTimeMillis();
+        final int failing = scheduler.addJob(now);
+        final int skipped = scheduler.addJob(now, failing);
+        final int finished = scheduler.addJob(now + 50);
+        scheduler.start();
+        assertTrue(scheduler.awaitCompletion(10, TimeUnit.SECONDS));
+        assertTrue(scheduler.getStatus(failing) == CompactScheduler.Status.FAILED);
+        assertTrue(scheduler.getStatus(skipped) == CompactScheduler.Status.SKIPPED);
+        assertTrue(scheduler.getStatus(finished) == CompactScheduler.Status.FINISHED);
+        assertTrue(scheduler.getFailed() == 1 && scheduler.getSkipped() == 1);
+        assertTrue(scheduler.shutdown() == 0);
+    }
+
+    /**
+     * Interrupts a sequential job after three stages, as if a process is killed,
+     * and checks the same job added to a scheduler with a new store in the same directory
+     * continues from the interrupted stage
+     * @throws Exception
+     */
+    @Test
+    public void testCheckpoints() throws Exception {
+        final File directory = File.createTempFile("scheduler", ".checkpoints");
+        assertTrue(directory.delete());
+        final FileCheckpointStore crashed = new FileCheckpointStore(directory);
+        final SequentialJob first = new SequentialJob("sequential", 10, Calendar.getInstance().getTime(), 20);
+        first.attachCheckpointStore(crashed);
+        final Thread thread = new Thread(first);
+        thread.start();
+        Thread.sleep(70);
+        thread.interrupt();
+        thread.join();
+        crashed.close();
+        // The interrupted stage is not completed
+        final int completed = first.getStage() - 1;
+        assertTrue(completed > 0 && completed < 10);
+
+        final FileCheckpointStore store = new FileCheckpointStore(directory);
+        assertTrue(store.load("sequential") != null);
+        final TimerScheduler scheduler = new TimerScheduler();
+        scheduler.setCheckpointStore(store);
+        final long now = System.currentTimeMillis();
+        final SequentialJob second = new SequentialJob("sequential", 10, new Date(now + 50), 20);
+        scheduler.addJob(second);
+        assertTrue(second.getStage() == completed && second.getProgress() == completed);
+        assertTrue(second.isStarted() && !second.isFinished());
+        while (!second.isFinished() && System.currentTimeMillis() - now < 2000)
+            Thread.sleep(5);
+        assertTrue(second.isFinished());
+        store.close();
+        assertTrue(store.load("sequential") == null);
+        assertTrue(directory.delete());
+    }
+
+    /**
+     * Checks schedule listeners are called after a periodic job is planned again
+     * and after a one-shot job is removed on completion
+     * @throws Exception
+     */
+    @Test
+    public void testScheduleListener() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(2);
+        final List<Job> changed = Collections.synchronizedList(new ArrayList<Job>());
+        final List<Boolean> scheduled = Collections.synchronizedList(new ArrayList<Boolean>());
+        scheduler.addScheduleListener(new TimerScheduler.ScheduleListener() {
+            @Override
+            public void scheduleChanged(Job job) {
+                changed.add(job);
+                scheduled.add(scheduler.getScheduledJobs().contains(job));
+            }
+        });
+        final OneShotJob oneShot = new OneShotJob(Calendar.getInstance().getTime(), 10);
+        final PeriodicJob periodic = new PeriodicJob(Calendar.getInstance().getTime(), 10, 1000);
+        scheduler.addJob(oneShot);
+        scheduler.addJob(periodic);
+        Thread.sleep(200);
+        assertTrue(changed.size() == 2);
+        final int oneShotIndex = changed.indexOf(oneShot);
+        assertFalse(scheduled.get(oneShotIndex));
+        assertTrue(scheduled.get(1 - oneShotIndex));
+        assertTrue(changed.get(1 - oneShotIndex) == periodic);
+        assertTrue(periodic.getPlannedTime().after(new Date()));
+        scheduler.removeJob(periodic);
+        assertTrue(changed.size() == 3 && changed.get(2) == periodic);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Records a trace of two dependent jobs, reads it back and checks events of each job go in order
+     * @throws Exception
+     */
+    @Test
+    public void testTraceRecorder() throws Exception {
+        final File file = File.createTempFile("scheduler", ".trace");
+        file.deleteOnExit();
+        final TraceRecorder recorder = new TraceRecorder(file);
+        final TimerScheduler scheduler = new TimerScheduler(2);
+        scheduler.setTraceRecorder(recorder);
+        final OneShotJob first = new OneShotJob(Calendar.getInstance().getTime(), 20) {
+            @Override
+            public boolean autoDeletedOnCompletion() {
+                return false;
+            }
+        };
+        scheduler.addJob(first);
+        final Job second = new OneShotJob(new Date(Calendar.getInstance().getTimeInMillis() + 10), 20);
+        scheduler.addJob(second);
+        scheduler.addDependency(second, first);
+        Thread.sleep(300);
+        assertTrue(second.isFinished());
+        scheduler.shutdown();
+        recorder.close();
+        final Map<Long, List<TraceRecorder.Kind>> kinds = new HashMap<Long, List<TraceRecorder.Kind>>();
+        final Set<Long> threads = new HashSet<Long>();
+        TraceRecorder.read(file, new TraceRecorder.Visitor() {
+            @Override
+            public void thread(long threadId, String name) {
+                threads.add(threadId);
+            }
+
+            @Override
+            public void event(long threadId, TraceRecorder.Kind kind, long jobId, long nanos) {
+                assertTrue(threads.contains(threadId));
+                if (!kinds.containsKey(jobId))
+                    kinds.put(jobId, new ArrayList<TraceRecorder.Kind>());
+                kinds.get(jobId).add(kind);
+            }
+        });
+        assertTrue(kinds.size() == 2);
+        for (List<TraceRecorder.Kind> jobKinds: kinds.values()) {
+            // The second job can be found not ready by the timer, then it's checked again by the first one
+            assertTrue(jobKinds.get(0) == TraceRecorder.Kind.TIMER);
+            assertTrue(jobKinds.subList(jobKinds.size() - 4, jobKinds.size()).equals(Arrays.asList(
+                    TraceRecorder.Kind.READY, TraceRecorder.Kind.DISPATCH,
+                    TraceRecorder.Kind.START, TraceRecorder.Kind.FINISH)));
+        }
+    }
+
+    /**
+     * Records events from threads started one after another, checks buffers of terminated threads are dropped
+     * and their events are still in a trace
+     * @throws Exception
+     */
+    @Test
+    public void testTraceRecorderThreads() throws Exception {
+        final File file = File.createTempFile("scheduler", ".trace");
+        file.deleteOnExit();
+        final TraceRecorder recorder = new TraceRecorder(file);
+        final int threadNumber = 20;
+        for (int i = 0; i < threadNumber; i++) {
+            final long jobId = i;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.record(TraceRecorder.Kind.START, jobId);
+                    recorder.record(TraceRecorder.Kind.FINISH, jobId);
+                }
+            });
+            thread.start();
+            thread.join();
+            assertTrue(recorder.getBufferCount() == 1);
+        }
+        recorder.close();
+        final Set<Long> threads = new HashSet<Long>();
+        final AtomicInteger events = new AtomicInteger(0);
+        TraceRecorder.read(file, new TraceRecorder.Visitor() {
+            @Override
+            public void thread(long threadId, String name) {
+                threads.add(threadId);
+            }
+
+            @Override
+            public void event(long threadId, TraceRecorder.Kind kind, long jobId, long nanos) {
+                events.incrementAndGet();
+            }
+        });
+        assertTrue(threads.size() == threadNumber);
+        assertTrue(events.get() == 2 * threadNumber);
+    }
+
+    /**
+     * Submits a chain of functional jobs, checks they are run in order, removed and then reused
+     * @throws Exception
+     */
+    @Test
+    public void testFunctionalJobs() throws Exception {
+        final TimerScheduler scheduler = new TimerScheduler(2);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final long now = System.currentTimeMillis();
+        final Job[] chain = new Job[3];
+        for (int i = 0; i < chain.length; i++) {
+            final int index = i;
+            final Runnable action = new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                }
+            };
+            chain[i] = i == 0 ? scheduler.submit(action, now) : scheduler.submit(action, now, chain[i - 1]);
+            // The first job is finished and removed before the second one requires it
+            while (i == 0 && !scheduler.getScheduledJobs().isEmpty() && System.currentTimeMillis() - now < 1000)
+                Thread.sleep(1);
+        }
+        try {
+            scheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fail("A job with a prerequisite which is not scheduled");
+                }
+            }, now, new OneShotJob(new Date(now)));
+            fail("Submission with a prerequisite which is not scheduled");
+        } catch (SchedulingException ex) {
+            // Expected
+        }
+        while (!scheduler.getScheduledJobs().isEmpty() && System.currentTimeMillis() - now < 1000)
+            Thread.sleep(1);
+        assertTrue(order.equals(Arrays.asList(0, 1, 2)));
+        // The last job is removed when it's finished, then its prerequisites
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
+        final AtomicInteger runs = new AtomicInteger(0);
+        final Runnable counter = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        // A state of a finished job is reused, but its handle is not
+        final Job reused = scheduler.submit(counter, now + 10000);
+        assertFalse(Arrays.asList(chain).contains(reused));
+        assertTrue(chain[0].isFinished() && chain[0].getPlannedTime() == Job.PLANNED_TIME_NEVER);
+        assertFalse(scheduler.removeJob(chain[0]));
+        assertFalse(scheduler.addDependency(reused, chain[2]));
+        assertTrue(scheduler.getScheduledJobs().equals(Collections.singleton(reused)));
+        assertTrue(scheduler.removeJob(reused));
+        for (int i = 0; i < 10000; i++)
+            scheduler.submit(counter, now);
+        final long submitted = System.currentTimeMillis();
+        while (runs.get() < 10000 && System.currentTimeMillis() - submitted < 2000)
+            Thread.sleep(1);
+        assertTrue(runs.get() == 10000);
+        assertTrue(scheduler.getScheduledJobs().isEmpty());
+    }
+
+    /**
+     * Creates a set of 50 periodic jobs and checks their launch numbers at different moments of virtual time
      * @throws Exception
      */
     @Test
     public void testPeriodicJobSet() throws Exception {
-        final Scheduler scheduler = new TimerScheduler();
+        final long start = 1000000000000L;
+        final LaunchCounter counter = new LaunchCounter(10);
+        final Simulation simulation = new Simulation(start, 4, counter);
+        final Scheduler scheduler = simulation.getScheduler();
         final List<PeriodicJob> jobs = new ArrayList<PeriodicJob>(50);
         for (int i=0; i<50; i++) {
-            final PeriodicJob job = new PeriodicJob(new Date(Calendar.getInstance().getTimeInMillis() + i*100), 10, 990);
+            final PeriodicJob job = new PeriodicJob(new Date(start + i*100), 10, 990);
             jobs.add(job);
             scheduler.addJob(job);
         }
-        Thread.sleep(1500);
-        assertTrue(jobs.get(0).getLaunchNumber() == 2);
-        assertTrue(jobs.get(4).getLaunchNumber() <= 2);
-        assertTrue(jobs.get(6).getLaunchNumber() == 1);
-        assertTrue(jobs.get(13).getLaunchNumber() <= 1);
-        Thread.sleep(1500);
-        assertTrue(jobs.get(2).getLaunchNumber() == 3);
-        assertTrue(jobs.get(7).getLaunchNumber() <= 3);
-        assertTrue(jobs.get(28).getLaunchNumber() <= 1);
-        assertTrue(jobs.get(13).getLaunchNumber() == 2);
+        simulation.runFor(1500);
+        assertTrue(counter.getLaunches(jobs.get(0)) == 2);
+        assertTrue(counter.getLaunches(jobs.get(4)) == 2);
+        assertTrue(counter.getLaunches(jobs.get(6)) == 1);
+        assertTrue(counter.getLaunches(jobs.get(13)) == 1);
+        assertTrue(counter.getLaunches(jobs.get(16)) == 0);
+        simulation.runFor(1500);
+        assertTrue(counter.getLaunches(jobs.get(2)) == 3);
+        assertTrue(counter.getLaunches(jobs.get(7)) == 3);
+        assertTrue(counter.getLaunches(jobs.get(28)) == 1);
+        assertTrue(counter.getLaunches(jobs.get(13)) == 2);
+        assertTrue(counter.getLaunches(jobs.get(31)) == 0);
     }
 
     /**
@@ -212,6 +1483,26 @@ public class TimerSchedulerTest {
         assertTrue(job.getPrimes().size() == 4);
     }
 
+    /**
+     * Creates prime calculator with a limit spanning several storage chunks and checks published primes
+     * @throws Exception
+     */
+    @Test
+    public void testPrimeCalcJobStorage() throws Exception {
+        final Scheduler scheduler = new TimerScheduler();
+        final PrimeCalcJob job = new PrimeCalcJob(Calendar.getInstance().getTime(), 100000);
+        scheduler.addJob(job);
+        Thread.sleep(500);
+        assertTrue(job.isFinished());
+        final PrimeStorage storage = job.getPrimeStorage();
+        assertEquals(9592, storage.size());
+        assertEquals(99991, storage.last());
+        final int[] primes = storage.toArray();
+        assertEquals(9592, primes.length);
+        assertEquals(4099, primes[564]);
+        assertEquals(Integer.valueOf(4099), job.getPrimes().get(564));
+    }
+
     /**
      * Creates and checks prime calculator together with prime checker
      * @throws Exception
@@ -237,6 +1528,82 @@ public class TimerSchedulerTest {
         assertSame(PrimeCheckJob.CheckResult.NOT_PRIME, checkJob2.getResult());
     }
 
+    /**
+     * Creates prime calculator, extends it after completion and checks that a waiting checker
+     * is run only after the extension is completed
+     * @throws Exception
+     */
+    @Test
+    public void testPrimeCalcJobExtension() throws Exception {
+        final Scheduler scheduler = new TimerScheduler(2);
+        final PrimeCalcJob job = new PrimeCalcJob(Calendar.getInstance().getTime(), 1000);
+        scheduler.addJob(job);
+        Thread.sleep(100);
+        assertTrue(job.isFinished());
+        assertEquals(168, job.getPrimeStorage().size());
+        assertEquals(1000, job.getPrimeStorage().bound());
+        assertFalse(job.extendLimit(500));
+        assertTrue(job.extendLimit(1000000));
+        assertTrue(scheduler.replanJob(job));
+        final PrimeCheckJob checkJob = new PrimeCheckJob(Calendar.getInstance().getTime(), job, 999983);
+        scheduler.addJob(checkJob);
+        Thread.sleep(500);
+        assertTrue(job.isFinished());
+        assertTrue(checkJob.isFinished());
+        assertSame(PrimeCheckJob.CheckResult.PRIME, checkJob.getResult());
+        assertEquals(78498, job.getPrimeStorage().size());
+        assertEquals(999983, job.getPrimeStorage().last());
+        assertTrue(scheduler.getScheduledJobs().contains(job));
+        assertFalse(scheduler.getScheduledJobs().contains(checkJob));
+    }
+
+    /**
+     * Creates and checks prime calculator together with batch prime checker,
+     * including numbers far beyond calculated primes
+     * @throws Exception
+     */
+    @Test
+    public void testPrimeBatchCheckJob() throws Exception {
+        final Scheduler scheduler = new TimerScheduler(2);
+        final PrimeCalcJob job = new PrimeCalcJob(Calendar.getInstance().getTime(), 1000);
+        final long[] numbers = new long[10000];
+        numbers[0] = 1;
+        numbers[1] = 561;
+        numbers[2] = 997;
+        numbers[3] = 1000000007L;
+        numbers[4] = 3215031751L;
+        numbers[5] = 9999999967L;
+        numbers[6] = 2305843009213693951L;
+        numbers[7] = 1000000007L * 998244353L;
+        // The largest long prime and a strong pseudoprime to bases up to 23
+        numbers[8] = 9223372036854775783L;
+        numbers[9] = 3825123056546413051L;
+        for (int i = 10; i < numbers.length; i++)
+            numbers[i] = i;
+        final ExecutorService helpers = Executors.newFixedThreadPool(2);
+        final PrimeBatchCheckJob checkJob = new PrimeBatchCheckJob(Calendar.getInstance().getTime(), job, numbers, 3,
+                helpers);
+        scheduler.addJob(job);
+        scheduler.addJob(checkJob);
+        Thread.sleep(500);
+        assertTrue(checkJob.isFinished());
+        assertSame(PrimeCheckJob.CheckResult.NOT_PRIME, checkJob.getResult(0));
+        assertSame(PrimeCheckJob.CheckResult.NOT_PRIME, checkJob.getResult(1));
+        assertSame(PrimeCheckJob.CheckResult.PRIME, checkJob.getResult(2));
+        assertSame(PrimeCheckJob.CheckResult.PRIME, checkJob.getResult(3));
+        assertSame(PrimeCheckJob.CheckResult.NOT_PRIME, checkJob.getResult(4));
+        assertSame(PrimeCheckJob.CheckResult.PRIME, checkJob.getResult(5));
+        assertSame(PrimeCheckJob.CheckResult.PRIME, checkJob.getResult(6));
+        assertSame(PrimeCheckJob.CheckResult.NOT_PRIME, checkJob.getResult(7));
+        assertSame(PrimeCheckJob.CheckResult.PRIME, checkJob.getResult(8));
+        assertSame(PrimeCheckJob.CheckResult.NOT_PRIME, checkJob.getResult(9));
+        assertSame(PrimeCheckJob.CheckResult.PRIME, checkJob.getResult(9973));
+        assertSame(PrimeCheckJob.CheckResult.NOT_PRIME, checkJob.getResult(9999));
+        // 1229 primes below 10000 minus 2, 3, 5, 7 plus 997, 1000000007, 9999999967, 2^61-1, 2^63-25
+        assertEquals(1230, checkJob.getPrimeCount());
+        helpers.shutdown();
+    }
+
     /**
      * Creates and checks a ping-pong pair of FirstReadyJob and SecondReadyJob
      * @throws Exception
@@ -0,0 +1,523 @@
+package ru.digiteklabs.scheduler.web;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the toy server front-end: request parsers, JSON writer and HTTP API
+ *
+ * @author Mikhail Glukhikh
+ */
+public class ToyServerTest {
+
+    private ToyServer server = null;
+
+    /**
+     * A response code with a response body
+     */
+    private static class Response {
+
+        private final int code;
+
+        private final String body;
+
+        Response(final int code, final String body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null)
+            server.stop();
+    }
+
+    private ToyServer startServer() {
+        server = new ToyServer(0, 2, 2);
+        assertTrue(server.getPort() > 0);
+        return server;
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        if (in == null)
+            return "";
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+            bytes.write(buffer, 0, read);
+        in.close();
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    private Response request(final String method, final String path, final String contentType, final String body)
+            throws IOException {
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            final OutputStream out = connection.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        }
+        final int code = connection.getResponseCode();
+        return new Response(code, read(code >= 400 ? connection.getErrorStream() : connection.getInputStream()));
+    }
+
+    private static String json(final String... namesAndValues) throws IOException {
+        final StringWriter text = new StringWriter();
+        final JsonWriter json = new JsonWriter(text).beginObject();
+        for (int i = 0; i < namesAndValues.length; i += 2)
+            json.name(namesAndValues[i]).value(namesAndValues[i + 1]);
+        json.endObject();
+        return text.toString();
+    }
+
+    /**
+     * Parses queries with encoded, empty and malformed parameters
+     * @throws Exception
+     */
+    @Test
+    public void testParseQuery() throws Exception {
+        final Map<String, String> parsed = RequestParser.parseQuery("a=1&b=x+y&c=%41%zz&d&=e&f=&g=%D0%BF%2&h=\u00e4+");
+        assertEquals("1", parsed.get("a"));
+        assertEquals("x y", parsed.get("b"));
+        // A percent sign without two hex digits is taken as is
+        assertEquals("A%zz", parsed.get("c"));
+        assertFalse(parsed.containsKey("d"));
+        assertEquals("e", parsed.get(""));
+        assertEquals("", parsed.get("f"));
+        assertEquals("\u043f%2", parsed.get("g"));
+        assertEquals("\u00e4 ", parsed.get("h"));
+        assertTrue(parsed.size() == 7);
+        assertTrue(RequestParser.parseQuery("").isEmpty());
+        assertTrue(RequestParser.parseQuery("&&").isEmpty());
+    }
+
+    /**
+     * Parses a form body and refuses a too long one
+     * @throws Exception
+     */
+    @Test
+    public void testParseForm() throws Exception {
+        final Map<String, String> parsed = RequestParser.parseForm(
+                new ByteArrayInputStream("name=%D1%82%D0%B5%D1%81%D1%82&time=10".getBytes("UTF-8")));
+        assertEquals("\u0442\u0435\u0441\u0442", parsed.get("name"));
+        assertEquals("10", parsed.get("time"));
+        final byte[] longForm = new byte[(1 << 16) + 1];
+        java.util.Arrays.fill(longForm, (byte) 'a');
+        try {
+            RequestParser.parseForm(new ByteArrayInputStream(longForm));
+            fail("A too long form is parsed");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    private static void assertMalformedJson(final String text) throws IOException {
+        try {
+            RequestParser.parseJson(new StringReader(text));
+            fail("Malformed JSON is parsed: " + text);
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Parses flat JSON objects with escapes and literals, refuses malformed and nested ones
+     * @throws Exception
+     */
+    @Test
+    public void testParseJson() throws Exception {
+        final Map<String, String> parsed = RequestParser.parseJson(new StringReader(
+                " {\"name\" : \"a\\\"b\\\\c\\n\", \"n\":12,\"t\":true, \"z\":null,\n\"u\":\"\\u00e9\\/\"} "));
+        assertEquals("a\"b\\c\n", parsed.get("name"));
+        assertEquals("12", parsed.get("n"));
+        assertEquals("true", parsed.get("t"));
+        // Null values are skipped
+        assertFalse(parsed.containsKey("z"));
+        assertEquals("\u00e9/", parsed.get("u"));
+        assertTrue(parsed.size() == 4);
+        assertTrue(RequestParser.parseJson(new StringReader("{ }")).isEmpty());
+        assertMalformedJson("");
+        assertMalformedJson("[]");
+        assertMalformedJson("{\"a\" 1}");
+        assertMalformedJson("{\"a\":}");
+        assertMalformedJson("{\"a\":1,}");
+        assertMalformedJson("{\"a\":\"unterminated");
+        assertMalformedJson("{\"a\":\"\\u12x4\"}");
+        assertMalformedJson("{\"a\":{\"b\":1}}");
+        assertMalformedJson("{\"a\":[1]}");
+        assertMalformedJson("{a:1}");
+    }
+
+    /**
+     * Parses CSV lines with trimmed and empty fields, refuses lines with a wrong number of fields
+     * @throws Exception
+     */
+    @Test
+    public void testParseCsv() throws Exception {
+        assertArrayEquals(new String[] {"a", "b c", "", "1"}, RequestParser.parseCsv(" a,b c ,,1", 4));
+        assertArrayEquals(new String[] {"", ""}, RequestParser.parseCsv(",", 2));
+        for (final String line: new String[] {"a,b,c", "a,b,c,d,e", ""}) {
+            try {
+                RequestParser.parseCsv(line, 4);
+                fail("A wrong number of fields is parsed: " + line);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Reads lines with different line ends, a too long line is cut and the next one is read as usual
+     * @throws Exception
+     */
+    @Test
+    public void testLineReader() throws Exception {
+        final char[] longLine = new char[100];
+        java.util.Arrays.fill(longLine, 'x');
+        final RequestParser.LineReader in = new RequestParser.LineReader(
+                new StringReader("a\r\n\nb\n" + new String(longLine) + "\r\nc"), 10);
+        assertEquals("a", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals("b", in.readLine());
+        assertFalse(in.isTooLong());
+        assertEquals("xxxxxxxxxx", in.readLine());
+        assertTrue(in.isTooLong());
+        assertEquals("c", in.readLine());
+        assertFalse(in.isTooLong());
+        assertNull(in.readLine());
+    }
+
+    /**
+     * Writes nested values and checks separators and escaping
+     * @throws Exception
+     */
+    @Test
+    public void testJsonWriter() throws Exception {
+        final StringWriter text = new StringWriter();
+        new JsonWriter(text).beginObject()
+                .name("s").value("q\"b\\n\nr\rt\t\u0001</script>\u00e9")
+                .name("a").beginArray().value(1).value(true).value((String) null).beginObject().endObject().endArray()
+                .name("e").beginArray().endArray()
+                .endObject();
+        assertEquals("{\"s\":\"q\\\"b\\\\n\\nr\\rt\\t\\u0001\\u003c/script>\u00e9\","
+                + "\"a\":[1,true,null,{}],\"e\":[]}", text.toString());
+    }
+
+    /**
+     * Sends wrong requests to the JSON API and checks error codes and error objects
+     * @throws Exception
+     */
+    @Test
+    public void testApiErrors() throws Exception {
+        startServer();
+        assertEquals(404, request("GET", "/api/unknown", null, null).code);
+        final Response missing = request("GET", "/api/jobs/missing", null, null);
+        assertEquals(404, missing.code);
+        assertEquals("{\"error\":\"Job missing does not exist\"}", missing.body);
+        assertEquals(404, request("DELETE", "/api/jobs/missing", null, null).code);
+        assertEquals(405, request("PUT", "/api/jobs", "application/json", "{}").code);
+        assertEquals(405, request("POST", "/api/scheduled", "application/json", "{}").code);
+        assertEquals(400, request("GET", "/api/jobs?limit=0", null, null).code);
+        assertEquals(400, request("GET", "/api/jobs?limit=x", null, null).code);
+        assertEquals(400, request("GET", "/api/jobs?state=sleeping", null, null).code);
+        assertEquals(400, request("GET", "/api/scheduled", null, null).code);
+        assertEquals(400, request("GET", "/api/scheduled?status=lost", null, null).code);
+        assertEquals(400, request("POST", "/api/jobs", "application/json", "{\"name\":").code);
+        assertEquals(400, request("POST", "/api/jobs", "application/json", "{\"name\":\"a\"}").code);
+        final Response notNumber = request("POST", "/api/jobs", "application/json",
+                json("name", "a", "type", "oneshot", "time", "soon", "param", "10"));
+        assertEquals(400, notNumber.code);
+        assertTrue(notNumber.body.startsWith("{\"error\":"));
+        // An unknown type is a conflict with the environment, not a malformed request
+        assertEquals(409, request("POST", "/api/jobs", "application/json",
+                json("name", "a", "type", "unknown", "time", "0", "param", "10")).code);
+        assertEquals(409, request("POST", "/api/jobs", "application/json",
+                json("name", "First", "type", "oneshot", "time", "0", "param", "10")).code);
+
+        final Response created = request("POST", "/api/jobs", "application/x-www-form-urlencoded",
+                "name=second&type=oneshot&time=60000&param=10");
+        assertEquals(201, created.code);
+        assertTrue(created.body.contains("\"name\":\"second\""));
+        assertEquals(200, request("GET", "/api/jobs/second", null, null).code);
+        // Jobs of a type in a state are not counted
+        final Response filtered = request("GET", "/api/jobs?type=oneshot&state=planned", null, null);
+        assertTrue(filtered.body.startsWith("{\"total\":null,\"jobs\":[{\"name\":\"second\""));
+        assertFalse(request("GET", "/api/jobs?type=oneshot", null, null).body.startsWith("{\"total\":null"));
+        assertEquals(204, request("DELETE", "/api/jobs/second", null, null).code);
+        assertEquals(404, request("GET", "/api/jobs/second", null, null).code);
+    }
+
+    /**
+     * Adds jobs by NDJSON lines and checks a result of each line and a summary,
+     * a second calculator line extends the first one as a single POST does
+     * @throws Exception
+     */
+    @Test
+    public void testBulk() throws Exception {
+        startServer();
+        final char[] longName = new char[5000];
+        java.util.Arrays.fill(longName, 'x');
+        final String body = json("name", "b1", "type", "oneshot", "time", "60000", "param", "10") + "\n"
+                + "\n"
+                + json("name", "calc", "type", "calculator", "time", "60000", "param", "100") + "\n"
+                + json("name", "check", "type", "checker", "time", "60000", "param", "97") + "\n"
+                + json("name", "calc2", "type", "calculator", "time", "60000", "param", "200") + "\n"
+                + json("name", "b1", "type", "oneshot", "time", "60000", "param", "10") + "\n"
+                + json("name", "b2", "type", "oneshot", "time", "soon", "param", "10") + "\n"
+                + "{\"name\":\n"
+                + json("name", new String(longName), "type", "oneshot", "time", "0", "param", "10") + "\r\n"
+                + json("name", "b3", "type", "periodic", "time", "60000", "param", "10");
+        final Response response = request("POST", "/api/bulk", "application/x-ndjson", body);
+        assertEquals(200, response.code);
+        final String[] lines = response.body.split("\n");
+        assertTrue(lines.length == 10);
+        assertEquals("{\"line\":1,\"name\":\"b1\",\"status\":\"created\"}", lines[0]);
+        assertEquals("{\"line\":3,\"name\":\"calc\",\"status\":\"created\"}", lines[1]);
+        // A checker finds a calculator added by a previous line
+        assertEquals("{\"line\":4,\"name\":\"check\",\"status\":\"created\"}", lines[2]);
+        assertEquals("{\"line\":5,\"name\":\"calc\",\"status\":\"extended\"}", lines[3]);
+        assertEquals("{\"line\":6,\"name\":\"b1\",\"error\":\"Error adding job b1\"}", lines[4]);
+        assertEquals("{\"line\":7,\"name\":\"b2\",\"error\":\"Time and param must be integer numbers\"}",
+                lines[5]);
+        assertTrue(lines[6].startsWith("{\"line\":8,\"name\":null,\"error\":\"JSON: "));
+        assertEquals("{\"line\":9,\"name\":null,\"error\":\"Line is too long\"}", lines[7]);
+        assertEquals("{\"line\":10,\"name\":\"b3\",\"status\":\"created\"}", lines[8]);
+        assertEquals("{\"added\":5,\"failed\":4}", lines[9]);
+        assertEquals(404, request("GET", "/api/jobs/calc2", null, null).code);
+        assertEquals(200, request("GET", "/api/jobs/check", null, null).code);
+    }
+
+    /**
+     * Reads lines of one server-sent event
+     */
+    private static String readEvent(final BufferedReader in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine())
+            sb.append(line).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Listens to server-sent events, checks a snapshot comes first and a delta with a new job follows
+     * @throws Exception
+     */
+    @Test
+    public void testEvents() throws Exception {
+        startServer();
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/events").openConnection();
+        connection.setReadTimeout(5000);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        final String snapshot = readEvent(in);
+        assertTrue(snapshot.startsWith("event: snapshot\ndata: {"));
+        assertTrue(snapshot.contains("\"name\":\"First\""));
+        assertEquals(201, request("POST", "/api/jobs", "application/x-www-form-urlencoded",
+                "name=delayed&type=oneshot&time=60000&param=10").code);
+        String event = readEvent(in);
+        // Heartbeats and deltas of the periodic job can come before
+        while (!event.contains("\"delayed\""))
+            event = readEvent(in);
+        assertTrue(event.startsWith("event: delta\ndata: {\"changed\":["));
+        in.close();
+    }
+
+    /**
+     * Checks a cached job list is revalidated after a job is finished and removed by the scheduler
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshotVersions() throws Exception {
+        startServer();
+        assertEquals(201, request("POST", "/api/jobs", "application/x-www-form-urlencoded",
+                "name=short&type=oneshot&time=0&param=50").code);
+        final URL url = new URL("http://localhost:" + server.getPort() + "/api/jobs");
+        final HttpURLConnection first = (HttpURLConnection) url.openConnection();
+        assertEquals(200, first.getResponseCode());
+        final String etag = first.getHeaderField("ETag");
+        final String body = read(first.getInputStream());
+        assertTrue(body.contains("\"scheduled\":true"));
+        // A tag has a process epoch before a version
+        assertTrue(etag.matches("\"[0-9a-z]+-[0-9]+\""));
+        Thread.sleep(300);
+        final HttpURLConnection second = (HttpURLConnection) url.openConnection();
+        second.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, second.getResponseCode());
+        final String finished = read(second.getInputStream());
+        final String job = finished.substring(finished.indexOf("{\"name\":\"short\""));
+        assertTrue(job.contains("\"finished\":true,\"scheduled\":false,\"plannedTime\":null"));
+    }
+
+    /**
+     * Checks gzip is accepted by an explicit entry or by *, and an explicit entry is preferred wherever it is
+     * @throws Exception
+     */
+    @Test
+    public void testAcceptsGzip() throws Exception {
+        assertFalse(ToyServer.acceptsGzip((java.util.List<String>) null));
+        assertTrue(ToyServer.acceptsGzip(java.util.Arrays.asList("gzip")));
+        assertTrue(ToyServer.acceptsGzip(java.util.Arrays.asList("deflate, GZIP;q=0.5")));
+        assertTrue(ToyServer.acceptsGzip(java.util.Arrays.asList("*")));
+        assertTrue(ToyServer.acceptsGzip(java.util.Arrays.asList("*;q=0, gzip")));
+        assertTrue(ToyServer.acceptsGzip(java.util.Arrays.asList("*;q=0", "gzip;q=1")));
+        assertFalse(ToyServer.acceptsGzip(java.util.Arrays.asList("*, gzip;q=0")));
+        assertFalse(ToyServer.acceptsGzip(java.util.Arrays.asList("gzip; q=0.00")));
+        assertFalse(ToyServer.acceptsGzip(java.util.Arrays.asList("deflate, br")));
+        assertFalse(ToyServer.acceptsGzip(java.util.Arrays.asList("*;q=0")));
+    }
+
+    private static HttpURLConnection open(final URL url, final String encoding, final String etag)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("Accept-Encoding", encoding);
+        if (etag != null)
+            connection.setRequestProperty("If-None-Match", etag);
+        return connection;
+    }
+
+    /**
+     * Gets a job list compressed and plain, checks their entity tags differ and a matching tag gives 304
+     * @throws Exception
+     */
+    @Test
+    public void testGzipAndETags() throws Exception {
+        startServer();
+        final URL url = new URL("http://localhost:" + server.getPort() + "/api/jobs");
+        final HttpURLConnection compressed = open(url, "*;q=0, gzip", null);
+        assertEquals(200, compressed.getResponseCode());
+        assertEquals("gzip", compressed.getHeaderField("Content-Encoding"));
+        final String gzipTag = compressed.getHeaderField("ETag");
+        assertTrue(gzipTag.endsWith("-gzip\""));
+        assertTrue(read(new java.util.zip.GZIPInputStream(compressed.getInputStream())).contains("\"First\""));
+
+        final HttpURLConnection plain = open(url, "identity", gzipTag);
+        // A compressed tag does not match a plain representation
+        assertEquals(200, plain.getResponseCode());
+        assertNull(plain.getHeaderField("Content-Encoding"));
+        assertFalse(plain.getHeaderField("ETag").endsWith("-gzip\""));
+        assertTrue(read(plain.getInputStream()).contains("\"First\""));
+
+        // The periodic job can change a version between two requests, so a few tries are given
+        boolean notModified = false;
+        String etag = gzipTag;
+        for (int i = 0; i < 10 && !notModified; i++) {
+            final HttpURLConnection again = open(url, "gzip", etag);
+            notModified = again.getResponseCode() == 304;
+            etag = again.getHeaderField("ETag");
+            read(again.getInputStream());
+        }
+        assertTrue(notModified);
+
+        // Chunked responses are compressed too
+        final HttpURLConnection page = open(new URL(url + "?limit=5"), "gzip", null);
+        assertEquals(200, page.getResponseCode());
+        assertEquals("gzip", page.getHeaderField("Content-Encoding"));
+        assertNull(page.getHeaderField("ETag"));
+        assertTrue(read(new java.util.zip.GZIPInputStream(page.getInputStream())).contains("\"First\""));
+    }
+
+    /**
+     * Adds jobs for two pages and checks page boundaries and links of HTML pages
+     * @throws Exception
+     */
+    @Test
+    public void testHtmlPages() throws Exception {
+        startServer();
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 150; i++)
+            body.append(String.format("job%03d,oneshot,60000,10\n", i));
+        final Response bulk = request("POST", "/api/bulk", "text/csv", body.toString());
+        assertTrue(bulk.body.endsWith("{\"added\":150,\"failed\":0}\n"));
+        // First and 99 more jobs
+        final String first = request("GET", "/", null, null).body;
+        assertTrue(first.contains("<table data-next=\"job098\">"));
+        assertTrue(first.contains("<td>job098</td>") && !first.contains("<td>job099</td>"));
+        assertTrue(first.contains("<a href=\"?after=job098\">Next page</a>"));
+        assertFalse(first.contains("Previous page"));
+        final String second = request("GET", "/?after=job098", null, null).body;
+        assertTrue(second.contains("<table data-after=\"job098\">"));
+        assertTrue(second.contains("<td>job099</td>") && second.contains("<td>job149</td>"));
+        assertTrue(second.contains("<a href=\"?\">Previous page</a>"));
+        assertFalse(second.contains("Next page"));
+        assertTrue(second.contains("<input type=\"hidden\" name=\"after\" value=\"job098\">"));
+        // A fragment for reloading by a page script
+        assertEquals(200, request("GET", "/main?after=job120", null, null).code);
+        assertTrue(request("GET", "/main?after=job120", null, null).body.startsWith("<div id=\"env\">"));
+    }
+
+    /**
+     * Gets a value of a sample with a given name and labels from a Prometheus text scrape
+     */
+    private static double sampleValue(final String scrape, final String sample) {
+        final int start = scrape.indexOf("\n" + sample + " ");
+        assertTrue(start >= 0);
+        final int end = scrape.indexOf('\n', start + 1);
+        return Double.parseDouble(scrape.substring(start + sample.length() + 2, end));
+    }
+
+    /**
+     * Makes a few API calls, then scrapes metrics and checks their format, histograms and request counters
+     * @throws Exception
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        startServer();
+        assertEquals(201, request("POST", "/api/jobs", "application/x-www-form-urlencoded",
+                "name=short&type=oneshot&time=0&param=10").code);
+        assertEquals(200, request("GET", "/api/jobs", null, null).code);
+        assertEquals(200, request("GET", "/api/jobs/short", null, null).code);
+        assertEquals(400, request("GET", "/api/scheduled", null, null).code);
+        Thread.sleep(100);
+        final Response scrape = request("GET", "/metrics", null, null);
+        assertEquals(200, scrape.code);
+        final String metrics = scrape.body;
+        assertTrue(metrics.startsWith("# HELP scheduler_jobs "));
+        assertTrue(metrics.contains("\n# TYPE scheduler_jobs gauge\n"));
+        assertTrue(metrics.contains("\n# TYPE scheduler_job_runs_total counter\n"));
+        assertTrue(metrics.contains("\n# HELP scheduler_job_run_seconds Job run time\n"));
+        assertTrue(metrics.contains("\n# TYPE scheduler_job_run_seconds histogram\n"));
+        assertTrue(metrics.contains("\n# TYPE http_requests_total counter\n"));
+        assertTrue(sampleValue(metrics, "scheduler_jobs{status=\"paused\"}") == 0);
+        // Buckets are cumulative, the last one and the count include all runs
+        final double runs = sampleValue(metrics, "scheduler_job_run_seconds_count");
+        assertTrue(runs >= 1);
+        assertTrue(sampleValue(metrics, "scheduler_job_run_seconds_bucket{le=\"+Inf\"}") == runs);
+        double previous = 0;
+        int buckets = 0;
+        for (String line: metrics.split("\n")) {
+            if (!line.startsWith("scheduler_job_run_seconds_bucket{le=\""))
+                continue;
+            final double count = Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+            assertTrue(count >= previous);
+            previous = count;
+            buckets++;
+        }
+        assertTrue(buckets > 1);
+        assertTrue(sampleValue(metrics, "scheduler_job_run_seconds_sum") >= 0.01);
+        assertTrue(sampleValue(metrics, "scheduler_job_runs_total{result=\"completed\"}") >= 1);
+        // A scrape is counted after its response is sent
+        assertTrue(sampleValue(metrics, "http_requests_total{handler=\"/api/\",code=\"201\"}") == 1);
+        assertTrue(sampleValue(metrics, "http_requests_total{handler=\"/api/\",code=\"200\"}") == 2);
+        assertTrue(sampleValue(metrics, "http_requests_total{handler=\"/api/\",code=\"400\"}") == 1);
+        assertFalse(metrics.contains("handler=\"/metrics\""));
+        final String next = request("GET", "/metrics", null, null).body;
+        assertTrue(sampleValue(next, "http_requests_total{handler=\"/metrics\",code=\"200\"}") == 1);
+    }
+}
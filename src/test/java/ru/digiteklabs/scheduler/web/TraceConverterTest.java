@@ -0,0 +1,72 @@
+package ru.digiteklabs.scheduler.web;
+
+import org.junit.Test;
+import ru.digiteklabs.scheduler.core.impl.TraceRecorder;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the trace converter: flows between runs and a critical path
+ *
+ * @author Mikhail Glukhikh
+ */
+public class TraceConverterTest {
+
+    /**
+     * Records runs of given jobs one after another in a new thread, each job is made ready by the previous one
+     */
+    private static void recordChain(final TraceRecorder recorder, final long... jobIds) throws InterruptedException {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long jobId: jobIds) {
+                    recorder.record(TraceRecorder.Kind.READY, jobId);
+                    recorder.record(TraceRecorder.Kind.DISPATCH, jobId);
+                    recorder.record(TraceRecorder.Kind.START, jobId);
+                    recorder.record(TraceRecorder.Kind.FINISH, jobId);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+    }
+
+    private static int count(final String s, final String part) {
+        int result = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1))
+            result++;
+        return result;
+    }
+
+    /**
+     * Converts a trace of an independent job and a later chain of three jobs,
+     * checks flows go along the chain and the critical path is the chain only
+     * @throws Exception
+     */
+    @Test
+    public void testCriticalPath() throws Exception {
+        final File file = File.createTempFile("scheduler", ".trace");
+        file.deleteOnExit();
+        final TraceRecorder recorder = new TraceRecorder(file);
+        recordChain(recorder, 4);
+        recordChain(recorder, 1, 2, 3);
+        recorder.close();
+        final StringWriter out = new StringWriter();
+        TraceConverter.convert(file, out);
+        final String json = out.toString();
+        assertTrue(json.startsWith("{") && json.endsWith("}"));
+        // One flow from job 1 to job 2 and one from job 2 to job 3
+        assertTrue(count(json, "\"ph\":\"s\"") == 2);
+        assertTrue(count(json, "\"ph\":\"f\"") == 2);
+        assertTrue(count(json, "\"ph\":\"X\",\"pid\":3,") == 6);
+        for (int jobId = 1; jobId <= 3; jobId++) {
+            assertTrue(json.contains("{\"name\":\"job " + jobId + "\",\"ph\":\"X\",\"pid\":3,"));
+            assertTrue(json.contains("{\"name\":\"wait job " + jobId + "\",\"ph\":\"X\",\"pid\":3,"));
+        }
+        assertFalse(json.contains("\"job 4\",\"ph\":\"X\",\"pid\":3,"));
+        assertTrue(json.contains("{\"name\":\"job 4\",\"ph\":\"X\",\"pid\":1,"));
+    }
+}